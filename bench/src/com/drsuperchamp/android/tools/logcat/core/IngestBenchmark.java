@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.core;
+
+import com.drsuperchamp.android.tools.logcat.core.AdbWrapper.ShellOutputReceiver;
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper.LogFilter;
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper.LogMessage;
+import com.drsuperchamp.android.tools.logcat.ui.LogTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.swing.table.TableModel;
+
+/**
+ * Benchmarks of the ingest hot path, run on a "logcat -v long" corpus with "ant bench".
+ * <p/>Each benchmark runs for {@link #WARMUP_MS} to warm up, then for {@link #ITERATIONS}
+ * iterations of {@link #ITERATION_MS}. The throughput, the bytes allocated by the benchmark
+ * thread and the collections are reported per message, as the mean of the iterations.
+ * <p/>It is in the core package to reach the package-private entry points of the filters.
+ */
+public class IngestBenchmark {
+    private static final long WARMUP_MS = 2000;
+    private static final long ITERATION_MS = 1000;
+    private static final int ITERATIONS = 5;
+    /** buffer size of the wrappers, small so the benchmarks measure the turnover */
+    private static final int BUFFER_SIZE = 10000;
+    /** tags of the corpus the filters of the wrappers accept */
+    private static final String[] FILTER_TAGS = {"ActivityManager", "dalvikvm", "WindowManager",
+            "wpa_supplicant", "AudioFlinger", "SurfaceFlinger", "chromium", "art"};
+    /** packet sizes read from the adb socket */
+    private static final int[] PACKET_SIZES = {512, 4096, 16384};
+    private static final Charset sUtf8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+
+    /** results of the benchmarks, read so the JIT can't drop their work */
+    private static volatile long sSink;
+
+    /**
+     * A benchmark operation, called in a loop.
+     */
+    private abstract static class Benchmark {
+        final String mName;
+
+        Benchmark(String name) {
+            mName = name;
+        }
+
+        /**
+         * @return the number of messages handled.
+         */
+        abstract int run();
+    }
+
+    private static final class NullOutput implements FilterOutput {
+        @Override
+        public void out(String filterName, LogCatWrapper logcat, long[] newSeqs,
+                int numRemoved) {
+            sSink += newSeqs.length;
+        }
+
+        @Override
+        public void replace(String filterName, LogCatWrapper logcat, long[] seqs) {
+        }
+    }
+
+    private static final class CollectingOutput implements FilterOutput {
+        final List<LogMessage> mMessages = new ArrayList<LogMessage>();
+
+        @Override
+        public void out(String filterName, LogCatWrapper logcat, long[] newSeqs,
+                int numRemoved) {
+            for (long seq : newSeqs) {
+                mMessages.add(logcat.getMessage(seq));
+            }
+        }
+
+        @Override
+        public void replace(String filterName, LogCatWrapper logcat, long[] seqs) {
+        }
+    }
+
+    private final byte[] mCorpus;
+    private final String[] mLines;
+
+    private IngestBenchmark(byte[] corpus) {
+        mCorpus = corpus;
+        mLines = new String(corpus, sUtf8).split("\r\n"); //$NON-NLS-1$
+    }
+
+    private static LogCatWrapper newWrapper(int numFilters) {
+        LogCatWrapper logcat = new LogCatWrapper("benchmark", BUFFER_SIZE); //$NON-NLS-1$
+        logcat.setDefaultFilterOutput(new NullOutput());
+        for (int n = 0; n < numFilters; n++) {
+            logcat.addFilter("filter" + n, FILTER_TAGS[n], null, "I", null, new NullOutput());
+        }
+        return logcat;
+    }
+
+    /**
+     * @return the messages of the corpus, parsed by logcat.
+     */
+    private List<LogMessage> parse(LogCatWrapper logcat) {
+        CollectingOutput output = new CollectingOutput();
+        LogCatWrapper parser = new LogCatWrapper("parser", mLines.length); //$NON-NLS-1$
+        parser.setDefaultFilterOutput(output);
+        parser.addLog(mLines);
+        // the filters of the benchmarks compare the tag ids of logcat.
+        for (LogMessage msg : output.mMessages) {
+            msg.data.tagId = logcat.getTags().intern(msg.data.tag);
+        }
+        return output.mMessages;
+    }
+
+    /**
+     * Splits the corpus in packets, cut anywhere in the lines as by the socket.
+     */
+    private static byte[][] split(byte[] data, int packetSize) {
+        byte[][] packets = new byte[(data.length + packetSize - 1) / packetSize][];
+        for (int n = 0; n < packets.length; n++) {
+            int start = n * packetSize;
+            packets[n] = Arrays.copyOfRange(data, start, Math.min(start + packetSize, data.length));
+        }
+        return packets;
+    }
+
+    private List<Benchmark> createBenchmarks() {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        final int numMessages = parse(newWrapper(0)).size();
+
+        for (int packetSize : PACKET_SIZES) {
+            final byte[][] packets = split(mCorpus, packetSize);
+            final ShellOutputReceiver receiver = newWrapper(FILTER_TAGS.length).getShellOutputReceiver();
+            benchmarks.add(new Benchmark("addOutput " + packetSize + " B") {
+                @Override
+                int run() {
+                    for (byte[] packet : packets) {
+                        receiver.addOutput(packet, 0, packet.length);
+                    }
+                    return numMessages;
+                }
+            });
+        }
+
+        final LogCatWrapper addLogWrapper = newWrapper(FILTER_TAGS.length);
+        benchmarks.add(new Benchmark("addLog") {
+            @Override
+            int run() {
+                addLogWrapper.addLog(mLines);
+                return numMessages;
+            }
+        });
+
+        for (final int numFilters : new int[] {0, FILTER_TAGS.length}) {
+            final LogCatWrapper logcat = newWrapper(numFilters);
+            final List<LogMessage> messages = parse(logcat);
+            benchmarks.add(new Benchmark("processNewMessage " + numFilters + " filters") {
+                @Override
+                int run() {
+                    logcat.addParsedMessages(messages);
+                    return messages.size();
+                }
+            });
+        }
+
+        LogCatWrapper filterWrapper = newWrapper(0);
+        final List<LogMessage> messages = parse(filterWrapper);
+        String pid = Integer.toString(messages.get(0).data.pid);
+        // name, filter string, temp keywords.
+        String[][] filterSpecs = {
+                {"tag", "2:ActivityManager", null}, //$NON-NLS-1$ //$NON-NLS-2$
+                {"pid", "1:" + pid, null}, //$NON-NLS-1$ //$NON-NLS-2$
+                {"level", "4:5", null}, //$NON-NLS-1$ //$NON-NLS-2$
+                {"tag+pid+level", "7:" + pid + ":3:ActivityManager", null}, //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+                {"keyword", "0", "timeout"}, //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+                {"tag+keywords", "2:dalvikvm", "gc heap"}, //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        };
+        for (String[] spec : filterSpecs) {
+            final LogFilter filter = new LogFilter(spec[0]);
+            filter.attach(filterWrapper);
+            filter.loadFromString(spec[0] + ":" + spec[1]); //$NON-NLS-1$
+            if (spec[2] != null) {
+                filter.setTempKeywordFiltering(spec[2].split(" ")); //$NON-NLS-1$
+            }
+            benchmarks.add(new Benchmark("LogFilter.accept " + spec[0]) {
+                @Override
+                int run() {
+                    int accepted = 0;
+                    for (LogMessage msg : messages) {
+                        if (filter.accept(msg.data, msg.msg)) {
+                            accepted++;
+                        }
+                    }
+                    sSink += accepted;
+                    return messages.size();
+                }
+            });
+        }
+
+        LogCatWrapper tableWrapper = new LogCatWrapper("table", mLines.length); //$NON-NLS-1$
+        LogTable table = new LogTable("benchmark"); //$NON-NLS-1$
+        tableWrapper.setDefaultFilterOutput(table);
+        tableWrapper.addLog(mLines);
+        table.applyPendingUpdates();
+        final TableModel model = table.getModel();
+        benchmarks.add(new Benchmark("LogTable.Model.getValueAt") {
+            @Override
+            int run() {
+                int rows = model.getRowCount();
+                int columns = model.getColumnCount();
+                int cells = 0;
+                for (int row = 0; row < rows; row++) {
+                    for (int column = 0; column < columns; column++) {
+                        if (model.getValueAt(row, column) != null) {
+                            cells++;
+                        }
+                    }
+                }
+                sSink += cells;
+                return rows;
+            }
+        });
+        return benchmarks;
+    }
+
+    private static long getAllocatedBytes() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long getCollectionCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(gc.getCollectionCount(), 0);
+        }
+        return count;
+    }
+
+    private static void measure(Benchmark benchmark) {
+        long end = System.currentTimeMillis() + WARMUP_MS;
+        while (System.currentTimeMillis() < end) {
+            benchmark.run();
+        }
+
+        double[] throughputs = new double[ITERATIONS];
+        long totalMessages = 0;
+        long totalBytes = 0;
+        long totalCollections = 0;
+        for (int n = 0; n < ITERATIONS; n++) {
+            long messages = 0;
+            long bytes = getAllocatedBytes();
+            long collections = getCollectionCount();
+            long start = System.nanoTime();
+            long stop = start + ITERATION_MS * 1000000;
+            long now;
+            do {
+                messages += benchmark.run();
+                now = System.nanoTime();
+            } while (now < stop);
+            totalBytes += getAllocatedBytes() - bytes;
+            totalCollections += getCollectionCount() - collections;
+            totalMessages += messages;
+            throughputs[n] = messages * 1e9 / (now - start);
+        }
+
+        double mean = 0;
+        for (double throughput : throughputs) {
+            mean += throughput;
+        }
+        mean /= ITERATIONS;
+        double variance = 0;
+        for (double throughput : throughputs) {
+            variance += (throughput - mean) * (throughput - mean);
+        }
+        double error = Math.sqrt(variance / (ITERATIONS - 1));
+
+        System.out.println(String.format("%-36s %12.0f +- %9.0f msg/s %8.1f ns/msg %8.1f B/msg %6.2f gc/Mmsg",
+                benchmark.mName, mean, error, 1e9 / mean,
+                (double) totalBytes / totalMessages,
+                totalCollections * 1e6 / totalMessages));
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param args the corpus, then the prefixes of the names of the benchmarks to run.
+     *        All of them are run if there are none.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: IngestBenchmark corpus [benchmark]..."); //$NON-NLS-1$
+            System.exit(2);
+        }
+        IngestBenchmark bench = new IngestBenchmark(readFile(new File(args[0])));
+        for (Benchmark benchmark : bench.createBenchmarks()) {
+            boolean selected = args.length == 1;
+            for (int n = 1; n < args.length; n++) {
+                selected |= benchmark.mName.startsWith(args[n]);
+            }
+            if (selected) {
+                measure(benchmark);
+            }
+        }
+    }
+}
@@ -0,0 +1 @@
+java -cp LogCat-GUI.jar com.drsuperchamp.android.tools.logcat.cli.Recorder %*
@@ -0,0 +1,5 @@
+#!/bin/sh
+
+path="$(dirname $0)"
+
+java -cp "${path}/LogCat-GUI.jar" com.drsuperchamp.android.tools.logcat.cli.Recorder "$@"
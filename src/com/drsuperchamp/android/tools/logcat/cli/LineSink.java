@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.cli;
+
+import com.drsuperchamp.android.tools.logcat.core.FilterOutput;
+import com.drsuperchamp.android.tools.logcat.core.LogBuffer;
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes the messages of a filter as "logcat -v threadtime" lines.
+ * <p/>The messages are read from the buffer of the session through a {@link LogBuffer.Entry},
+ * and the lines are encoded directly in a reused byte buffer, written to the channel when it
+ * is full. The texts are copied as the UTF-8 bytes stored in the buffer.
+ */
+class LineSink implements FilterOutput {
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    /** longest line part that is not the message: time, pid, tid, level */
+    private static final int MAX_HEADER_LENGTH = 64;
+    /** tags are padded to this width, as by logcat */
+    private static final int TAG_WIDTH = 8;
+
+    private final WritableByteChannel mChannel;
+    private final byte[] mBytes = new byte[BUFFER_SIZE];
+    private final ByteBuffer mBuffer = ByteBuffer.wrap(mBytes);
+    private int mPosition = 0;
+    private long mLineCount = 0;
+    private IOException mError = null;
+    /** session of the messages, and the flyweight reading its buffer */
+    private LogCatWrapper mLogcat = null;
+    private LogBuffer.Entry mEntry = null;
+
+    /**
+     * @param channel
+     */
+    LineSink(WritableByteChannel channel) {
+        mChannel = channel;
+    }
+
+    @Override
+    public synchronized void out(String filterName, LogCatWrapper logcat, long[] newSeqs,
+            int numRemoved) {
+        if (mError != null) {
+            return;
+        }
+        if (logcat != mLogcat) {
+            mLogcat = logcat;
+            mEntry = logcat.getLogBuffer().newEntry();
+        }
+        try {
+            for (long seq : newSeqs) {
+                // the new messages are all in the buffer during the call.
+                if (mEntry.moveTo(seq)) {
+                    writeLine(mEntry);
+                }
+            }
+        } catch (IOException e) {
+            // the error is reported by close().
+            mError = e;
+        }
+    }
+
+    @Override
+    public void replace(String filterName, LogCatWrapper logcat, long[] seqs) {
+        // the messages already written stay, the filters don't change while recording.
+    }
+
+    /**
+     * @return the number of lines written.
+     */
+    synchronized long getLineCount() {
+        return mLineCount;
+    }
+
+    /**
+     * Writes the buffered lines.
+     * @throws IOException
+     */
+    synchronized void flush() throws IOException {
+        if (mError != null) {
+            throw mError;
+        }
+        mBuffer.clear().limit(mPosition);
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mPosition = 0;
+    }
+
+    /**
+     * Writes the buffered lines and closes the channel.
+     * @throws IOException
+     */
+    synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    private void writeLine(LogBuffer.Entry entry) throws IOException {
+        String tag = entry.getTag();
+        byte[] msg = entry.getMessageBytes();
+        int msgLength = entry.getMessageLength();
+        // the worst case of UTF-8 is 3 bytes per char.
+        int maxLength = MAX_HEADER_LENGTH + tag.length() * 3 + msgLength;
+        if (mPosition + maxLength > mBytes.length) {
+            flush();
+            if (maxLength > mBytes.length) {
+                // cut the huge lines rather than growing the buffer, at a character boundary.
+                msgLength = mBytes.length - MAX_HEADER_LENGTH - tag.length() * 3;
+                while (msgLength > 0 && (msg[msgLength] & 0xc0) == 0x80) {
+                    msgLength--;
+                }
+            }
+        }
+
+        putAscii(entry.getTime());
+        putByte(' ');
+        putInt(entry.getPid(), 5);
+        putByte(' ');
+        putInt(entry.getTid(), 5);
+        putByte(' ');
+        putByte(entry.getLogLevel().getPriorityLetter());
+        putByte(' ');
+        putUtf8(tag);
+        for (int n = tag.length(); n < TAG_WIDTH; n++) {
+            putByte(' ');
+        }
+        putByte(':');
+        putByte(' ');
+        System.arraycopy(msg, 0, mBytes, mPosition, msgLength);
+        mPosition += msgLength;
+        putByte('\n');
+        mLineCount++;
+    }
+
+    private void putByte(int b) {
+        mBytes[mPosition++] = (byte) b;
+    }
+
+    private void putAscii(String s) {
+        int length = Math.min(s.length(), MAX_HEADER_LENGTH / 2);
+        for (int n = 0; n < length; n++) {
+            mBytes[mPosition++] = (byte) s.charAt(n);
+        }
+    }
+
+    /**
+     * Writes a decimal number right aligned in width characters.
+     */
+    private void putInt(int value, int width) {
+        long abs = Math.abs((long) value);
+        int digits = 1;
+        for (long n = abs / 10; n != 0; n /= 10) {
+            digits++;
+        }
+        int length = value < 0 ? digits + 1 : digits;
+        for (int n = length; n < width; n++) {
+            mBytes[mPosition++] = ' ';
+        }
+        if (value < 0) {
+            mBytes[mPosition++] = '-';
+        }
+        int end = mPosition + digits;
+        for (int n = end - 1; n >= mPosition; n--) {
+            mBytes[n] = (byte) ('0' + abs % 10);
+            abs /= 10;
+        }
+        mPosition = end;
+    }
+
+    private void putUtf8(String s) {
+        int length = s.length();
+        byte[] bytes = mBytes;
+        int position = mPosition;
+        for (int n = 0; n < length; n++) {
+            char c = s.charAt(n);
+            if (c < 0x80) {
+                bytes[position++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[position++] = (byte) (0xc0 | (c >> 6));
+                bytes[position++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && n + 1 < length
+                    && Character.isLowSurrogate(s.charAt(n + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++n));
+                bytes[position++] = (byte) (0xf0 | (codePoint >> 18));
+                bytes[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                bytes[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                bytes[position++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate.
+                bytes[position++] = '?';
+            } else {
+                bytes[position++] = (byte) (0xe0 | (c >> 12));
+                bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        mPosition = position;
+    }
+}
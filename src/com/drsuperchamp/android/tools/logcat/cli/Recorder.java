@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.cli;
+
+import com.drsuperchamp.android.tools.logcat.core.AdbWrapper;
+import com.drsuperchamp.android.tools.logcat.core.AdbWrapper.DeviceConnectionListener;
+import com.drsuperchamp.android.tools.logcat.core.AdbWrapper.ShellOutputReceiver;
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper;
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper.LogFilter;
+import com.drsuperchamp.android.tools.logcat.core.LogFileLoader;
+import com.drsuperchamp.android.tools.logcat.core.SyntheticDevice;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Records logcat without a display: the messages of a device, of the standard input or of a
+ * dump are written to files, one per filter, as "logcat -v threadtime" lines.
+ * <pre>
+ * Recorder [-a adb] [-d serial [-p] | -f file | - | -s rate [-n count]] [-o file] [-F filter=file]...
+ * </pre>
+ * <ul>
+ * <li>-a: the adb binary, found in $PATH by default.</li>
+ * <li>-d: records the device, the first one connected by default.</li>
+ * <li>-p: gives the criteria of the filters to logcat, see
+ * {@link LogCatWrapper#getFilterspec()}, the device only sends their messages. -o then only
+ * gets the messages of the filters.</li>
+ * <li>-f: records a "logcat -v long" or "logcat -v threadtime" dump.</li>
+ * <li>-: records the "logcat -v long" output given to the standard input.</li>
+ * <li>-s: records a {@link SyntheticDevice} logging rate messages per second, 0 for as fast
+ * as they are written, until count messages with -n.</li>
+ * <li>-o: writes all the messages to the file, "-" for the standard output.</li>
+ * <li>-F: writes the messages of the filter to the file. The filter is written as in
+ * {@link LogFilter#loadFromString(String)}: name:mode[:pid][:level][:tag].</li>
+ * </ul>
+ * Without -o nor -F, all the messages are written to the standard output.
+ */
+public class Recorder implements DeviceConnectionListener {
+    /** the messages are written as they come, only a few are kept */
+    private static final int MAX_LOGS = 10000;
+    private static final int READ_SIZE = 64 * 1024;
+
+    private final LogCatWrapper mLogcat;
+    private final List<LineSink> mSinks = new ArrayList<LineSink>();
+    private final CountDownLatch mDevice = new CountDownLatch(1);
+    private String mSerial = null;
+
+    private Recorder(String serial) {
+        mSerial = serial;
+        mLogcat = new LogCatWrapper(serial == null ? "" : serial, MAX_LOGS); //$NON-NLS-1$
+    }
+
+    private void setOutput(String path) throws IOException {
+        mLogcat.setDefaultFilterOutput(openSink(path));
+    }
+
+    private void addFilter(String filterString, String path) throws IOException {
+        LogFilter filter = new LogFilter();
+        filter.loadFromString(filterString);
+        mLogcat.addFilter(filter, openSink(path));
+    }
+
+    private LineSink openSink(String path) throws IOException {
+        LineSink sink;
+        if ("-".equals(path)) { //$NON-NLS-1$
+            sink = new LineSink(Channels.newChannel(System.out));
+        } else {
+            sink = new LineSink(new FileOutputStream(path).getChannel());
+        }
+        mSinks.add(sink);
+        return sink;
+    }
+
+    /**
+     * Flushes and closes the outputs.
+     */
+    private synchronized void close() {
+        for (LineSink sink : mSinks) {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                System.err.println("could not write the messages: " + e.getMessage());
+            }
+        }
+        mSinks.clear();
+    }
+
+    private void recordFile(File file) throws IOException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final IOException[] error = new IOException[1];
+        LogFileLoader loader = new LogFileLoader(file, mLogcat, new LogFileLoader.Listener() {
+            @Override
+            public void progress(long loadedBytes, long totalBytes) {
+            }
+
+            @Override
+            public void done(boolean cancelled, IOException e) {
+                error[0] = e;
+                done.countDown();
+            }
+        });
+        loader.start();
+        awaitUninterruptibly(done);
+        if (error[0] != null) {
+            throw error[0];
+        }
+    }
+
+    private void recordStream(InputStream in) throws IOException {
+        mLogcat.setLfLineEnds(true);
+        ShellOutputReceiver receiver = mLogcat.getShellOutputReceiver();
+        byte[] data = new byte[READ_SIZE];
+        int length;
+        while ((length = in.read(data)) != -1) {
+            receiver.addOutput(data, 0, length);
+        }
+        receiver.flush();
+    }
+
+    private void recordSynthetic(int rate, long count) {
+        SyntheticDevice device = new SyntheticDevice(1, 0);
+        device.setRate(rate);
+        device.setMaxMessages(count);
+        device.executeShellCommand(device.getConnectedDevices()[0], LogCatWrapper.LOGCAT_COMMAND,
+                mLogcat.getShellOutputReceiver());
+        mLogcat.getShellOutputReceiver().flush();
+    }
+
+    private boolean recordDevice(String adbPath, boolean pushDown) {
+        AdbWrapper adb = AdbWrapper.getInstance();
+        if (adb.connect(adbPath, this) == false) {
+            return false;
+        }
+        String command = LogCatWrapper.LOGCAT_COMMAND;
+        String filterspec = pushDown ? mLogcat.getFilterspec() : null;
+        if (filterspec != null) {
+            command += " " + filterspec; //$NON-NLS-1$
+            System.err.println("recording: " + command);
+        }
+        awaitUninterruptibly(mDevice);
+        // returns when the device is disconnected.
+        boolean recorded = adb.executeShellCommand(mSerial, command,
+                mLogcat.getShellOutputReceiver());
+        adb.disconnect();
+        return recorded;
+    }
+
+    @Override
+    public synchronized void deviceConnected(String devSerialNumber) {
+        if (mSerial == null) {
+            mSerial = devSerialNumber;
+        }
+        if (mSerial.equals(devSerialNumber)) {
+            mDevice.countDown();
+        }
+    }
+
+    @Override
+    public void deviceDisconnected(String devSerialNumber) {
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String findAdb() {
+        String adbCmd = System.getProperty("os.name").contains("Windows") //$NON-NLS-1$ //$NON-NLS-2$
+                ? "adb.exe" : "adb"; //$NON-NLS-1$ //$NON-NLS-2$
+        String path = System.getenv("PATH"); //$NON-NLS-1$
+        if (path == null) {
+            return null;
+        }
+        for (String dir : path.split(File.pathSeparator)) {
+            File adb = new File(dir, adbCmd);
+            if (adb.isFile()) {
+                return adb.getPath();
+            }
+        }
+        return null;
+    }
+
+    private static int parseNumber(String s) {
+        try {
+            return Integer.parseInt(s);
+        } catch (NumberFormatException e) {
+            usage();
+            return 0;
+        }
+    }
+
+    private static void usage() {
+        System.err.println(
+                "usage: Recorder [-a adb] [-d serial [-p] | -f file | - | -s rate [-n count]]");
+        System.err.println("                [-o file] [-F filter=file]...");
+        System.err.println("  -a adb     the adb binary, found in $PATH by default");
+        System.err.println("  -d serial  records the device, the first one connected by default");
+        System.err.println("  -p         filters on the device, -o only gets the messages of -F");
+        System.err.println("  -f file    records a \"logcat -v long\" or \"-v threadtime\" dump");
+        System.err.println("  -          records \"logcat -v long\" from the standard input");
+        System.err.println("  -s rate    records a synthetic device logging rate messages/s,");
+        System.err.println("             0 for as fast as they are written");
+        System.err.println("  -n count   stops the synthetic device after count messages");
+        System.err.println("  -o file    writes all the messages to the file, - for stdout");
+        System.err.println("  -F filter=file");
+        System.err.println("             writes the messages of the filter to the file,");
+        System.err.println("             the filter is name:mode[:pid][:level][:tag]");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) {
+        String adbPath = null;
+        String serial = null;
+        String inputFile = null;
+        boolean stdin = false;
+        int syntheticRate = -1;
+        long syntheticCount = 0;
+        String outputFile = null;
+        boolean pushDown = false;
+        List<String> filters = new ArrayList<String>();
+
+        for (int n = 0; n < args.length; n++) {
+            String arg = args[n];
+            if ("-".equals(arg)) { //$NON-NLS-1$
+                stdin = true;
+            } else if ("-p".equals(arg)) { //$NON-NLS-1$
+                pushDown = true;
+            } else if (n + 1 >= args.length) {
+                usage();
+            } else if ("-a".equals(arg)) { //$NON-NLS-1$
+                adbPath = args[++n];
+            } else if ("-d".equals(arg)) { //$NON-NLS-1$
+                serial = args[++n];
+            } else if ("-s".equals(arg)) { //$NON-NLS-1$
+                syntheticRate = parseNumber(args[++n]);
+            } else if ("-n".equals(arg)) { //$NON-NLS-1$
+                syntheticCount = parseNumber(args[++n]);
+            } else if ("-f".equals(arg)) { //$NON-NLS-1$
+                inputFile = args[++n];
+            } else if ("-o".equals(arg)) { //$NON-NLS-1$
+                outputFile = args[++n];
+            } else if ("-F".equals(arg)) { //$NON-NLS-1$
+                filters.add(args[++n]);
+            } else {
+                usage();
+            }
+        }
+        int numInputs = (stdin ? 1 : 0) + (inputFile != null ? 1 : 0) + (syntheticRate >= 0 ? 1 : 0);
+        if (numInputs > 1) {
+            usage();
+        }
+
+        final Recorder recorder = new Recorder(serial);
+        try {
+            if (outputFile != null || filters.isEmpty()) {
+                recorder.setOutput(outputFile != null ? outputFile : "-"); //$NON-NLS-1$
+            }
+            for (String filter : filters) {
+                int separator = filter.lastIndexOf('=');
+                if (separator <= 0) {
+                    usage();
+                }
+                recorder.addFilter(filter.substring(0, separator),
+                        filter.substring(separator + 1));
+            }
+        } catch (IOException e) {
+            System.err.println("could not open the output: " + e.getMessage());
+            recorder.close();
+            System.exit(1);
+        } catch (RuntimeException e) {
+            System.err.println("invalid filter: " + e.getMessage());
+            recorder.close();
+            System.exit(2);
+        }
+
+        // a device is recorded until killed.
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                recorder.close();
+            }
+        }));
+
+        int status = 0;
+        try {
+            if (inputFile != null) {
+                recorder.recordFile(new File(inputFile));
+            } else if (stdin) {
+                recorder.recordStream(System.in);
+            } else if (syntheticRate >= 0) {
+                recorder.recordSynthetic(syntheticRate, syntheticCount);
+            } else {
+                if (adbPath == null) {
+                    adbPath = findAdb();
+                }
+                if (adbPath == null) {
+                    System.err.println("could not find adb. Please add its path to $PATH or use -a");
+                    status = 1;
+                } else if (recorder.recordDevice(adbPath, pushDown) == false) {
+                    System.err.println("could not record the device");
+                    status = 1;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("could not read the messages: " + e.getMessage());
+            status = 1;
+        }
+        recorder.close();
+        System.exit(status);
+    }
+}
@@ -20,6 +20,7 @@ import com.android.ddmlib.AndroidDebugBridge;
 import com.android.ddmlib.Client;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.Log.LogLevel;
 import com.android.ddmlib.AndroidDebugBridge.IClientChangeListener;
 import com.android.ddmlib.AndroidDebugBridge.IDeviceChangeListener;
 
@@ -27,7 +28,7 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
-public class AdbWrapper {
+public class AdbWrapper implements DeviceSessionManager.ShellExecutor {
     private static AdbWrapper sSingletonInstance = null;
     private DeviceConnectionListener mDeviceStateListener = null;
     private boolean mIsAdbInitialized = false;
@@ -75,10 +76,10 @@ public class AdbWrapper {
             if ((new File(filePath)).exists()) {
                 return true;
             } else {
-                Util.DbgLog("File not found: " + filePath);
+                Util.log(LogLevel.ERROR, "File not found: " + filePath);
             }
         } else {
-            Util.DbgLog("filePath is null");
+            Util.log(LogLevel.ERROR, "filePath is null");
         }
         return false;
     }
@@ -91,12 +92,12 @@ public class AdbWrapper {
      */
     public boolean connect(String adbFilePath, DeviceConnectionListener listener) {
         if (!checkPath(adbFilePath)) {
-            Util.DbgLog("Error occured in setting adb binary file path");
+            Util.log(LogLevel.ERROR, "Error occured in setting adb binary file path");
             return false;
         }
 
         if (mIsAdbInitialized) {
-            Util.DbgLog("Already connected..");
+            Util.log(LogLevel.WARN, "Already connected..");
             return false;
         }
 
@@ -115,7 +116,7 @@ public class AdbWrapper {
      */
     public void disconnect() {
         if (!mIsAdbInitialized) {
-            Util.DbgLog("not connected..");
+            Util.log(LogLevel.WARN, "not connected..");
             return;
         }
         mDeviceStateListener = null;
@@ -168,14 +169,18 @@ public class AdbWrapper {
     private class ClientChangeListener implements IClientChangeListener {
         @Override
         public void clientChanged(Client arg0, int arg1) {
-            Util.DbgLog();
+            // fired for every change of every client, only described when logged.
+            if (Util.isLoggable(LogLevel.VERBOSE)) {
+                Util.log(LogLevel.VERBOSE, arg0.getClientData().getClientDescription()
+                        + " changed: 0x" + Integer.toHexString(arg1));
+            }
         }
     }
 
     private class DeviceChangeListener implements IDeviceChangeListener {
         @Override
         public void deviceConnected(IDevice device) {
-            Util.DbgLog();
+            Util.log(LogLevel.INFO, device.getSerialNumber());
             synchronized(mConnectedDevices) {
                 mConnectedDevices.add(device);
             }
@@ -187,7 +192,7 @@ public class AdbWrapper {
 
         @Override
         public void deviceDisconnected(IDevice device) {
-            Util.DbgLog();
+            Util.log(LogLevel.INFO, device.getSerialNumber());
             synchronized(mConnectedDevices) {
                 mConnectedDevices.remove(device);
             }
@@ -199,7 +204,10 @@ public class AdbWrapper {
 
         @Override
         public void deviceChanged(IDevice device, int changeMask) {
-            Util.DbgLog();
+            if (Util.isLoggable(LogLevel.VERBOSE)) {
+                Util.log(LogLevel.VERBOSE, device.getSerialNumber()
+                        + " changed: 0x" + Integer.toHexString(changeMask));
+            }
         }
     }
 }
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.core;
+
+/**
+ * Hands the messages to another {@link DebugOutput} from a daemon thread, so the threads
+ * logging never wait for a console or a file.
+ * <p/>The messages wait in a ring of fixed size. When it is full the oldest message is
+ * dropped, and the number of dropped messages is written before the next ones.
+ */
+public class AsyncDebugOutput implements DebugOutput {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final DebugOutput mOutput;
+    /** guarded by itself */
+    private final String[] mRing;
+    private int mHead = 0;
+    private int mSize = 0;
+    private long mDroppedCount = 0;
+    /** used by the thread writing the messages */
+    private final String[] mBatch;
+    private long mReportedDroppedCount = 0;
+    private final Thread mThread;
+
+    /**
+     * Starts the thread writing to the output.
+     * @param output
+     * @param capacity number of messages waiting at most.
+     */
+    public AsyncDebugOutput(DebugOutput output, int capacity) {
+        mOutput = output;
+        mRing = new String[capacity];
+        mBatch = new String[capacity];
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "debug-output"); //$NON-NLS-1$
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Queues the message, never waits.
+     */
+    @Override
+    public void out(String message) {
+        synchronized (mRing) {
+            if (mSize == mRing.length) {
+                mHead = (mHead + 1) % mRing.length;
+                mSize--;
+                mDroppedCount++;
+            }
+            mRing[(mHead + mSize) % mRing.length] = message;
+            mSize++;
+            if (mSize == 1) {
+                mRing.notify();
+            }
+        }
+    }
+
+    /**
+     * @return the number of messages dropped because the ring was full.
+     */
+    public long getDroppedCount() {
+        synchronized (mRing) {
+            return mDroppedCount;
+        }
+    }
+
+    /**
+     * Stops the thread, and writes the messages still waiting from the calling thread.
+     * Messages queued afterwards are not written.
+     */
+    public void close() {
+        mThread.interrupt();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        writeWaiting();
+    }
+
+    private void drain() {
+        while (Thread.currentThread().isInterrupted() == false) {
+            synchronized (mRing) {
+                while (mSize == 0) {
+                    try {
+                        mRing.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            writeWaiting();
+        }
+    }
+
+    /**
+     * Writes the messages waiting. The whole ring is taken at once, so the loggers only wait
+     * for the copy.
+     */
+    private void writeWaiting() {
+        int count;
+        long dropped;
+        synchronized (mRing) {
+            for (count = 0; count < mSize; count++) {
+                int slot = (mHead + count) % mRing.length;
+                mBatch[count] = mRing[slot];
+                mRing[slot] = null;
+            }
+            mHead = 0;
+            mSize = 0;
+            dropped = mDroppedCount;
+        }
+
+        if (dropped > mReportedDroppedCount) {
+            mOutput.out((dropped - mReportedDroppedCount) + " debug messages dropped"); //$NON-NLS-1$
+            mReportedDroppedCount = dropped;
+        }
+        for (int n = 0; n < count; n++) {
+            mOutput.out(mBatch[n]);
+            mBatch[n] = null;
+        }
+    }
+}
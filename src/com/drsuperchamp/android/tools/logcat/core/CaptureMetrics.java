@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.core;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper.LogFilter;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters of the capture of a {@link LogCatWrapper}: what the receivers read and what was
+ * dropped before them, the time they take, the buffer turnover and the time the tables take
+ * to show the messages.
+ * <p/>The hot path only increments {@link LongAdder}s once per packet, the derived values are
+ * computed when they are read. The counters of the filters are kept by the filters.
+ */
+public class CaptureMetrics implements CaptureMetricsMBean {
+    public static final String JMX_DOMAIN = "com.drsuperchamp.android.tools.logcat"; //$NON-NLS-1$
+    /** shortest period the rates and percentiles are computed on */
+    private static final long SAMPLE_INTERVAL_MS = 1000;
+
+    private final LogCatWrapper mOwner;
+    private final LongAdder mReceivedBytes = new LongAdder();
+    private final LongAdder mReceivedLines = new LongAdder();
+    private final LongAdder mReceivedPackets = new LongAdder();
+    /** packets dropped by the {@link IngestPipeline}s of the capture, before the receivers */
+    private final LongAdder mDroppedPackets = new LongAdder();
+    private final LongAdder mDroppedBytes = new LongAdder();
+    /** nanoseconds to parse and dispatch a packet */
+    private final Histogram mParseTime = new Histogram();
+    /** nanoseconds from the output of messages to a table to their display */
+    private final Histogram mUpdateLatency = new Histogram();
+    private ObjectName mName = null;
+
+    /** values at the last sample, and derived values of the period before it */
+    private long mSampleTime;
+    private long mSampleBytes = 0;
+    private long mSampleLines = 0;
+    private long[] mSampleParseCounts = null;
+    private long[] mSampleUpdateCounts = null;
+    private double mBytesPerSecond = 0;
+    private double mLinesPerSecond = 0;
+    private long[] mParseCounts = new long[0];
+    private long[] mUpdateCounts = new long[0];
+
+    CaptureMetrics(LogCatWrapper owner) {
+        mOwner = owner;
+        mSampleTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Counts a packet read by a receiver.
+     * @param bytes
+     * @param lines lines or entries in the packet.
+     * @param nanos time to parse and dispatch it.
+     */
+    void addPacket(int bytes, int lines, long nanos) {
+        mReceivedBytes.add(bytes);
+        mReceivedLines.add(lines);
+        mReceivedPackets.increment();
+        mParseTime.record(nanos);
+    }
+
+    /**
+     * Counts a packet dropped before it reached a receiver.
+     * @param bytes
+     */
+    void addDroppedPacket(int bytes) {
+        mDroppedBytes.add(bytes);
+        mDroppedPackets.increment();
+    }
+
+    /**
+     * @param nanos time from the output of messages to their display.
+     */
+    public void recordUpdateLatency(long nanos) {
+        mUpdateLatency.record(nanos);
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server.
+     * @param name name of the capture, the device serial number for instance.
+     */
+    public synchronized void register(String name) {
+        unregister();
+        try {
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=Capture,name=" //$NON-NLS-1$
+                    + ObjectName.quote(name));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+            mName = objectName;
+        } catch (JMException e) {
+            Util.log(LogLevel.WARN, "Cannot register the metrics: " + e); //$NON-NLS-1$
+        }
+    }
+
+    public synchronized void unregister() {
+        if (mName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mName);
+        } catch (JMException e) {
+            Util.log(LogLevel.WARN, "Cannot unregister the metrics: " + e); //$NON-NLS-1$
+        }
+        mName = null;
+    }
+
+    /**
+     * Computes the rates and percentiles if the last period is over.
+     */
+    private synchronized void sample() {
+        long now = System.currentTimeMillis();
+        long elapsed = now - mSampleTime;
+        if (elapsed < SAMPLE_INTERVAL_MS) {
+            return;
+        }
+        long bytes = mReceivedBytes.sum();
+        long lines = mReceivedLines.sum();
+        long[] parseCounts = mParseTime.getCounts();
+        long[] updateCounts = mUpdateLatency.getCounts();
+        mBytesPerSecond = (bytes - mSampleBytes) * 1000.0 / elapsed;
+        mLinesPerSecond = (lines - mSampleLines) * 1000.0 / elapsed;
+        mParseCounts = Histogram.subtract(parseCounts, mSampleParseCounts);
+        mUpdateCounts = Histogram.subtract(updateCounts, mSampleUpdateCounts);
+        mSampleTime = now;
+        mSampleBytes = bytes;
+        mSampleLines = lines;
+        mSampleParseCounts = parseCounts;
+        mSampleUpdateCounts = updateCounts;
+    }
+
+    @Override
+    public long getReceivedBytes() {
+        return mReceivedBytes.sum();
+    }
+
+    @Override
+    public long getReceivedLines() {
+        return mReceivedLines.sum();
+    }
+
+    @Override
+    public long getReceivedPackets() {
+        return mReceivedPackets.sum();
+    }
+
+    @Override
+    public long getDroppedPackets() {
+        return mDroppedPackets.sum();
+    }
+
+    @Override
+    public long getDroppedBytes() {
+        return mDroppedBytes.sum();
+    }
+
+    @Override
+    public synchronized double getBytesPerSecond() {
+        sample();
+        return mBytesPerSecond;
+    }
+
+    @Override
+    public synchronized double getLinesPerSecond() {
+        sample();
+        return mLinesPerSecond;
+    }
+
+    @Override
+    public synchronized long getParseTimeP50Nanos() {
+        sample();
+        return Histogram.getPercentile(mParseCounts, 0.5);
+    }
+
+    @Override
+    public synchronized long getParseTimeP99Nanos() {
+        sample();
+        return Histogram.getPercentile(mParseCounts, 0.99);
+    }
+
+    @Override
+    public double getParseNanosPerLine() {
+        long lines = mReceivedLines.sum();
+        return lines == 0 ? 0 : (double) mParseTime.getSum() / lines;
+    }
+
+    @Override
+    public synchronized long getUpdateLatencyP50Millis() {
+        sample();
+        return Histogram.getPercentile(mUpdateCounts, 0.5) / 1000000;
+    }
+
+    @Override
+    public synchronized long getUpdateLatencyP99Millis() {
+        sample();
+        return Histogram.getPercentile(mUpdateCounts, 0.99) / 1000000;
+    }
+
+    @Override
+    public long getMessageCount() {
+        return mOwner.getLogBuffer().getNextSeq();
+    }
+
+    @Override
+    public long getEvictedMessages() {
+        return mOwner.getLogBuffer().getFirstSeq();
+    }
+
+    @Override
+    public int getBufferedMessages() {
+        return mOwner.getLogBuffer().size();
+    }
+
+    @Override
+    public long getBufferHeapBytes() {
+        return mOwner.getLogBuffer().getHeapBytes();
+    }
+
+    @Override
+    public String[] getFilterStats() {
+        LogFilter[] filters = mOwner.getAllFilters();
+        String[] stats = new String[filters.length];
+        for (int n = 0; n < filters.length; n++) {
+            LogFilter filter = filters[n];
+            long offered = filter.getOfferedCount();
+            long accepted = filter.getAcceptedCount();
+            stats[n] = String.format("%s: %d/%d accepted (%.1f%%), %.0f ns/msg", //$NON-NLS-1$
+                    filter.getName(), accepted, offered,
+                    offered == 0 ? 0.0 : accepted * 100.0 / offered,
+                    filter.getNanosPerMessage());
+        }
+        return stats;
+    }
+}
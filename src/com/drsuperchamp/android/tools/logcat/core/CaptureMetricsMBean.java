@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.core;
+
+/**
+ * JMX view of the {@link CaptureMetrics} of a device.
+ * <p/>The rates and percentiles are those of the period since they were last computed, at
+ * least one second long. The other values are totals since the capture started.
+ */
+public interface CaptureMetricsMBean {
+    long getReceivedBytes();
+    long getReceivedLines();
+    long getReceivedPackets();
+
+    /** packets dropped when the capture is busy or over its rate, not read by the receivers */
+    long getDroppedPackets();
+    long getDroppedBytes();
+
+    double getBytesPerSecond();
+    double getLinesPerSecond();
+
+    /** time to parse and dispatch a packet */
+    long getParseTimeP50Nanos();
+    long getParseTimeP99Nanos();
+    double getParseNanosPerLine();
+
+    /** time from the output of the messages by the filter to their display */
+    long getUpdateLatencyP50Millis();
+    long getUpdateLatencyP99Millis();
+
+    long getMessageCount();
+    long getEvictedMessages();
+    int getBufferedMessages();
+    long getBufferHeapBytes();
+
+    /**
+     * @return for each filter: its name, the messages accepted and offered, and the time
+     *         spent per message.
+     */
+    String[] getFilterStats();
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.core;
+
+import com.drsuperchamp.android.tools.logcat.core.AdbWrapper.ShellOutputReceiver;
+import com.drsuperchamp.android.tools.logcat.core.IngestPipeline.Backpressure;
+import com.drsuperchamp.android.tools.logcat.core.IngestPipeline.DiscontinuityListener;
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper.FiltersListener;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Captures the logs of several devices at the same time.
+ * <p/>Each device has its own {@link DeviceSession}: a {@link LogCatWrapper} with its own
+ * buffer and filters, fed by its own {@link IngestPipeline}. The shell commands run on a
+ * bounded pool of threads, sessions past the size of the pool wait for a free thread.
+ * <p/>The memory of a session is capped by the size of its buffer and queue. Its parsing
+ * time can be capped by a maximum number of bytes read per second, so one device logging
+ * without pause cannot starve the others; there is no cap by default, since the packets over
+ * it are dropped even when the other sessions are idle. The dropped packets are counted in
+ * the {@link CaptureMetrics} of the session.
+ */
+public class DeviceSessionManager {
+    /** default number of devices captured at the same time */
+    public static final int DEFAULT_MAX_SESSIONS = 16;
+    public static final int DEFAULT_MAX_LOGS = 10000;
+    /** no cap on the bytes read per second */
+    public static final long DEFAULT_MAX_BYTES_PER_SECOND = 0;
+
+    /**
+     * Runs a shell command on a device, until the command ends or the receiver is cancelled.
+     * Implemented by {@link AdbWrapper}, and by fake devices for tests.
+     */
+    public static interface ShellExecutor {
+        boolean executeShellCommand(String devSerialNumber, String shellCmd,
+                ShellOutputReceiver receiver);
+    }
+
+    /**
+     * The capture of one device.
+     */
+    public class DeviceSession {
+        private final String mSerial;
+        private final LogCatWrapper mLogCat;
+        private IngestPipeline mPipeline = null;
+        private Future<?> mTask = null;
+        private boolean mBinary = false;
+        private Backpressure mBackpressure = null;
+        /** true if the criteria of the filters are given to logcat */
+        private boolean mPushDown = false;
+        /** filterspec of the running command, null if the device sends every message */
+        private String mFilterspec = null;
+
+        private DeviceSession(String serial) {
+            mSerial = serial;
+            mLogCat = new LogCatWrapper(serial, mMaxLogs, (long) mMaxLogs * mBytesPerMessage);
+            mLogCat.setFiltersListener(new FiltersListener() {
+                @Override
+                public void filtersChanged(LogCatWrapper logcat) {
+                    filterspecChanged();
+                }
+            });
+        }
+
+        public String getSerial() {
+            return mSerial;
+        }
+
+        /**
+         * @return the buffer and filters of this device. Filters should be added before
+         *         {@link #start(boolean, Backpressure)}.
+         */
+        public LogCatWrapper getLogCat() {
+            return mLogCat;
+        }
+
+        /**
+         * @return the pipeline of the capture, or null if it was not started.
+         */
+        public synchronized IngestPipeline getPipeline() {
+            return mPipeline;
+        }
+
+        /**
+         * Starts the capture when a thread of the pool is free.
+         * @param binary true to capture the output of {@link LogCatWrapper#LOGCAT_BINARY_COMMAND}.
+         * @param backpressure what to do when the device logs faster than the messages are parsed.
+         */
+        public synchronized void start(boolean binary, Backpressure backpressure) {
+            if (mPipeline != null) {
+                return;
+            }
+            mBinary = binary;
+            mBackpressure = backpressure;
+            mTask = mPool.submit(prepareCommand(null));
+        }
+
+        /**
+         * Sets whether logcat is given the criteria of the filters, see
+         * {@link LogCatWrapper#getFilterspec()}, so the device only sends the messages they
+         * can accept. The command is then restarted whenever they change.
+         * @param pushDown
+         */
+        public synchronized void setPushDown(boolean pushDown) {
+            mPushDown = pushDown;
+            filterspecChanged();
+        }
+
+        /**
+         * @return the filterspec given to logcat, null if the device sends every message.
+         *         The default filter only gets the messages it selects.
+         */
+        public synchronized String getFilterspec() {
+            return mFilterspec;
+        }
+
+        /**
+         * Restarts the running command if the filterspec it should use changed. The command
+         * is stopped at once, and restarted from a thread of the pool once the previous one
+         * stopped using the receivers. A restart still waiting takes the latest filterspec.
+         */
+        private synchronized void filterspecChanged() {
+            if (mPipeline == null || mPipeline.isCancelled()) {
+                return;
+            }
+            String filterspec = mPushDown ? mLogCat.getFilterspec() : null;
+            if (filterspec == null ? mFilterspec == null : filterspec.equals(mFilterspec)) {
+                return;
+            }
+            final IngestPipeline previous = mPipeline;
+            previous.cancel();
+            mTask.cancel(true);
+            mTask = mPool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    // the worker stops within a packet.
+                    try {
+                        previous.awaitTermination();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    Runnable command = prepareRestart(previous);
+                    if (command != null) {
+                        command.run();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Resets the receivers and prepares the command resuming after the newest message.
+         * @param previous the pipeline of the stopped command.
+         * @return the command, or null if the session was stopped or restarted since.
+         */
+        private synchronized Runnable prepareRestart(IngestPipeline previous) {
+            if (mPipeline != previous || mTask.isCancelled()) {
+                return null;
+            }
+            ((DiscontinuityListener) mLogCat.getShellOutputReceiver()).discontinuity();
+            ((DiscontinuityListener) mLogCat.getBinaryShellOutputReceiver()).discontinuity();
+            return prepareCommand(mLogCat.resumeAtNewest(mBinary));
+        }
+
+        /**
+         * Creates the pipeline of the command.
+         * @param resumeTime the time the command starts at, see
+         *        {@link LogCatWrapper#resumeAtNewest(boolean)}, or null to start with the
+         *        messages logged before.
+         * @return the command, to run on a thread of the pool.
+         */
+        private Runnable prepareCommand(String resumeTime) {
+            ShellOutputReceiver receiver;
+            String command;
+            if (mBinary) {
+                command = LogCatWrapper.LOGCAT_BINARY_COMMAND;
+                receiver = mLogCat.getBinaryShellOutputReceiver();
+            } else {
+                command = LogCatWrapper.LOGCAT_COMMAND;
+                receiver = mLogCat.getShellOutputReceiver();
+            }
+            if (resumeTime != null) {
+                command += " -T '" + resumeTime + "'"; //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            mFilterspec = mPushDown ? mLogCat.getFilterspec() : null;
+            if (mFilterspec != null) {
+                command += " " + mFilterspec; //$NON-NLS-1$
+            }
+            final String shellCmd = command;
+            final IngestPipeline pipeline = new IngestPipeline("logcat-" + mSerial, receiver,
+                    IngestPipeline.DEFAULT_CAPACITY, mBackpressure);
+            pipeline.setMaxBytesPerSecond(mMaxBytesPerSecond);
+            pipeline.setMetrics(mLogCat.getMetrics());
+            mPipeline = pipeline;
+            return new Runnable() {
+                @Override
+                public void run() {
+                    if (pipeline.isCancelled() == false) {
+                        mExecutor.executeShellCommand(mSerial, shellCmd, pipeline);
+                        pipeline.flush();
+                    }
+                }
+            };
+        }
+
+        /**
+         * Stops the capture, the messages already captured are kept.
+         */
+        public synchronized void stop() {
+            if (mPipeline != null) {
+                mPipeline.cancel();
+            }
+            if (mTask != null) {
+                mTask.cancel(true);
+            }
+        }
+
+        /**
+         * Deletes the history of the session, if it has a store, and unregisters its metrics.
+         */
+        private void release() {
+            SegmentedLogStore store = mLogCat.getLogStore();
+            if (store != null) {
+                mLogCat.setLogStore(null);
+                store.delete();
+            }
+            mLogCat.getMetrics().unregister();
+        }
+
+        /**
+         * @return true if the capture was started and the command did not end.
+         */
+        public synchronized boolean isRunning() {
+            return mTask != null && mTask.isDone() == false;
+        }
+    }
+
+    private final ShellExecutor mExecutor;
+    private final ExecutorService mPool;
+    private final Map<String, DeviceSession> mSessions = new LinkedHashMap<String, DeviceSession>();
+    private int mMaxLogs = DEFAULT_MAX_LOGS;
+    private int mBytesPerMessage = LogBuffer.DEFAULT_BYTES_PER_MESSAGE;
+    private long mMaxBytesPerSecond = DEFAULT_MAX_BYTES_PER_SECOND;
+
+    /**
+     * @param executor runs the logcat commands.
+     * @param maxSessions number of devices captured at the same time.
+     */
+    public DeviceSessionManager(ShellExecutor executor, int maxSessions) {
+        mExecutor = executor;
+        mPool = Executors.newFixedThreadPool(maxSessions, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "adb-reader-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Sets the caps of the sessions opened from now on.
+     * @param maxLogs max number of messages kept per device.
+     * @param bytesPerMessage average message size used to size the text storage.
+     * @param maxBytesPerSecond max bytes read per second per device, 0 for none.
+     */
+    public synchronized void setLimits(int maxLogs, int bytesPerMessage, long maxBytesPerSecond) {
+        mMaxLogs = maxLogs;
+        mBytesPerMessage = bytesPerMessage;
+        mMaxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    /**
+     * Creates a new session for the device, the previous one is stopped and its history
+     * store deleted. The metrics of the session are registered in the platform MBean server.
+     * @param serial
+     * @return the new session, not started.
+     */
+    public synchronized DeviceSession open(String serial) {
+        DeviceSession previous = mSessions.remove(serial);
+        if (previous != null) {
+            previous.stop();
+            previous.release();
+        }
+        DeviceSession session = new DeviceSession(serial);
+        session.mLogCat.getMetrics().register(serial);
+        mSessions.put(serial, session);
+        return session;
+    }
+
+    /**
+     * Stops and forgets the session of the device, its history store is deleted.
+     * @param serial
+     */
+    public synchronized void close(String serial) {
+        DeviceSession session = mSessions.remove(serial);
+        if (session != null) {
+            session.stop();
+            session.release();
+        }
+    }
+
+    /**
+     * @param serial
+     * @return the session of the device, or null.
+     */
+    public synchronized DeviceSession getSession(String serial) {
+        return mSessions.get(serial);
+    }
+
+    /**
+     * @return the sessions, in the order they were opened.
+     */
+    public synchronized DeviceSession[] getSessions() {
+        return mSessions.values().toArray(new DeviceSession[mSessions.size()]);
+    }
+
+    /**
+     * Stops every session and the pool, and deletes the history stores.
+     */
+    public synchronized void shutdown() {
+        for (DeviceSession session : mSessions.values()) {
+            session.stop();
+            session.release();
+        }
+        mSessions.clear();
+        mPool.shutdownNow();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.core;
+
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper.LogFilter;
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper.LogMessageInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Index of the filters by the criteria a message must match to be accepted.
+ * <p/>Filters with a tag are indexed by tag id, the other filters with a pid by pid, and the
+ * rest (level or keyword only) are always offered the messages. Each group also has the
+ * lowest level its filters accept, so a message only reaches the filters that could accept it.
+ * <p/>The index is immutable, it is rebuilt when the filters change.
+ */
+class FilterDispatcher {
+    private static final LogFilter[] NO_FILTERS = new LogFilter[0];
+
+    private final LogFilter[][] mByTag;
+    private final int[] mByTagMinLevel;
+
+    /** sorted pids */
+    private final int[] mPids;
+    private final LogFilter[][] mByPid;
+    private final int[] mByPidMinLevel;
+
+    private final LogFilter[] mOthers;
+    private final int mOthersMinLevel;
+
+    FilterDispatcher(LogFilter[] filters) {
+        TreeMap<Integer, List<LogFilter>> byTag = new TreeMap<Integer, List<LogFilter>>();
+        TreeMap<Integer, List<LogFilter>> byPid = new TreeMap<Integer, List<LogFilter>>();
+        List<LogFilter> others = new ArrayList<LogFilter>();
+
+        if (filters != null) {
+            for (LogFilter filter : filters) {
+                int tagId = filter.getDispatchTagId();
+                int pid = filter.getDispatchPid();
+                if (tagId != SymbolTable.NO_ID) {
+                    add(byTag, tagId, filter);
+                } else if (pid != -1) {
+                    add(byPid, pid, filter);
+                } else {
+                    others.add(filter);
+                }
+            }
+        }
+
+        int maxTagId = byTag.isEmpty() ? -1 : byTag.lastKey().intValue();
+        mByTag = new LogFilter[maxTagId + 1][];
+        mByTagMinLevel = new int[maxTagId + 1];
+        Arrays.fill(mByTag, NO_FILTERS);
+        for (Integer tagId : byTag.keySet()) {
+            LogFilter[] group = toArray(byTag.get(tagId));
+            mByTag[tagId.intValue()] = group;
+            mByTagMinLevel[tagId.intValue()] = minLevel(group);
+        }
+
+        mPids = new int[byPid.size()];
+        mByPid = new LogFilter[byPid.size()][];
+        mByPidMinLevel = new int[byPid.size()];
+        int index = 0;
+        for (Integer pid : byPid.keySet()) {
+            mPids[index] = pid.intValue();
+            mByPid[index] = toArray(byPid.get(pid));
+            mByPidMinLevel[index] = minLevel(mByPid[index]);
+            index++;
+        }
+
+        mOthers = toArray(others);
+        mOthersMinLevel = minLevel(mOthers);
+    }
+
+    /**
+     * Offers the message to the filters that could accept it.
+     * @param seq sequence number of the message in the buffer.
+     * @param info
+     * @param message
+     * @param firstSeq sequence number of the oldest message still in the buffer.
+     * @return true if a filter accepted the message.
+     */
+    boolean dispatch(long seq, LogMessageInfo info, String message, long firstSeq) {
+        boolean filtered = false;
+        int level = info.logLevel.getPriority();
+
+        int tagId = info.tagId;
+        if (tagId >= 0 && tagId < mByTag.length && level >= mByTagMinLevel[tagId]) {
+            filtered |= offer(mByTag[tagId], seq, info, message, firstSeq);
+        }
+
+        if (mPids.length > 0) {
+            int index = Arrays.binarySearch(mPids, info.pid);
+            if (index >= 0 && level >= mByPidMinLevel[index]) {
+                filtered |= offer(mByPid[index], seq, info, message, firstSeq);
+            }
+        }
+
+        if (level >= mOthersMinLevel) {
+            filtered |= offer(mOthers, seq, info, message, firstSeq);
+        }
+        return filtered;
+    }
+
+    private static boolean offer(LogFilter[] filters, long seq, LogMessageInfo info,
+            String message, long firstSeq) {
+        boolean filtered = false;
+        for (LogFilter f : filters) {
+            filtered |= f.addMessage(seq, info, message, firstSeq);
+        }
+        return filtered;
+    }
+
+    private static void add(TreeMap<Integer, List<LogFilter>> map, int key, LogFilter filter) {
+        List<LogFilter> list = map.get(Integer.valueOf(key));
+        if (list == null) {
+            list = new ArrayList<LogFilter>();
+            map.put(Integer.valueOf(key), list);
+        }
+        list.add(filter);
+    }
+
+    private static LogFilter[] toArray(List<LogFilter> list) {
+        return list.toArray(new LogFilter[list.size()]);
+    }
+
+    private static int minLevel(LogFilter[] filters) {
+        if (filters.length == 0) {
+            return Integer.MAX_VALUE;
+        }
+        int min = Integer.MAX_VALUE;
+        for (LogFilter f : filters) {
+            min = Math.min(min, f.getMinAcceptedLevel());
+        }
+        return min;
+    }
+}
@@ -16,8 +16,28 @@
 
 package com.drsuperchamp.android.tools.logcat.core;
 
-import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper.LogMessage;
-
+/**
+ * Receives the messages of a filter as sequence numbers in its session. The messages are read
+ * through a {@link LogBuffer.Entry} of {@link LogCatWrapper#getLogBuffer()}, or with
+ * {@link LogCatWrapper#getMessage(long)} once they are evicted from the buffer.
+ */
 public interface FilterOutput {
-    void out(String filterName, LogMessage []newMessages, int numRemoved);
+    /**
+     * @param filterName
+     * @param logcat the session of the messages.
+     * @param newSeqs sequence numbers of the new messages, in order. They are all in the
+     *        buffer during the call.
+     * @param numRemoved number of the oldest messages evicted since the previous call.
+     */
+    void out(String filterName, LogCatWrapper logcat, long[] newSeqs, int numRemoved);
+
+    /**
+     * Replaces all the messages of the output, after the filter was applied again to the
+     * buffer. The next calls to {@link #out} update these messages.
+     * @param filterName
+     * @param logcat the session of the messages.
+     * @param seqs sequence numbers of the messages, in order. The oldest ones may be evicted
+     *        during the call.
+     */
+    void replace(String filterName, LogCatWrapper logcat, long[] seqs);
 }
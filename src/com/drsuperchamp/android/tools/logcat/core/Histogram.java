@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.core;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of durations in buckets of powers of two, recorded from any thread.
+ * <p/>A value is counted in the bucket of its highest bit, so the percentiles are within a
+ * factor of 2. Recording is a {@link LongAdder} increment: threads recording at the same time
+ * don't contend on one counter.
+ */
+public class Histogram {
+    /** bucket n counts the values in [2^(n-1), 2^n), bucket 0 the values <= 0 */
+    private static final int NUM_BUCKETS = 64;
+
+    private final LongAdder[] mBuckets = new LongAdder[NUM_BUCKETS];
+    private final LongAdder mSum = new LongAdder();
+
+    public Histogram() {
+        for (int n = 0; n < NUM_BUCKETS; n++) {
+            mBuckets[n] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param value a duration, in nanoseconds for instance.
+     */
+    public void record(long value) {
+        int bucket = value <= 0 ? 0 : Math.min(64 - Long.numberOfLeadingZeros(value), NUM_BUCKETS - 1);
+        mBuckets[bucket].increment();
+        mSum.add(value);
+    }
+
+    /**
+     * @return the counts of the buckets, to compute the percentiles of a period by subtracting
+     *         those of its start with {@link #subtract(long[], long[])}.
+     */
+    public long[] getCounts() {
+        long[] counts = new long[NUM_BUCKETS];
+        for (int n = 0; n < NUM_BUCKETS; n++) {
+            counts[n] = mBuckets[n].sum();
+        }
+        return counts;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : mBuckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public long getSum() {
+        return mSum.sum();
+    }
+
+    /**
+     * @return the counts recorded between the two calls to {@link #getCounts()}.
+     */
+    public static long[] subtract(long[] counts, long[] previous) {
+        long[] diff = new long[counts.length];
+        for (int n = 0; n < counts.length; n++) {
+            diff[n] = counts[n] - (previous != null ? previous[n] : 0);
+        }
+        return diff;
+    }
+
+    /**
+     * @param counts
+     * @param p the percentile, between 0 and 1.
+     * @return the upper bound of the bucket of the percentile, 0 if there are no values.
+     */
+    public static long getPercentile(long[] counts, double p) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max((long) Math.ceil(total * p), 1);
+        long count = 0;
+        for (int n = 0; n < counts.length; n++) {
+            count += counts[n];
+            if (count >= rank) {
+                return n == 0 ? 0 : (n >= 63 ? Long.MAX_VALUE : (1L << n) - 1);
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.core;
+
+import com.drsuperchamp.android.tools.logcat.core.AdbWrapper.ShellOutputReceiver;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decouples the adb reader thread from the parsing and filtering of its output.
+ * <p/>The packets given to {@link #addOutput(byte[], int, int)} are copied to a bounded
+ * queue, and a worker thread gives them to the downstream receiver. When the queue is full the
+ * {@link Backpressure} policy decides whether the reader waits or packets are dropped.
+ * <p/>Receivers that can recover from dropped packets implement
+ * {@link DiscontinuityListener}.
+ */
+public class IngestPipeline implements ShellOutputReceiver {
+    /** default number of packets in the queue */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /** with {@link Backpressure#SAMPLE}, one packet out of this is kept past the high mark */
+    private static final int SAMPLE_RATE = 4;
+
+    /**
+     * What happens when the queue is full.
+     */
+    public static enum Backpressure {
+        /** the reader waits, logcat may drop lines on the device. */
+        BLOCK,
+        /** the oldest queued packet is dropped. */
+        DROP_OLDEST,
+        /** past 3/4 of the queue only one packet in {@link #SAMPLE_RATE} is kept. */
+        SAMPLE,
+    }
+
+    /**
+     * Interface for receivers to be told that packets were dropped before the next one.
+     */
+    public static interface DiscontinuityListener {
+        void discontinuity();
+    }
+
+    private static final class Packet {
+        byte[] data;
+        int length;
+        boolean isEnd;
+        /** number of the packet in the output of the reader, dropped packets included */
+        long seq;
+
+        Packet(int size) {
+            data = new byte[size];
+        }
+    }
+
+    private final ShellOutputReceiver mDownstream;
+    private final Backpressure mBackpressure;
+    private final int mCapacity;
+    private final BlockingQueue<Packet> mQueue;
+    /** recycled packets, to avoid allocating a buffer per packet */
+    private final BlockingQueue<Packet> mFreePackets;
+    private final Thread mWorker;
+    private volatile boolean mIsCancelled = false;
+
+    private final AtomicLong mReceivedPackets = new AtomicLong();
+    private final AtomicLong mReceivedBytes = new AtomicLong();
+    private final AtomicLong mDroppedPackets = new AtomicLong();
+    private final AtomicLong mDroppedBytes = new AtomicLong();
+    private final AtomicLong mProcessedPackets = new AtomicLong();
+    private volatile CaptureMetrics mMetrics = null;
+    private long mSampleCount = 0;
+    /** number of the next packet read, only used by the reader thread */
+    private long mNextSeq = 0;
+
+    /** rate limit, 0 for none. The bucket is only used by the reader thread. */
+    private volatile long mMaxBytesPerSecond = 0;
+    private long mRateTokens = 0;
+    private long mRateRefillTime = 0;
+
+    /**
+     * Creates the pipeline and starts its worker thread.
+     * @param name name of the worker thread.
+     * @param downstream receiver called from the worker thread.
+     * @param capacity max number of packets in the queue.
+     * @param backpressure what to do when the queue is full.
+     */
+    public IngestPipeline(String name, ShellOutputReceiver downstream, int capacity,
+            Backpressure backpressure) {
+        mDownstream = downstream;
+        mBackpressure = backpressure;
+        mCapacity = capacity;
+        mQueue = new ArrayBlockingQueue<Packet>(capacity);
+        mFreePackets = new ArrayBlockingQueue<Packet>(capacity + 1);
+        mWorker = new Thread(new Worker(), name);
+        mWorker.setDaemon(true);
+        mWorker.start();
+    }
+
+    /* (non-Javadoc)
+     * @see com.android.ddmlib.adb.IShellOutputReceiver#addOutput(
+     *      byte[], int, int)
+     */
+    public void addOutput(byte[] data, int offset, int length) {
+        if (mIsCancelled) {
+            return;
+        }
+        mReceivedPackets.incrementAndGet();
+        mReceivedBytes.addAndGet(length);
+        // numbered before a drop, so the worker sees the gap at the packet following it.
+        long seq = mNextSeq++;
+
+        if (mMaxBytesPerSecond > 0 && takeRateTokens(length) == false) {
+            drop(length);
+            return;
+        }
+
+        if (mBackpressure == Backpressure.SAMPLE && mQueue.size() * 4 >= mCapacity * 3) {
+            if (mSampleCount++ % SAMPLE_RATE != 0) {
+                drop(length);
+                return;
+            }
+        }
+
+        Packet packet = obtainPacket(length);
+        System.arraycopy(data, offset, packet.data, 0, length);
+        packet.length = length;
+        packet.seq = seq;
+        enqueue(packet);
+    }
+
+    /* (non-Javadoc)
+     * @see com.android.ddmlib.adb.IShellOutputReceiver#flush()
+     */
+    public void flush() {
+        if (mIsCancelled) {
+            return;
+        }
+        Packet end = obtainPacket(0);
+        end.isEnd = true;
+        end.seq = mNextSeq;
+        // the end is never dropped.
+        try {
+            mQueue.put(end);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return mIsCancelled || mDownstream.isCancelled();
+    }
+
+    /**
+     * Stops the capture, queued packets are discarded.
+     * <p/>The worker is woken by a packet instead of being interrupted: an interrupt closes the
+     * channels it writes to, like those of the {@link SegmentedLogStore}.
+     */
+    public void cancel() {
+        mIsCancelled = true;
+        Packet stop = new Packet(0);
+        stop.isEnd = true;
+        // the reader may still queue a packet it was adding.
+        do {
+            mQueue.clear();
+        } while (mQueue.offer(stop) == false);
+    }
+
+    /**
+     * Waits for the worker thread to end, after {@link #cancel()} or the end of the capture.
+     * The downstream receiver is not called anymore once it returns.
+     * @throws InterruptedException
+     */
+    public void awaitTermination() throws InterruptedException {
+        mWorker.join();
+    }
+
+    /**
+     * Caps the bytes read per second, so one device cannot use all the parsing time.
+     * Past the cap the reader waits with {@link Backpressure#BLOCK}, and the packets are dropped
+     * with the other policies.
+     * @param maxBytesPerSecond the cap, 0 for none.
+     */
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        mMaxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    /**
+     * Counts the dropped packets in the metrics of the capture too, which outlive the
+     * pipeline when the command is restarted.
+     * @param metrics the metrics, or null.
+     */
+    public void setMetrics(CaptureMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /** @return number of packets waiting for the worker. */
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    public long getReceivedPackets() {
+        return mReceivedPackets.get();
+    }
+
+    public long getReceivedBytes() {
+        return mReceivedBytes.get();
+    }
+
+    public long getDroppedPackets() {
+        return mDroppedPackets.get();
+    }
+
+    public long getDroppedBytes() {
+        return mDroppedBytes.get();
+    }
+
+    public long getProcessedPackets() {
+        return mProcessedPackets.get();
+    }
+
+    private void enqueue(Packet packet) {
+        try {
+            switch (mBackpressure) {
+                case BLOCK:
+                    mQueue.put(packet);
+                    break;
+                case DROP_OLDEST:
+                    while (mQueue.offer(packet) == false) {
+                        Packet oldest = mQueue.poll();
+                        if (oldest != null) {
+                            drop(oldest.length);
+                            recycle(oldest);
+                        }
+                    }
+                    break;
+                case SAMPLE:
+                    if (mQueue.offer(packet) == false) {
+                        drop(packet.length);
+                        recycle(packet);
+                    }
+                    break;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Token bucket holding up to one second of bytes.
+     * @return false if the packet is over the rate and must be dropped.
+     */
+    private boolean takeRateTokens(int length) {
+        long maxBytesPerSecond = mMaxBytesPerSecond;
+        while (true) {
+            long now = System.nanoTime();
+            if (mRateRefillTime == 0) {
+                mRateTokens = maxBytesPerSecond;
+            } else {
+                // a full bucket is one second of bytes, and it avoids overflows.
+                long elapsed = Math.min(now - mRateRefillTime, 1000000000L);
+                mRateTokens = Math.min(maxBytesPerSecond,
+                        mRateTokens + elapsed * maxBytesPerSecond / 1000000000L);
+            }
+            mRateRefillTime = now;
+
+            if (mRateTokens >= length || mRateTokens == maxBytesPerSecond) {
+                mRateTokens -= length;
+                return true;
+            }
+            if (mBackpressure != Backpressure.BLOCK) {
+                return false;
+            }
+            long waitMs = (length - mRateTokens) * 1000 / maxBytesPerSecond + 1;
+            try {
+                Thread.sleep(waitMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (mIsCancelled) {
+                return false;
+            }
+        }
+    }
+
+    private void drop(int length) {
+        mDroppedPackets.incrementAndGet();
+        mDroppedBytes.addAndGet(length);
+        CaptureMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.addDroppedPacket(length);
+        }
+    }
+
+    private Packet obtainPacket(int size) {
+        Packet packet = mFreePackets.poll();
+        if (packet == null) {
+            return new Packet(size);
+        }
+        if (packet.data.length < size) {
+            packet.data = new byte[size];
+        }
+        packet.isEnd = false;
+        return packet;
+    }
+
+    private void recycle(Packet packet) {
+        mFreePackets.offer(packet);
+    }
+
+    private final class Worker implements Runnable {
+        @Override
+        public void run() {
+            long nextSeq = 0;
+            while (mIsCancelled == false) {
+                Packet packet;
+                try {
+                    packet = mQueue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (mIsCancelled) {
+                    break;
+                }
+
+                // packets were dropped between the last one processed and this one, wherever
+                // they were dropped: before the queue or from its head.
+                if (packet.seq != nextSeq && mDownstream instanceof DiscontinuityListener) {
+                    ((DiscontinuityListener) mDownstream).discontinuity();
+                }
+                nextSeq = packet.seq + 1;
+
+                if (packet.isEnd) {
+                    mDownstream.flush();
+                    break;
+                }
+
+                mDownstream.addOutput(packet.data, 0, packet.length);
+                mProcessedPackets.incrementAndGet();
+                recycle(packet);
+            }
+        }
+    }
+}
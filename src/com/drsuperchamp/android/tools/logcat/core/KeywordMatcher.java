@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Matches a message against a set of keywords, all of which must be found.
+ * <p/>A keyword is found if the message contains it, or if the whole message matches it as a
+ * regular expression. The keywords are compiled once: every keyword is searched literally in
+ * a single pass of an Aho-Corasick automaton, and only the keywords containing regular
+ * expression characters get a {@link Pattern}, tried when the literal search missed them.
+ * <p/>Instances are immutable and can be shared between threads.
+ */
+public class KeywordMatcher {
+    private static final String REGEX_CHARACTERS = "\\^$.|?*+()[]{}"; //$NON-NLS-1$
+    private static final int ASCII_SIZE = 128;
+
+    private final String[] mKeywords;
+    /** patterns of the keywords, null for plain keywords */
+    private final Pattern[] mPatterns;
+    private final int mNumWords;
+    private final long[] mAllFound;
+
+    /** automaton: full transition table for ASCII characters */
+    private final int[] mAsciiNext;
+    /** automaton: sorted non-ASCII children of each state, and their targets */
+    private final char[][] mChildChars;
+    private final int[][] mChildStates;
+    private final int[] mFail;
+    /** keywords ending at each state (including through the fail links), mNumWords per state */
+    private final long[] mOutputs;
+    private final boolean[] mHasOutput;
+    /** found keywords of the message being matched, when there are more than 64 */
+    private final ThreadLocal<long[]> mFoundScratch = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[mNumWords];
+        }
+    };
+
+    /**
+     * Compiles the keywords.
+     * @param keywords
+     * @throws PatternSyntaxException if a keyword with regular expression characters is not a
+     *         valid regular expression.
+     */
+    public KeywordMatcher(String[] keywords) throws PatternSyntaxException {
+        List<String> list = new ArrayList<String>();
+        for (String keyword : keywords) {
+            // every message contains the empty string.
+            if (keyword != null && keyword.length() > 0) {
+                list.add(keyword);
+            }
+        }
+        mKeywords = list.toArray(new String[list.size()]);
+        mPatterns = new Pattern[mKeywords.length];
+        for (int n = 0; n < mKeywords.length; n++) {
+            if (isRegex(mKeywords[n])) {
+                mPatterns[n] = Pattern.compile(mKeywords[n]);
+            }
+        }
+
+        mNumWords = Math.max(1, (mKeywords.length + 63) / 64);
+        mAllFound = new long[mNumWords];
+        for (int n = 0; n < mKeywords.length; n++) {
+            mAllFound[n >> 6] |= 1L << n;
+        }
+
+        // build the trie.
+        List<Map<Character, Integer>> children = new ArrayList<Map<Character, Integer>>();
+        List<long[]> outputs = new ArrayList<long[]>();
+        children.add(new HashMap<Character, Integer>());
+        outputs.add(new long[mNumWords]);
+        for (int n = 0; n < mKeywords.length; n++) {
+            int state = 0;
+            String keyword = mKeywords[n];
+            for (int i = 0; i < keyword.length(); i++) {
+                Character c = Character.valueOf(keyword.charAt(i));
+                Integer next = children.get(state).get(c);
+                if (next == null) {
+                    next = Integer.valueOf(children.size());
+                    children.get(state).put(c, next);
+                    children.add(new HashMap<Character, Integer>());
+                    outputs.add(new long[mNumWords]);
+                }
+                state = next.intValue();
+            }
+            outputs.get(state)[n >> 6] |= 1L << n;
+        }
+
+        int numStates = children.size();
+        mFail = new int[numStates];
+        mAsciiNext = new int[numStates * ASCII_SIZE];
+        mChildChars = new char[numStates][];
+        mChildStates = new int[numStates][];
+        mOutputs = new long[numStates * mNumWords];
+        mHasOutput = new boolean[numStates];
+
+        // breadth first, so the fail state of a state is always done before it.
+        LinkedList<Integer> queue = new LinkedList<Integer>();
+        queue.add(Integer.valueOf(0));
+        while (queue.isEmpty() == false) {
+            int state = queue.removeFirst().intValue();
+            Map<Character, Integer> stateChildren = children.get(state);
+
+            long[] output = outputs.get(state);
+            long[] failOutput = outputs.get(mFail[state]);
+            for (int w = 0; w < mNumWords; w++) {
+                if (state != 0) {
+                    output[w] |= failOutput[w];
+                }
+                mOutputs[state * mNumWords + w] = output[w];
+                mHasOutput[state] |= output[w] != 0;
+            }
+
+            for (int c = 0; c < ASCII_SIZE; c++) {
+                Integer child = stateChildren.get(Character.valueOf((char) c));
+                if (child != null) {
+                    mAsciiNext[state * ASCII_SIZE + c] = child.intValue();
+                } else if (state != 0) {
+                    mAsciiNext[state * ASCII_SIZE + c] = mAsciiNext[mFail[state] * ASCII_SIZE + c];
+                }
+            }
+
+            List<Character> nonAscii = new ArrayList<Character>();
+            for (Map.Entry<Character, Integer> entry : stateChildren.entrySet()) {
+                char c = entry.getKey().charValue();
+                int child = entry.getValue().intValue();
+                mFail[child] = state == 0 ? 0 : next(mFail[state], c);
+                queue.add(entry.getValue());
+                if (c >= ASCII_SIZE) {
+                    nonAscii.add(entry.getKey());
+                }
+            }
+            char[] chars = new char[nonAscii.size()];
+            for (int n = 0; n < chars.length; n++) {
+                chars[n] = nonAscii.get(n).charValue();
+            }
+            Arrays.sort(chars);
+            int[] states = new int[chars.length];
+            for (int n = 0; n < chars.length; n++) {
+                states[n] = stateChildren.get(Character.valueOf(chars[n])).intValue();
+            }
+            mChildChars[state] = chars;
+            mChildStates[state] = states;
+        }
+    }
+
+    /**
+     * @return true if there are no keywords, and every message matches.
+     */
+    public boolean isEmpty() {
+        return mKeywords.length == 0;
+    }
+
+    /**
+     * @param message
+     * @return true if every keyword is found in the message.
+     */
+    public boolean matches(CharSequence message) {
+        if (mKeywords.length == 0) {
+            return true;
+        }
+        if (mNumWords == 1) {
+            return matchesSingleWord(message);
+        }
+
+        // more than 64 keywords, the found set is a scratch array of the thread.
+        long[] found = mFoundScratch.get();
+        Arrays.fill(found, 0);
+        int state = 0;
+        int length = message.length();
+        for (int n = 0; n < length; n++) {
+            state = next(state, message.charAt(n));
+            if (mHasOutput[state]) {
+                int remaining = 0;
+                for (int w = 0; w < mNumWords; w++) {
+                    found[w] |= mOutputs[state * mNumWords + w];
+                    remaining += Long.bitCount(mAllFound[w] & ~found[w]);
+                }
+                if (remaining == 0) {
+                    return true;
+                }
+            }
+        }
+        return matchesMissing(message, found);
+    }
+
+    /**
+     * {@link #matches(CharSequence)} for up to 64 keywords, the found set is a single long.
+     */
+    private boolean matchesSingleWord(CharSequence message) {
+        long allFound = mAllFound[0];
+        long found = 0;
+        int state = 0;
+        int length = message.length();
+        for (int n = 0; n < length; n++) {
+            state = next(state, message.charAt(n));
+            if (mHasOutput[state]) {
+                found |= mOutputs[state];
+                if (found == allFound) {
+                    return true;
+                }
+            }
+        }
+        for (int n = 0; n < mKeywords.length; n++) {
+            if ((found & (1L << n)) == 0 && matchesPattern(n, message) == false) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the keywords not found as substrings match the whole message as
+     *         regular expressions.
+     */
+    private boolean matchesMissing(CharSequence message, long[] found) {
+        for (int n = 0; n < mKeywords.length; n++) {
+            if ((found[n >> 6] & (1L << n)) != 0) {
+                continue;
+            }
+            if (matchesPattern(n, message) == false) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matchesPattern(int keyword, CharSequence message) {
+        return mPatterns[keyword] != null && mPatterns[keyword].matcher(message).matches();
+    }
+
+    private int next(int state, char c) {
+        if (c < ASCII_SIZE) {
+            return mAsciiNext[state * ASCII_SIZE + c];
+        }
+        while (true) {
+            int index = Arrays.binarySearch(mChildChars[state], c);
+            if (index >= 0) {
+                return mChildStates[state][index];
+            }
+            if (state == 0) {
+                return 0;
+            }
+            state = mFail[state];
+        }
+    }
+
+    private static boolean isRegex(String keyword) {
+        for (int n = 0; n < keyword.length(); n++) {
+            if (REGEX_CHARACTERS.indexOf(keyword.charAt(n)) != -1) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.core;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper.LogMessage;
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper.LogMessageInfo;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Circular buffer of log messages stored in columns of primitive arrays.
+ * <p/>Each message gets a sequence number, increasing from 0 for the whole session. The slot
+ * of a message is its sequence number modulo the capacity. The text of the messages is stored
+ * as UTF-8 in a shared circular byte arena; a message is evicted when its slot is reused or
+ * when its bytes are overwritten, whichever comes first.
+ * <p/>Messages are read through {@link Entry} flyweights, or materialized as
+ * {@link LogMessage} with {@link #get(long)}.
+ * <p/>A sparse index of the times, one entry per {@link #TIME_INDEX_INTERVAL} messages, finds
+ * the message of a time with {@link #findSeq(long)} by a binary search.
+ */
+public class LogBuffer {
+    /** default size of the arena, per slot */
+    public static final int DEFAULT_BYTES_PER_MESSAGE = 96;
+    /** number of messages per entry of the time index */
+    public static final int TIME_INDEX_INTERVAL = 64;
+
+    private static final LogLevel[] sLevels = new LogLevel[8];
+    static {
+        for (LogLevel level : LogLevel.values()) {
+            sLevels[level.getPriority()] = level;
+        }
+    }
+
+    private final int mCapacity;
+    private final SymbolTable mTags;
+    private final SymbolTable mPids;
+
+    /** epoch time in nanoseconds, 0 if unknown */
+    private final long[] mTimestamps;
+    private final int[] mPidColumn;
+    private final int[] mTids;
+    private final byte[] mLevels;
+    private final int[] mTagIds;
+    /** logical offset of the message in the arena, the physical one is modulo its length */
+    private final long[] mMessageOffsets;
+    private final int[] mMessageLengths;
+
+    /**
+     * for each block of TIME_INDEX_INTERVAL sequence numbers, the latest timestamp of the
+     * session up to the end of the block, circular. Increasing even when the messages are not.
+     */
+    private final long[] mBlockTimestamps;
+    private long mLatestTimestamp = 0;
+
+    private final byte[] mArena;
+    private long mArenaEnd = 0;
+
+    private long mFirstSeq = 0;
+    private long mNextSeq = 0;
+
+    private final CharsetEncoder mEncoder = Charset.forName("UTF-8").newEncoder() //$NON-NLS-1$
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private byte[] mEncodeBuffer = new byte[256];
+    /** shared by the entries, under the lock of the buffer */
+    private final CharsetDecoder mDecoder = Charset.forName("UTF-8").newDecoder() //$NON-NLS-1$
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private CharBuffer mDecodeBuffer = CharBuffer.allocate(256);
+    /** entry of {@link #get(long)}, under the lock of the buffer */
+    private final Entry mEntry = new Entry();
+
+    /**
+     * @param capacity max number of messages.
+     * @param arenaSize size in bytes of the arena for the message texts.
+     * @param tags the session tags.
+     * @param pids the session pid strings.
+     */
+    public LogBuffer(int capacity, int arenaSize, SymbolTable tags, SymbolTable pids) {
+        mCapacity = capacity;
+        mTags = tags;
+        mPids = pids;
+        mTimestamps = new long[capacity];
+        mPidColumn = new int[capacity];
+        mTids = new int[capacity];
+        mLevels = new byte[capacity];
+        mTagIds = new int[capacity];
+        mMessageOffsets = new long[capacity];
+        mMessageLengths = new int[capacity];
+        mBlockTimestamps = new long[capacity / TIME_INDEX_INTERVAL + 2];
+        mArena = new byte[arenaSize];
+    }
+
+    /**
+     * @return max number of messages.
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Appends a message, evicting the oldest ones if needed.
+     * @param info
+     * @param message
+     * @return the sequence number of the message.
+     */
+    public synchronized long append(LogMessageInfo info, String message) {
+        int length = encode(message);
+        if (length > mArena.length) {
+            length = mArena.length;
+        }
+
+        // messages are never split at the end of the arena.
+        long offset = mArenaEnd;
+        int physical = (int) (offset % mArena.length);
+        if (physical + length > mArena.length) {
+            offset += mArena.length - physical;
+            physical = 0;
+        }
+        long end = offset + length;
+
+        while (mNextSeq > mFirstSeq && (mNextSeq - mFirstSeq == mCapacity
+                || end - mMessageOffsets[slot(mFirstSeq)] > mArena.length)) {
+            mFirstSeq++;
+        }
+
+        long seq = mNextSeq;
+        int slot = slot(seq);
+        mTimestamps[slot] = info.timestamp * 1000000L + info.nanos % 1000000;
+        if (info.timestamp != 0 && mTimestamps[slot] > mLatestTimestamp) {
+            mLatestTimestamp = mTimestamps[slot];
+        }
+        mBlockTimestamps[blockSlot(seq / TIME_INDEX_INTERVAL)] = mLatestTimestamp;
+        mPidColumn[slot] = info.pid;
+        mTids[slot] = info.tid;
+        mLevels[slot] = (byte) info.logLevel.getPriority();
+        mTagIds[slot] = info.tagId != SymbolTable.NO_ID ? info.tagId : mTags.intern(info.tag);
+        mMessageOffsets[slot] = offset;
+        mMessageLengths[slot] = length;
+        System.arraycopy(mEncodeBuffer, 0, mArena, physical, length);
+
+        mArenaEnd = end;
+        mNextSeq = seq + 1;
+        return seq;
+    }
+
+    /**
+     * @return the sequence number of the oldest message still in the buffer.
+     */
+    public synchronized long getFirstSeq() {
+        return mFirstSeq;
+    }
+
+    /**
+     * @return the sequence number the next message will get.
+     */
+    public synchronized long getNextSeq() {
+        return mNextSeq;
+    }
+
+    /**
+     * Finds the first message at or after a time. The messages are expected in the order of
+     * their times, a message older than one before it can be missed.
+     * @param timestamp milliseconds since the epoch.
+     * @return the sequence number of the message, {@link #getNextSeq()} if all the messages
+     * of the buffer are older.
+     */
+    public synchronized long findSeq(long timestamp) {
+        if (mNextSeq == mFirstSeq) {
+            return mNextSeq;
+        }
+        long nanos = timestamp * 1000000L;
+
+        // the first block reaching the time.
+        long low = mFirstSeq / TIME_INDEX_INTERVAL;
+        long high = (mNextSeq - 1) / TIME_INDEX_INTERVAL;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            if (mBlockTimestamps[blockSlot(mid)] < nanos) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        for (long seq = Math.max(low * TIME_INDEX_INTERVAL, mFirstSeq); seq < mNextSeq; seq++) {
+            if (mTimestamps[slot(seq)] >= nanos) {
+                return seq;
+            }
+        }
+        return mNextSeq;
+    }
+
+    /**
+     * @return the number of messages in the buffer.
+     */
+    public synchronized int size() {
+        return (int) (mNextSeq - mFirstSeq);
+    }
+
+    /**
+     * @return the heap size of the columns and the arena, allocated when the buffer is
+     *         created whatever the number of messages.
+     */
+    public long getHeapBytes() {
+        long perMessage = 8 + 4 + 4 + 1 + 4 + 8 + 4;
+        return mCapacity * perMessage + mBlockTimestamps.length * 8L + mArena.length;
+    }
+
+    /**
+     * @param seq
+     * @return true if the message is still in the buffer.
+     */
+    public synchronized boolean contains(long seq) {
+        return seq >= mFirstSeq && seq < mNextSeq;
+    }
+
+    /**
+     * Materializes a message.
+     * @param seq
+     * @return the message, or null if it isn't in the buffer anymore.
+     */
+    public synchronized LogMessage get(long seq) {
+        if (mEntry.moveTo(seq) == false) {
+            return null;
+        }
+        return mEntry.toLogMessage();
+    }
+
+    /**
+     * @return a new flyweight reading this buffer.
+     */
+    public Entry newEntry() {
+        return new Entry();
+    }
+
+    private int slot(long seq) {
+        return (int) (seq % mCapacity);
+    }
+
+    private int blockSlot(long block) {
+        return (int) (block % mBlockTimestamps.length);
+    }
+
+    private int encode(String message) {
+        int length = message.length();
+        if (mEncodeBuffer.length < length * 3) {
+            mEncodeBuffer = new byte[Math.max(length * 3, mEncodeBuffer.length * 2)];
+        }
+
+        // plain ASCII messages are the common case and don't need the encoder.
+        int n = 0;
+        while (n < length) {
+            char c = message.charAt(n);
+            if (c >= 0x80) {
+                break;
+            }
+            mEncodeBuffer[n++] = (byte) c;
+        }
+        if (n == length) {
+            return length;
+        }
+
+        ByteBuffer out = ByteBuffer.wrap(mEncodeBuffer);
+        mEncoder.reset();
+        mEncoder.encode(CharBuffer.wrap(message), out, true);
+        mEncoder.flush(out);
+        return out.position();
+    }
+
+    /**
+     * Flyweight view of one message of the buffer.
+     * <p/>The columns are copied when the entry is moved to a message, the text is only
+     * decoded when it is asked for, by the decoder of the buffer. An entry must only be used
+     * by one thread.
+     */
+    public final class Entry {
+        private long mSeq = -1;
+        private long mTimestamp;
+        private int mPid;
+        private int mTid;
+        private int mLevel;
+        private int mTagId;
+        private String mMessage;
+        private byte[] mBytes = new byte[256];
+        private int mLength;
+        private LogTime mLogTime;
+
+        private Entry() {
+        }
+
+        /**
+         * Moves the view to a message.
+         * @param seq
+         * @return false if the message isn't in the buffer anymore.
+         */
+        public boolean moveTo(long seq) {
+            synchronized (LogBuffer.this) {
+                if (seq < mFirstSeq || seq >= mNextSeq) {
+                    mSeq = -1;
+                    return false;
+                }
+                int slot = slot(seq);
+                mSeq = seq;
+                mTimestamp = mTimestamps[slot];
+                mPid = mPidColumn[slot];
+                mTid = mTids[slot];
+                mLevel = mLevels[slot];
+                mTagId = mTagIds[slot];
+                mLength = mMessageLengths[slot];
+                if (mBytes.length < mLength) {
+                    mBytes = new byte[Math.max(mLength, mBytes.length * 2)];
+                }
+                int physical = (int) (mMessageOffsets[slot] % mArena.length);
+                System.arraycopy(mArena, physical, mBytes, 0, mLength);
+                mMessage = null;
+                return true;
+            }
+        }
+
+        public long getSeq() {
+            return mSeq;
+        }
+
+        /** @return epoch time in milliseconds, 0 if unknown. */
+        public long getTimestamp() {
+            return mTimestamp / 1000000L;
+        }
+
+        /** @return epoch time in nanoseconds, 0 if unknown. */
+        public long getTimestampNanos() {
+            return mTimestamp;
+        }
+
+        /** @return the local time as printed by logcat, see {@link LogTime#format(long)}. */
+        public String getTime() {
+            if (mLogTime == null) {
+                mLogTime = new LogTime();
+            }
+            return mLogTime.format(getTimestamp());
+        }
+
+        public int getPid() {
+            return mPid;
+        }
+
+        public String getPidString() {
+            return mPids.get(mPids.intern(mPid));
+        }
+
+        public int getTid() {
+            return mTid;
+        }
+
+        public LogLevel getLogLevel() {
+            return sLevels[mLevel];
+        }
+
+        /** @return the priority of the level, as in {@link LogLevel#getPriority()}. */
+        public int getPriority() {
+            return mLevel;
+        }
+
+        public int getTagId() {
+            return mTagId;
+        }
+
+        public String getTag() {
+            return mTags.get(mTagId);
+        }
+
+        /** @return the UTF-8 bytes of the message, valid up to {@link #getMessageLength()}. */
+        public byte[] getMessageBytes() {
+            return mBytes;
+        }
+
+        public int getMessageLength() {
+            return mLength;
+        }
+
+        public String getMessage() {
+            if (mMessage == null) {
+                synchronized (LogBuffer.this) {
+                    if (mDecodeBuffer.capacity() < mLength) {
+                        mDecodeBuffer = CharBuffer.allocate(mLength);
+                    }
+                    mDecodeBuffer.clear();
+                    mDecoder.reset();
+                    mDecoder.decode(ByteBuffer.wrap(mBytes, 0, mLength), mDecodeBuffer, true);
+                    mDecoder.flush(mDecodeBuffer);
+                    mMessage = new String(mDecodeBuffer.array(), 0, mDecodeBuffer.position());
+                }
+            }
+            return mMessage;
+        }
+
+        /**
+         * @return a new {@link LogMessage} with the values of the current message.
+         */
+        public LogMessage toLogMessage() {
+            LogMessageInfo info = new LogMessageInfo();
+            info.timestamp = getTimestamp();
+            info.nanos = (int) (mTimestamp % 1000000000L);
+            info.time = getTime();
+            info.pid = mPid;
+            info.pidString = getPidString();
+            info.tid = mTid;
+            info.logLevel = getLogLevel();
+            info.tagId = mTagId;
+            info.tag = getTag();
+
+            LogMessage message = new LogMessage();
+            message.seq = mSeq;
+            message.data = info;
+            message.msg = getMessage();
+            return message;
+        }
+    }
+}
@@ -19,37 +19,92 @@ package com.drsuperchamp.android.tools.logcat.core;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.Log.LogLevel;
 import com.drsuperchamp.android.tools.logcat.core.AdbWrapper.ShellOutputReceiver;
-
-import java.io.UnsupportedEncodingException;
+import com.drsuperchamp.android.tools.logcat.core.IngestPipeline.DiscontinuityListener;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.util.ArrayList;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.PatternSyntaxException;
 
 public class LogCatWrapper {
+    /** shell command for the text capture, see {@link #getShellOutputReceiver()} */
+    public static final String LOGCAT_COMMAND = "logcat -v long"; //$NON-NLS-1$
+    /** shell command for the binary capture, see {@link #getBinaryShellOutputReceiver()} */
+    public static final String LOGCAT_BINARY_COMMAND = "logcat -B"; //$NON-NLS-1$
+
+    /**
+     * Listener for the changes of the filters, or of their criteria.
+     */
+    public static interface FiltersListener {
+        void filtersChanged(LogCatWrapper logcat);
+    }
+
     private final int STRING_BUFFER_LENGTH;
-    private static final Pattern sHeaderPattern = Pattern.compile(
-            "^\\[\\s(\\d\\d-\\d\\d\\s\\d\\d:\\d\\d:\\d\\d\\.\\d+)" + //$NON-NLS-1$
-            "\\s+(\\d*):\\s*([0-9a-fA-F]+)\\s+([VDIWEF])/(.*)\\]$"); //$NON-NLS-1$
-    private LogMessage[] mBuffer;
-    private int mBufferEnd;
-    private int mBufferStart;
+    private LogBuffer mBuffer;
+    /** history evicted from mBuffer, or null */
+    private SegmentedLogStore mStore = null;
+    /** saved session shown before the buffer, or null */
+    private SessionFile.Reader mSessionFile = null;
+    /** index of the messages of mBuffer, or null */
+    private SearchIndex mSearchIndex = null;
     private LogFilter mDefaultFilter = null;
     private LogFilter[] mFilters = null;
+    /** index of mFilters, null when it must be rebuilt */
+    private volatile FilterDispatcher mDispatcher = null;
+    /** incremented when the filters change, guarded by mDispatcherLock */
+    private int mFiltersVersion = 0;
+    private final Object mDispatcherLock = new Object();
     private LogColors mDefaultFilterColor = null;
     private LogMessageInfo mLastMessageInfo = null;
+    /** messages added since the filters were flushed */
+    private int mUnflushedCount = 0;
+    private final SymbolTable mTags = new SymbolTable();
+    private final SymbolTable mPids = new SymbolTable();
+    private final LogHeaderParser mHeaderParser = new LogHeaderParser(mTags, mPids);
+    private LogMessageInfo mParsedInfo = new LogMessageInfo();
     private String mDevSerialNumber = null;
     private LogCatOutputReceiver mReceiver = null;
+    private LogCatBinaryReceiver mBinaryReceiver = null;
+    private final CaptureMetrics mMetrics = new CaptureMetrics(this);
+    private volatile FiltersListener mFiltersListener = null;
+    /**
+     * time in nanoseconds the restarted command resumes at, 0 if none: older messages were
+     * received before the restart.
+     */
+    private long mResumeTime = 0;
+    /** messages of mResumeTime received before the restart, not received again yet */
+    private List<LogMessage> mResumeSeen = null;
 
     /**
      * @param devSerialNumber
      * @param maxLogsToManage
      */
     public LogCatWrapper(String devSerialNumber, int maxLogsToManage) {
+        this(devSerialNumber, maxLogsToManage,
+                (long) maxLogsToManage * LogBuffer.DEFAULT_BYTES_PER_MESSAGE);
+    }
+
+    /**
+     * @param devSerialNumber
+     * @param maxLogsToManage
+     * @param maxMessageBytes size of the storage for the message texts, older messages are
+     *        evicted when it is full even if there are less than maxLogsToManage.
+     */
+    public LogCatWrapper(String devSerialNumber, int maxLogsToManage, long maxMessageBytes) {
         STRING_BUFFER_LENGTH = maxLogsToManage;
-        mBuffer = new LogMessage[STRING_BUFFER_LENGTH];
-        mBufferStart = -1;
-        mBufferEnd = -1;
+        mBuffer = new LogBuffer(STRING_BUFFER_LENGTH,
+                (int) Math.min(maxMessageBytes, Integer.MAX_VALUE - 8), mTags, mPids);
 
         LogColors color = new LogColors();
         color.infoColor = new Color(0, 127, 0);
@@ -60,8 +115,10 @@ public class LogCatWrapper {
         mDefaultFilterColor = color;
         mDefaultFilter = new LogFilter("Log");
         mDefaultFilter.setColors(mDefaultFilterColor);
+        mDefaultFilter.attach(this);
         mDevSerialNumber = new String(devSerialNumber);
         mReceiver = new LogCatOutputReceiver();
+        mBinaryReceiver = new LogCatBinaryReceiver();
     }
 
     /**
@@ -78,6 +135,219 @@ public class LogCatWrapper {
         return mReceiver;
     }
 
+    /**
+     * Set whether '\n' alone ends the lines of the text output, as in the output of
+     * "adb logcat" piped to a file. The shell of the device ends them with "\r\n".
+     * @param lf
+     */
+    public void setLfLineEnds(boolean lf) {
+        mReceiver.mLfLineEnds = lf;
+    }
+
+    /**
+     * @return the receiver for the output of {@link #LOGCAT_BINARY_COMMAND}.
+     */
+    public ShellOutputReceiver getBinaryShellOutputReceiver() {
+        return mBinaryReceiver;
+    }
+
+    /**
+     * @param filterName
+     * @return the colors of the filter, or null if there is no such filter.
+     */
+    public LogColors getFilterColors(String filterName) {
+        if (mDefaultFilter.getName().equals(filterName)) {
+            return mDefaultFilter.getColors();
+        }
+        if (mFilters != null) {
+            for (LogFilter f : mFilters) {
+                if (f.getName().equals(filterName)) {
+                    return f.getColors();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the buffer holding the messages of this session.
+     */
+    public LogBuffer getLogBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * @return the metrics of the capture of this session.
+     */
+    public CaptureMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * @return the default filter followed by the other filters.
+     */
+    LogFilter[] getAllFilters() {
+        LogFilter[] filters = mFilters;
+        if (filters == null) {
+            return new LogFilter[] { mDefaultFilter };
+        }
+        LogFilter[] all = new LogFilter[filters.length + 1];
+        all[0] = mDefaultFilter;
+        System.arraycopy(filters, 0, all, 1, filters.length);
+        return all;
+    }
+
+    /**
+     * Keeps every message from now on in the store, so the history evicted from the buffer can
+     * still be read with {@link #getMessage(long)}.
+     * @param store the store, or null to stop storing.
+     */
+    public void setLogStore(SegmentedLogStore store) {
+        mStore = store;
+    }
+
+    /**
+     * @return the store of the history, or null.
+     */
+    public SegmentedLogStore getLogStore() {
+        return mStore;
+    }
+
+    /**
+     * Indexes every message from now on, for {@link SearchIndex#search(String)}.
+     * @param index an index made for {@link #getTags()}, or null to stop indexing.
+     */
+    public void setSearchIndex(SearchIndex index) {
+        mSearchIndex = index;
+    }
+
+    /**
+     * @return the index of the messages in the buffer, or null.
+     */
+    public SearchIndex getSearchIndex() {
+        return mSearchIndex;
+    }
+
+    /**
+     * @param seq sequence number of a message.
+     * @return the message from the buffer or from the store, or null if it is in neither.
+     */
+    public LogMessage getMessage(long seq) {
+        LogMessage message = mBuffer.get(seq);
+        SegmentedLogStore store = mStore;
+        if (message == null && store != null) {
+            message = store.get(seq);
+        }
+        SessionFile.Reader file = mSessionFile;
+        if (message == null && file != null) {
+            message = file.get(seq);
+        }
+        return message;
+    }
+
+    /**
+     * Reads the messages of a saved session through {@link #getMessage(long)}.
+     * @param file the opened session, or null.
+     */
+    public void setSessionFile(SessionFile.Reader file) {
+        mSessionFile = file;
+    }
+
+    /**
+     * @return the saved session, or null.
+     */
+    public SessionFile.Reader getSessionFile() {
+        return mSessionFile;
+    }
+
+    /**
+     * @return the sequence number of the oldest message readable with
+     *         {@link #getMessage(long)}, {@link #getNextSeq()} if there is none.
+     */
+    public long getFirstSeq() {
+        long firstSeq = mBuffer.size() > 0 ? mBuffer.getFirstSeq() : Long.MAX_VALUE;
+        SegmentedLogStore store = mStore;
+        if (store != null && store.getFirstSeq() < store.getNextSeq()) {
+            firstSeq = Math.min(firstSeq, store.getFirstSeq());
+        }
+        SessionFile.Reader file = mSessionFile;
+        if (file != null && file.getFirstSeq() < file.getNextSeq()) {
+            firstSeq = Math.min(firstSeq, file.getFirstSeq());
+        }
+        return firstSeq == Long.MAX_VALUE ? getNextSeq() : firstSeq;
+    }
+
+    /**
+     * @return the sequence number after the newest message.
+     */
+    public long getNextSeq() {
+        SessionFile.Reader file = mSessionFile;
+        if (file != null) {
+            return Math.max(mBuffer.getNextSeq(), file.getNextSeq());
+        }
+        return mBuffer.getNextSeq();
+    }
+
+    /**
+     * Finds the first message at or after a time, in the buffer or in the store, or in the
+     * saved session if the buffer is empty.
+     * @param timestamp milliseconds since the epoch.
+     * @return the sequence number of the message, the next sequence number if all the
+     * messages are older.
+     * @see LogBuffer#findSeq(long)
+     */
+    public long findSeq(long timestamp) {
+        SessionFile.Reader file = mSessionFile;
+        if (file != null && mBuffer.size() == 0) {
+            return file.findSeq(timestamp);
+        }
+        long seq = mBuffer.findSeq(timestamp);
+        SegmentedLogStore store = mStore;
+        if (store == null || seq > mBuffer.getFirstSeq()) {
+            return seq;
+        }
+
+        // the time is before the buffer, the history is read by a binary search.
+        long low = store.getFirstSeq();
+        long high = Math.min(seq, store.getNextSeq()) - 1;
+        if (low > high) {
+            return seq;
+        }
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            LogMessage message = store.get(mid);
+            if (message == null || message.data.timestamp < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the tags seen in this session.
+     */
+    public SymbolTable getTags() {
+        return mTags;
+    }
+
+    /**
+     * Adds a filter, made with {@link LogFilter#loadFromString(String)} for instance.
+     * @param filter a filter not added to a wrapper yet.
+     * @param outInterface
+     */
+    public void addFilter(LogFilter filter, FilterOutput outInterface) {
+        filter.attach(this);
+        if (filter.getColors() == null) {
+            filter.setColors(mDefaultFilterColor);
+        }
+        if (outInterface != null)
+            filter.setOutput(outInterface);
+
+        addFilter(filter);
+    }
+
     /**
      * @param filterName
      * @param tag
@@ -89,6 +359,7 @@ public class LogCatWrapper {
     public void addFilter(String filterName, String tag, String pid, String logLevel,
             LogColors colors, FilterOutput outInterface) {
         LogFilter newFilter = new LogFilter(filterName);
+        newFilter.attach(this);
         newFilter.setTagMode(tag);
         if (pid != null && pid.length() > 0) {
             newFilter.setPidMode(Integer.parseInt(pid));
@@ -125,6 +396,13 @@ public class LogCatWrapper {
             newFilter.setColors(mDefaultFilterColor);
         }
 
+        addFilter(newFilter);
+
+        if (outInterface != null)
+            newFilter.setOutput(outInterface);
+    }
+
+    private void addFilter(LogFilter newFilter) {
         // add it to the array.
         if (mFilters != null && mFilters.length > 0) {
             LogFilter[] newFilters = new LogFilter[mFilters.length+1];
@@ -136,8 +414,219 @@ public class LogCatWrapper {
             mFilters[0] = newFilter;
         }
 
-        if (outInterface != null)
-            newFilter.setOutput(outInterface);
+        filtersChanged();
+    }
+
+    /**
+     * @return the info given to the messages found before any header.
+     */
+    LogMessageInfo newUnknownInfo() {
+        LogMessageInfo info = new LogMessageInfo();
+        info.time = "??-?? ??:??:??.???"; //$NON-NLS1$
+        info.pidString = mPids.get(mPids.intern("<unknown>")); //$NON-NLS1$
+        info.pid = 0;
+        info.logLevel = LogLevel.INFO;
+        info.tagId = mTags.intern("<unknown>"); //$NON-NLS1$
+        info.tag = mTags.get(info.tagId);
+        return info;
+    }
+
+    /**
+     * @return the pid strings seen in this session.
+     */
+    SymbolTable getPids() {
+        return mPids;
+    }
+
+    /**
+     * Adds messages parsed elsewhere, in order, and flushes the filters.
+     * @param messages
+     */
+    void addParsedMessages(List<LogMessage> messages) {
+        for (LogMessage msg : messages) {
+            processNewMessage(msg.data, msg.msg);
+        }
+        flushFilters();
+    }
+
+    /**
+     * @return the line with its tabs replaced by 4 spaces.
+     */
+    static String expandTabs(String line) {
+        if (line.indexOf('\t') == -1) {
+            return line;
+        }
+        return line.replace("\t", "    "); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * Called when the filters or their criteria changed.
+     */
+    void filtersChanged() {
+        synchronized (mDispatcherLock) {
+            mFiltersVersion++;
+            mDispatcher = null;
+        }
+        FiltersListener listener = mFiltersListener;
+        if (listener != null) {
+            listener.filtersChanged(this);
+        }
+    }
+
+    /**
+     * @param listener called when the filters or their criteria change, from the thread
+     *        changing them.
+     */
+    public void setFiltersListener(FiltersListener listener) {
+        mFiltersListener = listener;
+    }
+
+    /**
+     * Translates the criteria of the filters into logcat arguments, so the device only sends
+     * the messages they can accept: "--pid=PID" if they all filter the same pid, then
+     * "TAG:LEVEL" per tag and "*:S", or "*:LEVEL" for the filters without a tag.
+     * The temp criteria are not pushed down, they are changed too often. The default filter
+     * only gets the messages of the other filters with these arguments.
+     * @return the arguments, or null if every message is needed.
+     */
+    public String getFilterspec() {
+        LogFilter[] filters = mFilters;
+        if (filters == null || filters.length == 0) {
+            return null;
+        }
+        int pid = filters[0].getPidFilter();
+        int wildcardLevel = Integer.MAX_VALUE;
+        Map<String, Integer> tagLevels = new LinkedHashMap<String, Integer>();
+        for (LogFilter f : filters) {
+            if (f.getPidFilter() != pid) {
+                pid = -1;
+            }
+            int level = f.getLogLevel();
+            if (level == -1) {
+                level = LogLevel.VERBOSE.getPriority();
+            }
+            String tag = f.getTagFilter();
+            if (tag == null || isFilterspecTag(tag) == false) {
+                wildcardLevel = Math.min(wildcardLevel, level);
+            } else {
+                Integer tagLevel = tagLevels.get(tag);
+                tagLevels.put(tag, tagLevel == null ? level : Math.min(tagLevel, level));
+            }
+        }
+        if (pid == -1 && wildcardLevel <= LogLevel.VERBOSE.getPriority()) {
+            return null;
+        }
+
+        StringBuilder spec = new StringBuilder();
+        if (pid != -1) {
+            spec.append("--pid=").append(pid).append(' '); //$NON-NLS-1$
+        }
+        for (Map.Entry<String, Integer> tagLevel : tagLevels.entrySet()) {
+            if (tagLevel.getValue() < wildcardLevel) {
+                spec.append(tagLevel.getKey()).append(':')
+                        .append(getFilterspecLevel(tagLevel.getValue())).append(' ');
+            }
+        }
+        spec.append("*:").append(wildcardLevel == Integer.MAX_VALUE ? 'S' //$NON-NLS-1$
+                : getFilterspecLevel(wildcardLevel));
+        return spec.toString();
+    }
+
+    /**
+     * @return true if the tag can be given to logcat as is: the tags with ':', or with
+     *         characters the shell would interpret, are filtered on the host only.
+     */
+    private static boolean isFilterspecTag(String tag) {
+        for (int n = 0; n < tag.length(); n++) {
+            char c = tag.charAt(n);
+            if (Character.isLetterOrDigit(c) == false && c != '_' && c != '.' && c != '-') {
+                return false;
+            }
+        }
+        return tag.length() > 0;
+    }
+
+    private static char getFilterspecLevel(int priority) {
+        for (LogLevel level : LogLevel.values()) {
+            if (level.getPriority() == priority) {
+                // logcat calls the assert level 'F'.
+                return level == LogLevel.ASSERT ? 'F' : level.getPriorityLetter();
+            }
+        }
+        return 'V';
+    }
+
+    /**
+     * Prepares the restart of the command at the time of the newest message, with
+     * "-T time": the next messages older than it are dropped, and so are those of the same
+     * time already received, matched by tag, pid and text. The receivers must be reset with
+     * {@link DiscontinuityListener#discontinuity()} too.
+     * <p/>The time is the one printed by the device for the text capture, logcat reads it in
+     * the time zone of the device. It is "seconds.nanoseconds" since the epoch for the binary
+     * capture, which does not depend on the time zone but needs logcat from Android 7.
+     * @param binary true if the command is {@link #LOGCAT_BINARY_COMMAND}.
+     * @return the time for -T, or null if no message has a time and the command must start
+     *         with the messages logged before.
+     */
+    String resumeAtNewest(boolean binary) {
+        mResumeTime = 0;
+        mResumeSeen = null;
+        String time;
+        if (binary) {
+            long seq = mBuffer.getNextSeq() - 1;
+            LogBuffer.Entry entry = mBuffer.newEntry();
+            if (entry.moveTo(seq) == false || entry.getTimestampNanos() == 0) {
+                return null;
+            }
+            mResumeTime = entry.getTimestampNanos();
+            time = String.format("%d.%09d", mResumeTime / 1000000000L, //$NON-NLS-1$
+                    mResumeTime % 1000000000L);
+        } else {
+            // the newest header, its message may not have been received.
+            LogMessageInfo info = mLastMessageInfo;
+            if (info == null || info.timestamp == 0) {
+                return null;
+            }
+            mResumeTime = info.timestamp * 1000000L + info.nanos % 1000000;
+            time = info.time;
+        }
+
+        // the newest messages of that time, logcat sends them again.
+        mResumeSeen = new ArrayList<LogMessage>();
+        LogBuffer.Entry entry = mBuffer.newEntry();
+        for (long seq = mBuffer.getNextSeq() - 1; entry.moveTo(seq); seq--) {
+            long timestamp = entry.getTimestampNanos();
+            if (timestamp == mResumeTime) {
+                mResumeSeen.add(entry.toLogMessage());
+            } else if (timestamp < mResumeTime) {
+                break;
+            }
+        }
+        return time;
+    }
+
+    /**
+     * @return true if the message was received before the restart of the command.
+     */
+    private boolean isResumeDuplicate(LogMessageInfo info, String message) {
+        long timestamp = info.timestamp * 1000000L + info.nanos % 1000000;
+        if (timestamp < mResumeTime) {
+            return true;
+        }
+        if (timestamp > mResumeTime) {
+            mResumeTime = 0;
+            mResumeSeen = null;
+            return false;
+        }
+        for (int n = 0; n < mResumeSeen.size(); n++) {
+            LogMessage seen = mResumeSeen.get(n);
+            if (seen.data.pid == info.pid && seen.msg.equals(message)
+                    && seen.data.tag.equals(info.tag)) {
+                mResumeSeen.remove(n);
+                return true;
+            }
+        }
+        return false;
     }
 
     protected void addLog(String []lines) {
@@ -145,112 +634,161 @@ public class LogCatWrapper {
             //Log.e("LogCat", "Receiving more lines than STRING_BUFFER_LENGTH");
         }
 
+        long startTime = System.nanoTime();
         for (String line : lines) {
-            // ignore empty lines.
-            if (line.length() <= 0)
-                continue;
-            // check for header lines.
-            Matcher matcher = sHeaderPattern.matcher(line);
-            if (matcher.matches()) {
-                // this is a header line, parse the header and keep it around.
-                mLastMessageInfo = new LogMessageInfo();
-
-                mLastMessageInfo.time = matcher.group(1);
-                mLastMessageInfo.pidString = matcher.group(2);
-                mLastMessageInfo.pid = Integer.valueOf(mLastMessageInfo.pidString);
-                mLastMessageInfo.logLevel = LogLevel.getByLetterString(matcher.group(4));
-                mLastMessageInfo.tag = matcher.group(5).trim();
-            } else {
-                // This is not a header line.
-                // Create a new LogMessage and process it.
-                LogMessage mc = new LogMessage();
-
-                if (mLastMessageInfo == null) {
-                    // The first line of output wasn't preceded
-                    // by a header line; make something up so
-                    // that users of mc.data don't NPE.
-                    mLastMessageInfo = new LogMessageInfo();
-                    mLastMessageInfo.time = "??-?? ??:??:??.???"; //$NON-NLS1$
-                    mLastMessageInfo.pidString = "<unknown>"; //$NON-NLS1$
-                    mLastMessageInfo.pid = 0;
-                    mLastMessageInfo.logLevel = LogLevel.INFO;
-                    mLastMessageInfo.tag = "<unknown>"; //$NON-NLS1$
-                }
+            addLogLine(line);
+        }
 
-                // If someone printed a log message with
-                // embedded '\n' characters, there will
-                // one header line followed by multiple text lines.
-                // Use the last header that we saw.
-                mc.data = mLastMessageInfo;
+        flushFilters();
+        mMetrics.addPacket(0, lines.length, System.nanoTime() - startTime);
+    }
 
-                // tabs seem to display as only 1 tab so we replace the leading tabs
-                // by 4 spaces.
-                mc.msg = line.replaceAll("\t", "    "); //$NON-NLS-1$ //$NON-NLS-2$
+    /**
+     * Parses a single complete line and adds it to the buffer.
+     * <p/>Filters are not flushed, see {@link #flushFilters()}.
+     * @param line
+     */
+    protected void addLogLine(String line) {
+        // ignore empty lines.
+        if (line.length() <= 0)
+            return;
+        // check for header lines.
+        if (mHeaderParser.parse(line, mParsedInfo) == LogHeaderParser.RESULT_HEADER) {
+            // this is a header line, keep it around. the previous header is reused for the
+            // next one, the messages are copied to the buffer and don't keep it.
+            LogMessageInfo previous = mLastMessageInfo;
+            mLastMessageInfo = mParsedInfo;
+            mParsedInfo = previous != null ? previous : new LogMessageInfo();
+        } else {
+            // This is not a header line.
+            if (mLastMessageInfo == null) {
+                // The first line of output wasn't preceded
+                // by a header line; make something up so
+                // that users of mc.data don't NPE.
+                mLastMessageInfo = newUnknownInfo();
+            }
 
-                // process the new LogMessage.
-                processNewMessage(mc);
+            // If someone printed a log message with
+            // embedded '\n' characters, there will
+            // one header line followed by multiple text lines.
+            // Use the last header that we saw.
+            // tabs seem to display as only 1 tab so we replace the leading tabs
+            // by 4 spaces.
+            processNewMessage(mLastMessageInfo, expandTabs(line));
+        }
+    }
+
+    /**
+     * Adds a decoded binary log entry.
+     * <p/>Messages with embedded '\n' characters are split in one message per line, all with
+     * the same info, as it is done for the text output.
+     * Filters are not flushed, see {@link #flushFilters()}.
+     * @param info
+     * @param message
+     */
+    protected void addLogEntry(LogMessageInfo info, String message) {
+        int start = 0;
+        int length = message.length();
+        while (start < length) {
+            int end = message.indexOf('\n', start);
+            if (end == -1) {
+                end = length;
             }
+            String line = message.substring(start, end).trim();
+            start = end + 1;
+            if (line.length() <= 0)
+                continue;
+
+            processNewMessage(info, expandTabs(line));
         }
+    }
 
-        // TODO:
-        // the circular buffer has been updated, let have the filter flush their
-        // display with the new messages.
+    /**
+     * The circular buffer has been updated, let have the filter flush their
+     * display with the new messages.
+     */
+    protected void flushFilters() {
+        // messages are only offered to the filters that could accept them,
+        // the evicted ones are removed from every filter here.
+        mUnflushedCount = 0;
+        long firstSeq = mBuffer.getFirstSeq();
         if (mFilters != null) {
             for (LogFilter f : mFilters) {
+                f.evict(firstSeq);
                 f.flush();
             }
         }
 
         if (mDefaultFilter != null) {
+            mDefaultFilter.evict(firstSeq);
             mDefaultFilter.flush();
         }
     }
 
-    private void processNewMessage(LogMessage newMessage) {
-        // compute the index where the message goes.
-        // was the buffer empty?
-        int messageIndex = -1;
-        if (mBufferStart == -1) {
-            messageIndex = mBufferStart = 0;
-            mBufferEnd = 1;
-        } else {
-            messageIndex = mBufferEnd;
-
-            // check we aren't overwriting start
-            if (mBufferEnd == mBufferStart) {
-                mBufferStart = (mBufferStart + 1) % STRING_BUFFER_LENGTH;
+    /**
+     * Adds a message to the buffer and offers it to the filters, which only keep its
+     * sequence number. Nothing keeps the info or the message.
+     * @param info
+     * @param message
+     */
+    private void processNewMessage(LogMessageInfo info, String message) {
+        if (mResumeTime != 0 && isResumeDuplicate(info, message)) {
+            return;
+        }
+        // the filters are indexed by tag id.
+        if (info.tagId == SymbolTable.NO_ID && info.tag != null) {
+            info.tagId = mTags.intern(info.tag);
+        }
+        // add it to the circular buffer, this evicts the oldest messages if it is full.
+        long seq = mBuffer.append(info, message);
+        long firstSeq = mBuffer.getFirstSeq();
+        SegmentedLogStore store = mStore;
+        if (store != null) {
+            try {
+                store.append(seq, info, message);
+            } catch (IOException e) {
+                Util.log(LogLevel.WARN, "Cannot store the message, history is disabled: " + e); //$NON-NLS-1$
+                mStore = null;
             }
-
-            // increment the next usable slot index
-            mBufferEnd = (mBufferEnd + 1) % STRING_BUFFER_LENGTH;
         }
-
-        LogMessage oldMessage = null;
-
-        // record the message that was there before
-        if (mBuffer[messageIndex] != null) {
-            oldMessage = mBuffer[messageIndex];
+        SearchIndex index = mSearchIndex;
+        if (index != null) {
+            index.add(seq, info, message, firstSeq);
         }
 
-        // then add the new one
-        mBuffer[messageIndex] = newMessage;
-
-        // give the new message to every filters.
-        boolean filtered = false;
-        if (mFilters != null) {
-            for (LogFilter f : mFilters) {
-                filtered |= f.addMessage(newMessage, oldMessage);
+        // give the new message to the filters that could accept it.
+        FilterDispatcher dispatcher = mDispatcher;
+        if (dispatcher == null) {
+            int version;
+            synchronized (mDispatcherLock) {
+                version = mFiltersVersion;
+            }
+            dispatcher = new FilterDispatcher(mFilters);
+            synchronized (mDispatcherLock) {
+                // the filters may have changed while the index was built from them.
+                if (version == mFiltersVersion) {
+                    mDispatcher = dispatcher;
+                }
             }
         }
+        boolean filtered = dispatcher.dispatch(seq, info, message, firstSeq);
 
         // Unlike eclipse's implementation, all filtered messages will be seen in the default filter.
         //if (filtered == false && mDefaultFilter != null) {
         if (mDefaultFilter != null) {
-            mDefaultFilter.addMessage(newMessage, oldMessage);
+            mDefaultFilter.addMessage(seq, info, message, firstSeq);
+        }
+
+        // the messages evicted before the filters are flushed are never output:
+        // flush before a large batch (a chunk of a file for instance) fills the buffer.
+        if (++mUnflushedCount >= STRING_BUFFER_LENGTH / 4) {
+            flushFilters();
         }
     }
 
     public static class LogMessage {
+        /** sequence number in the {@link LogBuffer}, -1 if not added to it. */
+        public long seq = -1;
         public LogMessageInfo data;
         public String msg;
 
@@ -268,8 +806,15 @@ public class LogCatWrapper {
         public LogLevel logLevel;
         public int pid;
         public String pidString;
+        public int tid;
         public String tag;
+        /** id of the tag in the session {@link SymbolTable}, {@link SymbolTable#NO_ID} if none */
+        public int tagId = SymbolTable.NO_ID;
         public String time;
+        /** milliseconds since the epoch, 0 if unknown */
+        public long timestamp;
+        /** nanoseconds within the second of {@link #timestamp} */
+        public int nanos;
     }
 
     public static class Color {
@@ -281,6 +826,18 @@ public class LogCatWrapper {
             this.g = g;
             this.b = b;
         }
+
+        public int getRed() {
+            return r;
+        }
+
+        public int getGreen() {
+            return g;
+        }
+
+        public int getBlue() {
+            return b;
+        }
     }
 
     public static class LogColors {
@@ -296,6 +853,10 @@ public class LogCatWrapper {
         public final static int MODE_TAG = 0x02;
         public final static int MODE_LEVEL = 0x04;
 
+        /** one message in TIMING_INTERVAL is timed, System.nanoTime() costs about an accept() */
+        private final static int TIMING_INTERVAL = 256;
+        private final static long[] NO_SEQS = new long[0];
+
         private String mName;
 
         /**
@@ -319,16 +880,18 @@ public class LogCatWrapper {
          * log tag filtering. Only valid if mMode is MODE_TAG
          */
         private String mTag;
+        private int mTagId = SymbolTable.NO_ID;
         private String mTags[] = null;
 
         /** Temp keyword filtering */
-        private String[] mTempKeywordFilters;
+        private KeywordMatcher mTempKeywordFilters;
 
         /** temp pid filtering */
         private int mTempPid = -1;
 
         /** temp tag filtering */
         private String mTempTag;
+        private int mTempTagId = SymbolTable.NO_ID;
 
         /** temp log level filtering */
         private int mTempLogLevel = -1;
@@ -338,13 +901,29 @@ public class LogCatWrapper {
 
         private boolean mTempFilteringStatus = false;
 
-        private final ArrayList<LogMessage> mMessages = new ArrayList<LogMessage>();
-        private final ArrayList<LogMessage> mNewMessages = new ArrayList<LogMessage>();
+        /** incremented at each change of the temp criteria, so stale {@link Refilter}s stop */
+        private final AtomicLong mGeneration = new AtomicLong();
+
+        /** sequence numbers of the accepted messages still in the buffer */
+        private final SeqRing mMessages = new SeqRing();
+        /** number of accepted messages not flushed yet, the newest ones of mMessages */
+        private int mNewCount = 0;
 
         private int mRemovedMessageCount = 0;
 
         private FilterOutput mOutputInterface = null;
 
+        /** the wrapper the filter was added to, null if not added yet. */
+        private LogCatWrapper mOwner = null;
+
+        private final LongAdder mOfferedCount = new LongAdder();
+        private final LongAdder mAcceptedCount = new LongAdder();
+        /** time spent in the timed calls of {@link #addMessage(long, LogMessageInfo, String, long)} */
+        private final LongAdder mTimedNanos = new LongAdder();
+        private final LongAdder mTimedCount = new LongAdder();
+        /** guarded by mMessages */
+        private int mUntimedCount = 0;
+
         /**
          * Creates a filter with a particular mode.
          * @param name The name to be displayed in the UI
@@ -400,8 +979,10 @@ public class LogCatWrapper {
 
             if ((mMode & MODE_TAG) == MODE_TAG) {
                 mTag = segments[index++];
+                mTagId = resolveTag(mTag);
             }
 
+            criteriaChanged();
             return true;
         }
 
@@ -409,6 +990,23 @@ public class LogCatWrapper {
             mOutputInterface = out;
         }
 
+        /**
+         * Attaches the filter to the wrapper whose messages it filters.
+         * Tags are then compared through their ids in the session {@link SymbolTable}.
+         */
+        void attach(LogCatWrapper owner) {
+            mOwner = owner;
+            mTagId = resolveTag(mTag);
+            mTempTagId = resolveTag(mTempTag);
+        }
+
+        private int resolveTag(String tag) {
+            if (mOwner == null || tag == null || tag.length() == 0) {
+                return SymbolTable.NO_ID;
+            }
+            return mOwner.mTags.intern(tag);
+        }
+
         /** Sets the name of the filter. */
         void setName(String name) {
             mName = name;
@@ -426,6 +1024,7 @@ public class LogCatWrapper {
          */
         public void resetFilteringMode() {
             mMode = 0;
+            criteriaChanged();
         }
 
         /**
@@ -447,6 +1046,7 @@ public class LogCatWrapper {
                 mMode &= ~MODE_PID;
             }
             mPid = pid;
+            criteriaChanged();
         }
 
         /** Returns the pid filter if valid, otherwise -1 */
@@ -463,6 +1063,8 @@ public class LogCatWrapper {
                 mMode &= ~MODE_TAG;
             }
             mTag = tag;
+            mTagId = resolveTag(tag);
+            criteriaChanged();
         }
 
         public String getTagFilter() {
@@ -478,6 +1080,7 @@ public class LogCatWrapper {
                 mMode |= MODE_LEVEL;
                 mLogLevel = level;
             }
+            criteriaChanged();
 
         }
 
@@ -490,71 +1093,180 @@ public class LogCatWrapper {
         }
 
         /**
-         * Adds a new message and optionally removes an old message.
-         * <p/>The new message is filtered through {@link #accept(LogMessage)}.
-         * Calls to {@link #flush()} from a UI thread will display it (and other
-         * pending messages) to the associated {@link Table}.
-         * @param logMessage the MessageData object to filter
+         * Adds a new message and removes the messages evicted from the buffer.
+         * <p/>The new message is filtered through {@link #accept(LogMessageInfo, String)},
+         * only its sequence number is kept. Calls to {@link #flush()} from a UI thread will
+         * display it (and other pending messages) to the associated {@link Table}.
+         * @param seq sequence number of the message in the buffer.
+         * @param info
+         * @param message
+         * @param firstSeq sequence number of the oldest message still in the buffer.
          * @return true if the message was accepted.
          */
-        public boolean addMessage(LogMessage newMessage, LogMessage oldMessage) {
+        public boolean addMessage(long seq, LogMessageInfo info, String message, long firstSeq) {
             synchronized (mMessages) {
-                if (oldMessage != null) {
-                    int index = mMessages.indexOf(oldMessage);
-                    if (index != -1) {
-                        // TODO check that index will always be -1 or 0, as only the oldest message is ever removed.
-                        mMessages.remove(index);
-                        mRemovedMessageCount++;
-                    }
-
-                    // now we look for it in mNewMessages. This can happen if the new message is added
-                    // and then removed because too many messages are added between calls to #flush()
-                    index = mNewMessages.indexOf(oldMessage);
-                    if (index != -1) {
-                        // TODO check that index will always be -1 or 0, as only the oldest message is ever removed.
-                        mNewMessages.remove(index);
-                    }
+                boolean timed = ++mUntimedCount == TIMING_INTERVAL;
+                long startTime = 0;
+                if (timed) {
+                    mUntimedCount = 0;
+                    startTime = System.nanoTime();
                 }
 
-                boolean filter = accept(newMessage);
+                evict(firstSeq);
+
+                boolean filter = accept(info, message);
 
                 if (filter) {
                     // at this point the message is accepted, we add it to the list
-                    mMessages.add(newMessage);
-                    mNewMessages.add(newMessage);
+                    mMessages.add(seq);
+                    mNewCount++;
+                    mAcceptedCount.increment();
                 }
+                mOfferedCount.increment();
 
+                if (timed) {
+                    mTimedNanos.add(System.nanoTime() - startTime);
+                    mTimedCount.increment();
+                }
                 return filter;
             }
         }
 
+        /**
+         * @return the number of messages given to
+         *         {@link #addMessage(long, LogMessageInfo, String, long)}.
+         */
+        public long getOfferedCount() {
+            return mOfferedCount.sum();
+        }
+
+        /**
+         * @return the number of messages accepted by
+         *         {@link #addMessage(long, LogMessageInfo, String, long)}.
+         */
+        public long getAcceptedCount() {
+            return mAcceptedCount.sum();
+        }
+
+        /**
+         * @return the mean time taken by {@link #addMessage(long, LogMessageInfo, String, long)},
+         *         measured on a sample of the messages.
+         */
+        public double getNanosPerMessage() {
+            long count = mTimedCount.sum();
+            return count == 0 ? 0 : (double) mTimedNanos.sum() / count;
+        }
+
+        /**
+         * Removes the messages evicted from the buffer.
+         * @param firstSeq sequence number of the oldest message still in the buffer.
+         */
+        void evict(long firstSeq) {
+            synchronized (mMessages) {
+                // only the oldest messages are ever removed, they are at the head of the ring.
+                while (mMessages.isEmpty() == false && mMessages.first() < firstSeq) {
+                    // this can happen if the new message is added and then removed
+                    // because too many messages are added between calls to #flush()
+                    if (mMessages.size() <= mNewCount) {
+                        mNewCount--;
+                    } else {
+                        mRemovedMessageCount++;
+                    }
+                    mMessages.removeFirst();
+                }
+            }
+        }
+
+        /**
+         * @return the tag id a message must have to be accepted, {@link SymbolTable#NO_ID}
+         *         if any tag is accepted.
+         */
+        int getDispatchTagId() {
+            if ((mMode & MODE_TAG) == MODE_TAG) {
+                return mTagId;
+            }
+            if (mTempTag != null && mTempTag.length() > 0) {
+                return mTempTagId;
+            }
+            return SymbolTable.NO_ID;
+        }
+
+        /**
+         * @return the pid a message must have to be accepted, -1 if any pid is accepted.
+         */
+        int getDispatchPid() {
+            if ((mMode & MODE_PID) == MODE_PID) {
+                return mPid;
+            }
+            return mTempPid;
+        }
+
+        /**
+         * @return the lowest level priority accepted.
+         */
+        int getMinAcceptedLevel() {
+            if (mTempLogLevel != -1) {
+                return mTempLogLevel;
+            }
+            if ((mMode & MODE_LEVEL) == MODE_LEVEL) {
+                return mLogLevel;
+            }
+            return 0;
+        }
+
+        private void criteriaChanged() {
+            if (mOwner != null) {
+                mOwner.filtersChanged();
+            }
+        }
+
         /**
          * Removes all the items in the filter and its {@link Table}.
          */
         public void clear() {
-            mRemovedMessageCount = 0;
-            mNewMessages.clear();
-            mMessages.clear();
+            synchronized (mMessages) {
+                mRemovedMessageCount = 0;
+                mNewCount = 0;
+                mMessages.clear();
+            }
         }
 
         /**
          * Filters a message.
-         * @param logMessage the Message
+         * @param data the header of the message
+         * @param message
          * @return true if the message is accepted by the filter.
          */
-        boolean accept(LogMessage logMessage) {
-            // do the regular filtering now
-            if ((mMode & MODE_PID) == MODE_PID && mPid != logMessage.data.pid) {
+        boolean accept(LogMessageInfo data, String message) {
+            if (acceptHeader(data.pid, data.tagId, data.tag, data.logLevel.getPriority()) == false) {
+                return false;
+            }
+            // do the temp keyword filtering last, it reads the whole message.
+            return mTempKeywordFilters == null || mTempKeywordFilters.matches(message);
+        }
+
+        /**
+         * Filters a message of the buffer, its text is only decoded if there are keywords.
+         * @param entry
+         * @return true if the message is accepted by the filter.
+         */
+        boolean accept(LogBuffer.Entry entry) {
+            if (acceptHeader(entry.getPid(), entry.getTagId(), entry.getTag(),
+                    entry.getPriority()) == false) {
                 return false;
             }
+            return mTempKeywordFilters == null || mTempKeywordFilters.matches(entry.getMessage());
+        }
 
-            if ((mMode & MODE_TAG) == MODE_TAG && (
-                    logMessage.data.tag == null ||
-                    logMessage.data.tag.equals(mTag) == false)) {
+        private boolean acceptHeader(int pid, int tagId, String tag, int msgLogLevel) {
+            // do the regular filtering now
+            if ((mMode & MODE_PID) == MODE_PID && mPid != pid) {
                 return false;
             }
 
-            int msgLogLevel = logMessage.data.logLevel.getPriority();
+            if ((mMode & MODE_TAG) == MODE_TAG && isSameTag(tagId, tag, mTag, mTagId) == false) {
+                return false;
+            }
 
             // test the temp log filtering first, as it replaces the old one
             if (mTempLogLevel != -1) {
@@ -567,28 +1279,12 @@ public class LogCatWrapper {
             }
 
             // do the temp filtering now.
-            if (mTempKeywordFilters != null) {
-                String msg = logMessage.msg;
-
-                for (String kw : mTempKeywordFilters) {
-                    try {
-                        if (msg.contains(kw) == false && msg.matches(kw) == false) {
-                            return false;
-                        }
-                    } catch (PatternSyntaxException e) {
-                        // if the string is not a valid regular expression,
-                        // this exception is thrown.
-                        return false;
-                    }
-                }
-            }
-
-            if (mTempPid != -1 && mTempPid != logMessage.data.pid) {
+            if (mTempPid != -1 && mTempPid != pid) {
                return false;
             }
 
             if (mTempTag != null && mTempTag.length() > 0) {
-                if (mTempTag.equals(logMessage.data.tag) == false) {
+                if (isSameTag(tagId, tag, mTempTag, mTempTagId) == false) {
                     return false;
                 }
             }
@@ -596,6 +1292,13 @@ public class LogCatWrapper {
             return true;
         }
 
+        private static boolean isSameTag(int msgTagId, String msgTag, String tag, int tagId) {
+            if (tagId != SymbolTable.NO_ID && msgTagId != SymbolTable.NO_ID) {
+                return msgTagId == tagId;
+            }
+            return msgTag != null && msgTag.equals(tag);
+        }
+
         /**
          * Takes all the accepted messages and display them.
          * This must be called from a UI thread.
@@ -672,29 +1375,57 @@ public class LogCatWrapper {
 //                }
 //            }
 //
-            if (mOutputInterface != null) {
-                mOutputInterface.out(mName, mNewMessages.toArray(new LogMessage[mNewMessages.size()]), mRemovedMessageCount);
+            synchronized (mMessages) {
+                if (mOutputInterface != null) {
+                    long[] newSeqs = NO_SEQS;
+                    if (mNewCount > 0) {
+                        newSeqs = new long[mNewCount];
+                        int start = mMessages.size() - mNewCount;
+                        for (int n = 0; n < mNewCount; n++) {
+                            newSeqs[n] = mMessages.get(start + n);
+                        }
+                    }
+                    mOutputInterface.out(mName, mOwner, newSeqs, mRemovedMessageCount);
+                }
+                mNewCount = 0;
+                mRemovedMessageCount = 0;
             }
-            mNewMessages.clear();
         }
 
         void setColors(LogColors colors) {
             mColors = colors;
         }
 
-        void setTempKeywordFiltering(String[] segments) {
-            mTempKeywordFilters = segments;
+        LogColors getColors() {
+            return mColors;
+        }
+
+        /**
+         * Sets the keywords that must all be found in a message, either as a substring
+         * or as a regular expression matching the whole message.
+         * @param segments
+         * @throws PatternSyntaxException if a keyword is not a valid regular expression,
+         *         the current keywords are kept.
+         */
+        void setTempKeywordFiltering(String[] segments) throws PatternSyntaxException {
+            mTempKeywordFilters = new KeywordMatcher(segments);
             mTempFilteringStatus = true;
+            refilter();
         }
 
         void setTempPidFiltering(int pid) {
             mTempPid = pid;
             mTempFilteringStatus = true;
+            criteriaChanged();
+            refilter();
         }
 
         void setTempTagFiltering(String tag) {
             mTempTag = tag;
+            mTempTagId = resolveTag(tag);
             mTempFilteringStatus = true;
+            criteriaChanged();
+            refilter();
         }
 
         void resetTempFiltering() {
@@ -704,7 +1435,73 @@ public class LogCatWrapper {
 
             mTempPid = -1;
             mTempTag = null;
+            mTempTagId = SymbolTable.NO_ID;
             mTempKeywordFilters = null;
+            criteriaChanged();
+            refilter();
+        }
+
+        /**
+         * Filters the messages of the buffer again with the current criteria, in the
+         * background. The runs started before are cancelled.
+         */
+        private void refilter() {
+            long generation = mGeneration.incrementAndGet();
+            if (mOwner != null) {
+                ForkJoinPool.commonPool().execute(new Refilter(mOwner.mBuffer, this, generation));
+            }
+        }
+
+        /**
+         * @param generation
+         * @return true if the temp criteria didn't change since the generation.
+         */
+        boolean isCurrent(long generation) {
+            return mGeneration.get() == generation;
+        }
+
+        /**
+         * Replaces the accepted messages with the result of a {@link Refilter}, and sends
+         * them all to the output as one replace event.
+         * @param generation generation of the criteria the messages were filtered with.
+         * @param endSeq the refilter filtered the messages before this one, the messages
+         *        added to the filter since then are kept.
+         * @param seqs the sequence numbers of the messages accepted by the refilter, in order.
+         */
+        void replaceMessages(long generation, long endSeq, long[] seqs) {
+            synchronized (mMessages) {
+                if (isCurrent(generation) == false) {
+                    return;
+                }
+
+                int numAdded = 0;
+                while (numAdded < mMessages.size()
+                        && mMessages.get(mMessages.size() - 1 - numAdded) >= endSeq) {
+                    numAdded++;
+                }
+                long[] all = Arrays.copyOf(seqs, seqs.length + numAdded);
+                for (int n = 0; n < numAdded; n++) {
+                    all[seqs.length + n] = mMessages.get(mMessages.size() - numAdded + n);
+                }
+
+                // the messages evicted since the refilter read them are dropped.
+                long firstSeq = mOwner.mBuffer.getFirstSeq();
+                int start = 0;
+                while (start < all.length && all[start] < firstSeq) {
+                    start++;
+                }
+                long[] replaced = start > 0 ? Arrays.copyOfRange(all, start, all.length) : all;
+
+                mMessages.clear();
+                for (long seq : replaced) {
+                    mMessages.add(seq);
+                }
+                mNewCount = 0;
+                mRemovedMessageCount = 0;
+                if (mOutputInterface != null) {
+                    mOutputInterface.replace(mName, mOwner, replaced);
+                }
+            }
         }
 
         void resetTempFilteringStatus() {
@@ -746,21 +1543,34 @@ public class LogCatWrapper {
     }
 
     /**
-     * Base implementation of {@link IShellOutputReceiver}, that takes the raw data coming from the
-     * socket, and convert it into {@link String} objects.
-     * <p/>Additionally, it splits the string by lines.
-     * <p/>Classes extending it must implement {@link #processNewLines(String[])} which receives
-     * new parsed lines as they become available.
+     * Implementation of {@link IShellOutputReceiver} that splits the raw data coming from the
+     * socket into lines.
+     * <p/>Lines are terminated by "\r\n", or by '\n' after
+     * {@link LogCatWrapper#setLfLineEnds(boolean)}. The bytes are scanned directly and an
+     * unfinished line is kept in a reusable buffer until the next packet, so no intermediate
+     * strings are built for the packet itself. Each completed line is decoded as UTF-8 with a
+     * reused {@link CharsetDecoder} and handed to {@link #processNewLine(String)}.
      */
-    protected class LogCatOutputReceiver implements ShellOutputReceiver {
+    protected class LogCatOutputReceiver implements ShellOutputReceiver, DiscontinuityListener {
+        private static final int INITIAL_LINE_CAPACITY = 256;
+
         private boolean isCancelled = false;
 
         private boolean mTrimLines = true;
 
+        /** true if '\n' ends the lines without '\r' */
+        private volatile boolean mLfLineEnds = false;
+
         /** unfinished message line, stored for next packet */
-        private String mUnfinishedLine = null;
+        private byte[] mLineBuffer = new byte[INITIAL_LINE_CAPACITY];
+        private int mLineLength = 0;
+        /** true after a discontinuity, until the end of the line cut by the gap */
+        private boolean mSkipToLineEnd = false;
 
-        private final ArrayList<String> mArray = new ArrayList<String>();
+        private final CharsetDecoder mDecoder = Charset.forName("UTF-8").newDecoder() //$NON-NLS-1$
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private CharBuffer mCharBuffer = CharBuffer.allocate(INITIAL_LINE_CAPACITY);
 
         /**
          * Set the trim lines flag.
@@ -775,86 +1585,161 @@ public class LogCatWrapper {
          *      byte[], int, int)
          */
         public final void addOutput(byte[] data, int offset, int length) {
-            if (isCancelled() == false) {
-                String s = null;
-                try {
-                    s = new String(data, offset, length, "ISO-8859-1"); //$NON-NLS-1$
-                } catch (UnsupportedEncodingException e) {
-                    // normal encoding didn't work, try the default one
-                    s = new String(data, offset,length);
+            if (isCancelled()) {
+                return;
+            }
+
+            long startTime = System.nanoTime();
+            int end = offset + length;
+            int start = offset;
+            int lineCount = 0;
+            for (int n = offset; n < end; n++) {
+                if (data[n] != '\n') {
+                    continue;
                 }
 
-                // ok we've got a string
-                if (s != null) {
-                    // if we had an unfinished line we add it.
-                    if (mUnfinishedLine != null) {
-                        s = mUnfinishedLine + s;
-                        mUnfinishedLine = null;
-                    }
+                // only "\r\n" terminates a line, unless mLfLineEnds. the '\r' may still be
+                // in the line buffer if the packet was split between the two bytes.
+                boolean crlf;
+                if (n > start) {
+                    crlf = data[n-1] == '\r';
+                } else {
+                    crlf = mLineLength > 0 && mLineBuffer[mLineLength-1] == '\r';
+                }
+                if (crlf == false && mLfLineEnds == false) {
+                    continue;
+                }
+                int terminatorLength = crlf ? 2 : 1;
+
+                if (mSkipToLineEnd) {
+                    // the end of a line whose start was dropped.
+                    mSkipToLineEnd = false;
+                    mLineLength = 0;
+                } else if (mLineLength > 0) {
+                    // complete the unfinished line from the previous packet.
+                    appendToLineBuffer(data, start, n + 1 - start);
+                    emitLine(mLineBuffer, 0, mLineLength - terminatorLength);
+                    mLineLength = 0;
+                    lineCount++;
+                } else {
+                    emitLine(data, start, n + 1 - terminatorLength - start);
+                    lineCount++;
+                }
 
-                    // now we split the lines
-                    mArray.clear();
-                    int start = 0;
-                    do {
-                        int index = s.indexOf("\r\n", start); //$NON-NLS-1$
-
-                        // if \r\n was not found, this is an unfinished line
-                        // and we store it to be processed for the next packet
-                        if (index == -1) {
-                            mUnfinishedLine = s.substring(start);
-                            break;
-                        }
+                // move start to after the \r\n we found
+                start = n + 1;
+            }
 
-                        // so we found a \r\n;
-                        // extract the line
-                        String line = s.substring(start, index);
-                        if (mTrimLines) {
-                            line = line.trim();
-                        }
-                        mArray.add(line);
+            // if \r\n was not found, this is an unfinished line
+            // and we store it to be processed for the next packet
+            if (start < end) {
+                appendToLineBuffer(data, start, end - start);
+            }
 
-                        // move start to after the \r\n we found
-                        start = index + 2;
-                    } while (true);
+            if (lineCount > 0) {
+                linesProcessed();
+            }
+            mMetrics.addPacket(length, lineCount, System.nanoTime() - startTime);
+        }
 
-                    if (mArray.size() > 0) {
-                        // at this point we've split all the lines.
-                        // make the array
-                        String[] lines = mArray.toArray(new String[mArray.size()]);
+        private void appendToLineBuffer(byte[] data, int offset, int length) {
+            int required = mLineLength + length;
+            if (required > mLineBuffer.length) {
+                int capacity = mLineBuffer.length * 2;
+                while (capacity < required) {
+                    capacity *= 2;
+                }
+                byte[] buffer = new byte[capacity];
+                System.arraycopy(mLineBuffer, 0, buffer, 0, mLineLength);
+                mLineBuffer = buffer;
+            }
+            System.arraycopy(data, offset, mLineBuffer, mLineLength, length);
+            mLineLength = required;
+        }
 
-                        // send it for final processing
-                        processNewLines(lines);
-                    }
+        private void emitLine(byte[] data, int offset, int length) {
+            int start = offset;
+            int end = offset + length;
+            if (mTrimLines) {
+                // same as String.trim(); UTF-8 multi-byte sequences never contain bytes <= ' '.
+                while (start < end && (data[start] & 0xff) <= ' ') {
+                    start++;
+                }
+                while (end > start && (data[end-1] & 0xff) <= ' ') {
+                    end--;
                 }
             }
+            processNewLine(decode(data, start, end - start));
+        }
+
+        private String decode(byte[] data, int offset, int length) {
+            if (mCharBuffer.capacity() < length) {
+                mCharBuffer = CharBuffer.allocate(Math.max(length, mCharBuffer.capacity() * 2));
+            }
+            char[] chars = mCharBuffer.array();
+
+            // plain ASCII lines are the common case and don't need the decoder.
+            int n = 0;
+            while (n < length && data[offset+n] >= 0) {
+                chars[n] = (char) data[offset+n];
+                n++;
+            }
+            if (n == length) {
+                return new String(chars, 0, length);
+            }
+
+            mCharBuffer.clear();
+            mDecoder.reset();
+            mDecoder.decode(ByteBuffer.wrap(data, offset, length), mCharBuffer, true);
+            mDecoder.flush(mCharBuffer);
+            return new String(chars, 0, mCharBuffer.position());
         }
 
         /* (non-Javadoc)
          * @see com.android.ddmlib.adb.IShellOutputReceiver#flush()
          */
         public final void flush() {
-            if (mUnfinishedLine != null) {
-                processNewLines(new String[] { mUnfinishedLine });
+            if (mLineLength > 0 && mSkipToLineEnd == false) {
+                emitLine(mLineBuffer, 0, mLineLength);
+                mLineLength = 0;
+                linesProcessed();
             }
 
             done();
         }
 
+        /**
+         * Packets were dropped, the unfinished line can't be completed, and the bytes up to
+         * the next line end are the end of a line whose start is lost.
+         */
+        public void discontinuity() {
+            mLineLength = 0;
+            mSkipToLineEnd = true;
+        }
+
         /**
          * Terminates the process. This is called after the last lines have been through
-         * {@link #processNewLines(String[])}.
+         * {@link #processNewLine(String)}.
          */
         public void done() {
             // do nothing.
         }
 
         /**
-         * Called when new lines are being received by the remote process.
-         * <p/>It is guaranteed that the lines are complete when they are given to this method.
-         * @param lines The array containing the new lines.
+         * Called for each new line received from the remote process.
+         * <p/>It is guaranteed that the line is complete when it is given to this method.
+         * @param line the new line.
+         */
+        public void processNewLine(String line) {
+            addLogLine(line);
+        }
+
+        /**
+         * Called once all the complete lines of a packet went through
+         * {@link #processNewLine(String)}.
          */
-        public void processNewLines(String[] lines) {
-            addLog(lines);
+        public void linesProcessed() {
+            flushFilters();
         }
 
         @Override
@@ -863,4 +1748,236 @@ public class LogCatWrapper {
         }
 
     }
+
+    /**
+     * Implementation of {@link IShellOutputReceiver} for the binary output of "logcat -B".
+     * <p/>The stream is a sequence of logger_entry records:
+     * <pre>
+     * uint16 len;       // length of the payload
+     * uint16 hdr_size;  // size of the header, 0 for the original 20 bytes header
+     * int32  pid;
+     * int32  tid;
+     * int32  sec;
+     * int32  nsec;
+     * ...               // extra header fields, skipped
+     * uint8  priority;  // payload
+     * char   tag[];     // NUL terminated
+     * char   msg[];     // NUL terminated
+     * </pre>
+     * All values are little endian. Entries are decoded into {@link LogMessageInfo} straight
+     * from the bytes, without going through the text format.
+     */
+    protected class LogCatBinaryReceiver implements ShellOutputReceiver, DiscontinuityListener {
+        private static final int ENTRY_HEADER_SIZE = 20;
+        /** largest header of the known logger_entry versions */
+        private static final int MAX_HEADER_SIZE = 32;
+        /** LOGGER_ENTRY_MAX_LEN, no payload is larger */
+        private static final int MAX_PAYLOAD_SIZE = 5 * 1024;
+        private static final int MAX_ENTRY_SIZE = MAX_HEADER_SIZE + MAX_PAYLOAD_SIZE;
+
+        private boolean isCancelled = false;
+
+        /**
+         * "adb shell" runs the command in a pty which turns every '\n' into "\r\n",
+         * this has to be reverted to read the binary records.
+         */
+        private boolean mTranslateCrLf = true;
+        private boolean mPendingCr = false;
+
+        /** bytes of the entry being read */
+        private final byte[] mEntry = new byte[MAX_ENTRY_SIZE];
+        private int mEntryLength = 0;
+
+        private final CharsetDecoder mDecoder = Charset.forName("UTF-8").newDecoder() //$NON-NLS-1$
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private CharBuffer mCharBuffer = CharBuffer.allocate(1024);
+        private final LogTime mLogTime = new LogTime();
+        /** info of the entry being decoded, reused: the messages are copied to the buffer */
+        private final LogMessageInfo mInfo = new LogMessageInfo();
+
+        /**
+         * Set whether "\r\n" are translated back to '\n'.
+         * @param translate false if the output doesn't go through a pty.
+         */
+        public void setTranslateCrLf(boolean translate) {
+            mTranslateCrLf = translate;
+        }
+
+        /* (non-Javadoc)
+         * @see com.android.ddmlib.adb.IShellOutputReceiver#addOutput(
+         *      byte[], int, int)
+         */
+        public final void addOutput(byte[] data, int offset, int length) {
+            if (isCancelled()) {
+                return;
+            }
+
+            long startTime = System.nanoTime();
+            int entryCount = 0;
+            int end = offset + length;
+            for (int n = offset; n < end; n++) {
+                byte b = data[n];
+                if (mTranslateCrLf) {
+                    if (mPendingCr) {
+                        mPendingCr = false;
+                        if (b != '\n' && addEntryByte((byte) '\r')) {
+                            entryCount++;
+                        }
+                    }
+                    if (b == '\r') {
+                        mPendingCr = true;
+                        continue;
+                    }
+                }
+                if (addEntryByte(b)) {
+                    entryCount++;
+                }
+            }
+
+            if (entryCount > 0) {
+                flushFilters();
+            }
+            mMetrics.addPacket(length, entryCount, System.nanoTime() - startTime);
+        }
+
+        /**
+         * @return true if the byte completed an entry.
+         */
+        private boolean addEntryByte(byte b) {
+            mEntry[mEntryLength++] = b;
+            if (mEntryLength < ENTRY_HEADER_SIZE) {
+                return false;
+            }
+            int payloadLength = readUInt16(0);
+            int headerSize = readUInt16(2);
+            if (headerSize == 0) {
+                headerSize = ENTRY_HEADER_SIZE;
+            }
+            if (mEntryLength == ENTRY_HEADER_SIZE && isValidHeader(headerSize, payloadLength) == false) {
+                // out of sync, after dropped packets or corrupted data.
+                // look for the next valid header one byte further.
+                System.arraycopy(mEntry, 1, mEntry, 0, --mEntryLength);
+                return false;
+            }
+            if (mEntryLength < headerSize + payloadLength) {
+                return false;
+            }
+
+            decodeEntry(headerSize, payloadLength);
+            mEntryLength = 0;
+            return true;
+        }
+
+        private boolean isValidHeader(int headerSize, int payloadLength) {
+            return headerSize >= ENTRY_HEADER_SIZE && headerSize <= MAX_HEADER_SIZE
+                    && payloadLength > 0 && payloadLength <= MAX_PAYLOAD_SIZE;
+        }
+
+        private void decodeEntry(int headerSize, int payloadLength) {
+            LogMessageInfo info = mInfo;
+            info.pid = readInt32(4);
+            info.tid = readInt32(8);
+            long sec = readInt32(12) & 0xffffffffL;
+            info.nanos = readInt32(16);
+            info.timestamp = sec * 1000 + info.nanos / 1000000;
+            info.time = mLogTime.format(info.timestamp);
+            info.pidString = mPids.get(mPids.intern(info.pid));
+
+            int end = headerSize + payloadLength;
+            int pos = headerSize;
+            info.logLevel = levelForPriority(payloadLength > 0 ? mEntry[pos++] : 0);
+
+            int tagStart = pos;
+            while (pos < end && mEntry[pos] != 0) {
+                pos++;
+            }
+            decodeToCharBuffer(tagStart, pos - tagStart);
+            int tagEnd = mCharBuffer.position();
+            int tagBegin = 0;
+            while (tagBegin < tagEnd && mCharBuffer.get(tagBegin) <= ' ') {
+                tagBegin++;
+            }
+            while (tagEnd > tagBegin && mCharBuffer.get(tagEnd-1) <= ' ') {
+                tagEnd--;
+            }
+            mCharBuffer.flip();
+            info.tagId = mTags.intern(mCharBuffer, tagBegin, tagEnd);
+            info.tag = mTags.get(info.tagId);
+            pos++;
+
+            int msgStart = pos;
+            while (pos < end && mEntry[pos] != 0) {
+                pos++;
+            }
+            String message = msgStart < end ? decode(msgStart, pos - msgStart) : ""; //$NON-NLS-1$
+
+            addLogEntry(info, message);
+        }
+
+        private LogLevel levelForPriority(int priority) {
+            // android_LogPriority: 2 = VERBOSE .. 7 = FATAL
+            if (priority <= LogLevel.VERBOSE.getPriority()) {
+                return LogLevel.VERBOSE;
+            }
+            switch (priority) {
+                case 3:
+                    return LogLevel.DEBUG;
+                case 4:
+                    return LogLevel.INFO;
+                case 5:
+                    return LogLevel.WARN;
+                case 6:
+                    return LogLevel.ERROR;
+            }
+            return LogLevel.ASSERT;
+        }
+
+        private int readUInt16(int index) {
+            return (mEntry[index] & 0xff) | ((mEntry[index+1] & 0xff) << 8);
+        }
+
+        private int readInt32(int index) {
+            return (mEntry[index] & 0xff) | ((mEntry[index+1] & 0xff) << 8)
+                    | ((mEntry[index+2] & 0xff) << 16) | ((mEntry[index+3] & 0xff) << 24);
+        }
+
+        private void decodeToCharBuffer(int offset, int length) {
+            if (mCharBuffer.capacity() < length) {
+                mCharBuffer = CharBuffer.allocate(length);
+            }
+            mCharBuffer.clear();
+            mDecoder.reset();
+            mDecoder.decode(ByteBuffer.wrap(mEntry, offset, length), mCharBuffer, true);
+            mDecoder.flush(mCharBuffer);
+        }
+
+        private String decode(int offset, int length) {
+            decodeToCharBuffer(offset, length);
+            return new String(mCharBuffer.array(), 0, mCharBuffer.position());
+        }
+
+        /**
+         * Packets were dropped, the current entry can't be completed.
+         * The next valid header is looked for in the following bytes.
+         */
+        public void discontinuity() {
+            mEntryLength = 0;
+            mPendingCr = false;
+        }
+
+        /* (non-Javadoc)
+         * @see com.android.ddmlib.adb.IShellOutputReceiver#flush()
+         */
+        public final void flush() {
+            // an incomplete entry can't be decoded.
+            mEntryLength = 0;
+            mPendingCr = false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return isCancelled;
+        }
+    }
 }
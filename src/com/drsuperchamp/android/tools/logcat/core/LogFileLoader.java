@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.core;
+
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper.LogMessage;
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper.LogMessageInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Loads a "logcat -v long" or "logcat -v threadtime" dump into a {@link LogCatWrapper}.
+ * <p/>The file is split in chunks of about {@link #CHUNK_SIZE} bytes, each starting at the
+ * beginning of a message. The chunks are memory-mapped and parsed in parallel on a
+ * {@link ForkJoinPool}, and added to the wrapper in the order of the file as soon as the chunks
+ * before them are added, so the first messages are shown while the rest is parsed. Only a few
+ * chunks are parsed ahead of the one being added, to bound the memory used.
+ */
+public class LogFileLoader {
+    public static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    /** bytes read at once to find the start of a chunk, and to detect the format */
+    private static final int PROBE_SIZE = 64 * 1024;
+    /** decodes ASCII lines without a decoder */
+    private static final Charset sLatin1 = Charset.forName("ISO-8859-1"); //$NON-NLS-1$
+
+    /** format of the dumps */
+    public static enum Format {
+        LONG,
+        THREADTIME,
+    }
+
+    /**
+     * Interface to follow the loading. Called from the loading thread.
+     */
+    public static interface Listener {
+        void progress(long loadedBytes, long totalBytes);
+        /**
+         * @param cancelled true if {@link LogFileLoader#cancel()} was called.
+         * @param error the error that stopped the loading, or null.
+         */
+        void done(boolean cancelled, IOException error);
+    }
+
+    private final File mFile;
+    private final LogCatWrapper mTarget;
+    private final Listener mListener;
+    private final ForkJoinPool mPool;
+    private volatile boolean mIsCancelled = false;
+    private Thread mThread = null;
+
+    /**
+     * @param file
+     * @param target wrapper the messages are added to.
+     * @param listener
+     */
+    public LogFileLoader(File file, LogCatWrapper target, Listener listener) {
+        mFile = file;
+        mTarget = target;
+        mListener = listener;
+        mPool = new ForkJoinPool();
+    }
+
+    /**
+     * Starts loading in a background thread.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                IOException error = null;
+                try {
+                    load();
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    mPool.shutdownNow();
+                }
+                mListener.done(mIsCancelled, error);
+            }
+        }, "load-" + mFile.getName()); //$NON-NLS-1$
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Stops the loading, the messages already added are kept.
+     */
+    public void cancel() {
+        mIsCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mIsCancelled;
+    }
+
+    private void load() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "r"); //$NON-NLS-1$
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            Format format = detectFormat(channel, size);
+            long[] bounds = findChunks(channel, size, format);
+            int numChunks = bounds.length - 1;
+
+            // parse a few chunks ahead of the one being added.
+            int ahead = mPool.getParallelism() * 2;
+            List<Future<List<LogMessage>>> tasks = new ArrayList<Future<List<LogMessage>>>();
+            for (int n = 0; n < numChunks; n++) {
+                while (tasks.size() < numChunks && tasks.size() <= n + ahead) {
+                    int chunk = tasks.size();
+                    tasks.add(mPool.submit(new ChunkParser(channel, bounds[chunk],
+                            bounds[chunk + 1], format, chunk == 0)));
+                }
+                if (mIsCancelled) {
+                    return;
+                }
+                List<LogMessage> messages;
+                try {
+                    messages = tasks.get(n).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException(e.getCause());
+                }
+                // the chunk can be collected once added.
+                tasks.set(n, null);
+                mTarget.addParsedMessages(messages);
+                mListener.progress(bounds[n + 1], size);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Counts the lines of the beginning of the file that are headers of each format.
+     */
+    static Format detectFormat(FileChannel channel, long size) throws IOException {
+        ByteBuffer probe = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, PROBE_SIZE));
+        int longHeaders = 0;
+        int threadTimeLines = 0;
+        int lineStart = 0;
+        int limit = probe.limit();
+        for (int n = 0; n < limit; n++) {
+            if (probe.get(n) == '\n' || n == limit - 1) {
+                if (isLongHeader(probe, lineStart, limit)) {
+                    longHeaders++;
+                } else if (isThreadTimeLine(probe, lineStart, limit)) {
+                    threadTimeLines++;
+                }
+                lineStart = n + 1;
+            }
+        }
+        return threadTimeLines > longHeaders ? Format.THREADTIME : Format.LONG;
+    }
+
+    /**
+     * @return the offsets of the chunks, and the size of the file.
+     */
+    private static long[] findChunks(FileChannel channel, long size, Format format)
+            throws IOException {
+        List<Long> bounds = new ArrayList<Long>();
+        bounds.add(Long.valueOf(0));
+        long offset = CHUNK_SIZE;
+        while (offset < size) {
+            long start = findChunkStart(channel, size, offset, format);
+            if (start >= size) {
+                break;
+            }
+            bounds.add(Long.valueOf(start));
+            offset = start + CHUNK_SIZE;
+        }
+        bounds.add(Long.valueOf(size));
+
+        long[] result = new long[bounds.size()];
+        for (int n = 0; n < result.length; n++) {
+            result[n] = bounds.get(n).longValue();
+        }
+        return result;
+    }
+
+    /**
+     * @return the offset of the first line at or after offset that starts a message,
+     *         or the size of the file.
+     */
+    private static long findChunkStart(FileChannel channel, long size, long offset,
+            Format format) throws IOException {
+        while (offset < size) {
+            int length = (int) Math.min(size - offset, PROBE_SIZE);
+            ByteBuffer probe = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            for (int n = 0; n < length; n++) {
+                if (probe.get(n) != '\n') {
+                    continue;
+                }
+                int lineStart = n + 1;
+                if (format == Format.THREADTIME ? isThreadTimeLine(probe, lineStart, length)
+                        : isLongHeader(probe, lineStart, length)) {
+                    return offset + lineStart;
+                }
+            }
+            offset += length;
+        }
+        return size;
+    }
+
+    /**
+     * @return true if the line starts with "[ MM-DD ".
+     */
+    private static boolean isLongHeader(ByteBuffer buffer, int start, int limit) {
+        return start + 8 <= limit && buffer.get(start) == '[' && buffer.get(start + 1) == ' '
+                && isDateAt(buffer, start + 2);
+    }
+
+    /**
+     * @return true if the line starts with "MM-DD ".
+     */
+    private static boolean isThreadTimeLine(ByteBuffer buffer, int start, int limit) {
+        return start + 6 <= limit && isDateAt(buffer, start);
+    }
+
+    private static boolean isDateAt(ByteBuffer buffer, int index) {
+        return isDigit(buffer.get(index)) && isDigit(buffer.get(index + 1))
+                && buffer.get(index + 2) == '-' && isDigit(buffer.get(index + 3))
+                && isDigit(buffer.get(index + 4)) && buffer.get(index + 5) == ' ';
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /**
+     * Parses the messages of one chunk. Each task has its own parser and decoder, only the
+     * symbol tables of the wrapper are shared.
+     */
+    private final class ChunkParser implements Callable<List<LogMessage>> {
+        private final FileChannel mChannel;
+        private final long mStart;
+        private final long mEnd;
+        private final Format mFormat;
+        private final boolean mIsFirst;
+        private final LogHeaderParser mParser;
+        private final CharsetDecoder mDecoder;
+        private byte[] mBytes = new byte[1024];
+        private CharBuffer mChars = CharBuffer.allocate(1024);
+
+        ChunkParser(FileChannel channel, long start, long end, Format format, boolean isFirst) {
+            mChannel = channel;
+            mStart = start;
+            mEnd = end;
+            mFormat = format;
+            mIsFirst = isFirst;
+            mParser = new LogHeaderParser(mTarget.getTags(), mTarget.getPids());
+            mDecoder = Charset.forName("UTF-8").newDecoder() //$NON-NLS-1$
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        @Override
+        public List<LogMessage> call() throws IOException {
+            List<LogMessage> messages = new ArrayList<LogMessage>();
+            if (mIsCancelled) {
+                return messages;
+            }
+            MappedByteBuffer buffer = mChannel.map(FileChannel.MapMode.READ_ONLY, mStart,
+                    mEnd - mStart);
+            int limit = buffer.limit();
+
+            LogMessageInfo info = null;
+            LogMessageInfo parsed = new LogMessageInfo();
+            int lineStart = 0;
+            for (int n = 0; n <= limit; n++) {
+                if (n < limit && buffer.get(n) != '\n') {
+                    continue;
+                }
+                String line = decodeLine(buffer, lineStart, n);
+                lineStart = n + 1;
+                if (line.length() == 0) {
+                    continue;
+                }
+
+                String text;
+                if (mFormat == Format.LONG) {
+                    if (mParser.parse(line, parsed) == LogHeaderParser.RESULT_HEADER) {
+                        info = parsed;
+                        parsed = new LogMessageInfo();
+                        continue;
+                    }
+                    text = line;
+                } else {
+                    int messageStart = mParser.parseThreadTime(line, parsed);
+                    if (messageStart >= 0) {
+                        info = parsed;
+                        parsed = new LogMessageInfo();
+                        text = line.substring(messageStart);
+                    } else {
+                        // a line of a message that was split by hand.
+                        text = line;
+                    }
+                }
+                if (info == null) {
+                    // only the first chunk can start before a header.
+                    info = mTarget.newUnknownInfo();
+                }
+                LogMessage message = new LogMessage();
+                message.data = info;
+                message.msg = LogCatWrapper.expandTabs(text);
+                messages.add(message);
+            }
+            return messages;
+        }
+
+        /**
+         * @return the line without its surrounding whitespace, decoded as UTF-8.
+         */
+        private String decodeLine(ByteBuffer buffer, int start, int end) {
+            while (start < end && (buffer.get(start) & 0xff) <= ' ') {
+                start++;
+            }
+            while (end > start && (buffer.get(end - 1) & 0xff) <= ' ') {
+                end--;
+            }
+            int length = end - start;
+            if (mBytes.length < length) {
+                mBytes = new byte[Math.max(length, mBytes.length * 2)];
+            }
+            boolean isAscii = true;
+            for (int n = 0; n < length; n++) {
+                byte b = buffer.get(start + n);
+                mBytes[n] = b;
+                isAscii &= b >= 0;
+            }
+            if (isAscii) {
+                return new String(mBytes, 0, length, sLatin1);
+            }
+            if (mChars.capacity() < length) {
+                mChars = CharBuffer.allocate(length);
+            }
+            mChars.clear();
+            mDecoder.reset();
+            mDecoder.decode(ByteBuffer.wrap(mBytes, 0, length), mChars, true);
+            mDecoder.flush(mChars);
+            return new String(mChars.array(), 0, mChars.position());
+        }
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.core;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper.LogMessageInfo;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Single pass parser for the "logcat -v long" header lines:
+ * <pre>[ MM-DD HH:MM:SS.mmm  pid:  tid L/tag ]</pre>
+ * Lines that don't start with '[' are rejected at the first character. Lines that look like a
+ * header but don't follow the strict layout produced by logcat are given to the regular
+ * expression, so odd input is handled the same way as before.
+ * <p/>It also parses the lines of "logcat -v threadtime", which hold the header and the
+ * message:
+ * <pre>MM-DD HH:MM:SS.mmm  pid  tid L tag: message</pre>
+ * <p/>The strict parser and the regular expression are checked against each other by
+ * test.HeaderParserConformance.
+ */
+public class LogHeaderParser {
+    public static final int RESULT_NOT_HEADER = 0;
+    public static final int RESULT_HEADER = 1;
+
+    private static final Pattern sHeaderPattern = Pattern.compile(
+            "^\\[\\s(\\d\\d-\\d\\d\\s\\d\\d:\\d\\d:\\d\\d\\.\\d+)" + //$NON-NLS-1$
+            "\\s+(\\d*):\\s*([0-9a-fA-F]+)\\s+([VDIWEF])/(.*)\\]$"); //$NON-NLS-1$
+
+    /** length of "MM-DD HH:MM:SS." */
+    private static final int TIME_PREFIX_LENGTH = 15;
+
+    /** largest number of digits parsed into an int without checking for overflow */
+    private static final int MAX_INT_DIGITS = 9;
+
+    private static final int NO_MATCH = -1;
+
+    private final SymbolTable mTags;
+    private final SymbolTable mPids;
+    private final LogTime mLogTime = new LogTime();
+
+    /**
+     * @param tags table the tags are interned in.
+     * @param pids table the pid strings are interned in.
+     */
+    public LogHeaderParser(SymbolTable tags, SymbolTable pids) {
+        mTags = tags;
+        mPids = pids;
+    }
+
+    /**
+     * Parses a header line.
+     * @param line a trimmed line.
+     * @param info filled with the header values if the line is a header.
+     * @return {@link #RESULT_HEADER} if the line is a header, {@link #RESULT_NOT_HEADER}
+     *         otherwise.
+     */
+    public int parse(String line, LogMessageInfo info) {
+        int length = line.length();
+        if (length == 0 || line.charAt(0) != '[') {
+            return RESULT_NOT_HEADER;
+        }
+        if (parseStrict(line, length, info)) {
+            return RESULT_HEADER;
+        }
+        return parseWithPattern(line, info);
+    }
+
+    /**
+     * Parses a header line with the strict layout only.
+     * @param line a trimmed line.
+     * @param info filled with the header values if the line was parsed.
+     * @return true if the line was parsed, false if it is not a header or must go through
+     *         the regular expression.
+     */
+    public boolean parseStrict(String line, LogMessageInfo info) {
+        int length = line.length();
+        return length > 0 && line.charAt(0) == '[' && parseStrict(line, length, info);
+    }
+
+    /**
+     * Parses a "logcat -v threadtime" line.
+     * @param line a trimmed line.
+     * @param info filled with the header values if the line is valid.
+     * @return the index of the message in the line, or -1 if the line is not valid.
+     */
+    int parseThreadTime(String line, LogMessageInfo info) {
+        int length = line.length();
+        int pos = 0;
+        if (length < TIME_PREFIX_LENGTH + 1 || isTimePrefix(line, pos) == false) {
+            return NO_MATCH;
+        }
+        int timeStart = pos;
+        pos += TIME_PREFIX_LENGTH;
+        int fractionStart = pos;
+        while (pos < length && isDigit(line, pos)) {
+            pos++;
+        }
+        if (pos == fractionStart) {
+            return NO_MATCH;
+        }
+        int timeEnd = pos;
+
+        // "  pid  tid "
+        pos = skipSpaces(line, pos, length);
+        int pidStart = pos;
+        int pid = 0;
+        while (pos < length && isDigit(line, pos)) {
+            pid = pid * 10 + (line.charAt(pos) - '0');
+            pos++;
+        }
+        int pidEnd = pos;
+        if (pidEnd == pidStart || pidEnd - pidStart > MAX_INT_DIGITS) {
+            return NO_MATCH;
+        }
+        pos = skipSpaces(line, pos, length);
+        int tidStart = pos;
+        int tid = 0;
+        while (pos < length && isDigit(line, pos)) {
+            tid = tid * 10 + (line.charAt(pos) - '0');
+            pos++;
+        }
+        if (pos == tidStart || pos - tidStart > MAX_INT_DIGITS) {
+            return NO_MATCH;
+        }
+
+        // " L tag: "
+        if (pos + 3 > length || line.charAt(pos) != ' ' || line.charAt(pos+2) != ' ') {
+            return NO_MATCH;
+        }
+        LogLevel level = levelForLetter(line.charAt(pos+1));
+        if (level == null) {
+            return NO_MATCH;
+        }
+        int tagStart = pos + 3;
+        int tagEnd = line.indexOf(": ", tagStart); //$NON-NLS-1$
+        int messageStart = tagEnd + 2;
+        if (tagEnd == -1) {
+            // empty message, the line is trimmed.
+            if (line.charAt(length-1) != ':') {
+                return NO_MATCH;
+            }
+            tagEnd = length - 1;
+            messageStart = length;
+        }
+        while (tagEnd > tagStart && line.charAt(tagEnd-1) <= ' ') {
+            tagEnd--;
+        }
+
+        info.time = line.substring(timeStart, timeEnd);
+        mLogTime.parse(line, timeStart, timeEnd, info);
+        info.pidString = mPids.get(mPids.intern(line, pidStart, pidEnd));
+        info.pid = pid;
+        info.tid = tid;
+        info.logLevel = level;
+        info.tagId = mTags.intern(line, tagStart, tagEnd);
+        info.tag = mTags.get(info.tagId);
+        return messageStart;
+    }
+
+    /**
+     * @return true if the line was parsed, false if the line must go through the regular
+     *         expression.
+     */
+    private boolean parseStrict(String line, int length, LogMessageInfo info) {
+        // "[ MM-DD HH:MM:SS.m"
+        int pos = 2;
+        if (length < pos + TIME_PREFIX_LENGTH + 1 || line.charAt(1) != ' ') {
+            return false;
+        }
+        int timeStart = pos;
+        if (isTimePrefix(line, pos) == false) {
+            return false;
+        }
+        pos += TIME_PREFIX_LENGTH;
+        int fractionStart = pos;
+        while (pos < length && isDigit(line, pos)) {
+            pos++;
+        }
+        if (pos == fractionStart) {
+            return false;
+        }
+        int timeEnd = pos;
+
+        // "  pid:"
+        int spaceStart = pos;
+        pos = skipSpaces(line, pos, length);
+        if (pos == spaceStart) {
+            return false;
+        }
+        int pidStart = pos;
+        int pid = 0;
+        while (pos < length && isDigit(line, pos)) {
+            pid = pid * 10 + (line.charAt(pos) - '0');
+            pos++;
+        }
+        int pidEnd = pos;
+        if (pidEnd == pidStart || pidEnd - pidStart > MAX_INT_DIGITS
+                || pos >= length || line.charAt(pos) != ':') {
+            return false;
+        }
+        pos++;
+
+        // " tid "
+        pos = skipSpaces(line, pos, length);
+        int tidStart = pos;
+        int tid = 0;
+        while (pos < length && isDigit(line, pos)) {
+            tid = tid * 10 + (line.charAt(pos) - '0');
+            pos++;
+        }
+        if (pos == tidStart || pos - tidStart > MAX_INT_DIGITS) {
+            return false;
+        }
+        spaceStart = pos;
+        pos = skipSpaces(line, pos, length);
+        if (pos == spaceStart) {
+            return false;
+        }
+
+        // "L/tag ]"
+        if (pos + 2 >= length || line.charAt(pos+1) != '/' || line.charAt(length-1) != ']') {
+            return false;
+        }
+        LogLevel level = levelForLetter(line.charAt(pos));
+        if (level == null) {
+            return false;
+        }
+        int tagStart = pos + 2;
+        int tagEnd = length - 1;
+        while (tagStart < tagEnd && line.charAt(tagStart) <= ' ') {
+            tagStart++;
+        }
+        while (tagEnd > tagStart && line.charAt(tagEnd-1) <= ' ') {
+            tagEnd--;
+        }
+        for (int n = tagStart; n < tagEnd; n++) {
+            if (isLineTerminator(line.charAt(n))) {
+                // '.' doesn't match these in the pattern.
+                return false;
+            }
+        }
+
+        info.time = line.substring(timeStart, timeEnd);
+        mLogTime.parse(line, timeStart, timeEnd, info);
+        info.pidString = mPids.get(mPids.intern(line, pidStart, pidEnd));
+        info.pid = pid;
+        info.tid = tid;
+        info.logLevel = level;
+        info.tagId = mTags.intern(line, tagStart, tagEnd);
+        info.tag = mTags.get(info.tagId);
+        return true;
+    }
+
+    /**
+     * Parses a header line with the regular expression only, the reference of the strict
+     * parser.
+     * @param line a trimmed line.
+     * @param info filled with the header values if the line is a header.
+     * @return {@link #RESULT_HEADER} if the line is a header, {@link #RESULT_NOT_HEADER}
+     *         otherwise.
+     */
+    public int parseWithPattern(String line, LogMessageInfo info) {
+        Matcher matcher = sHeaderPattern.matcher(line);
+        if (matcher.matches() == false) {
+            return RESULT_NOT_HEADER;
+        }
+
+        int pid = parseInt(matcher.group(2), 10);
+        int tid = parseInt(matcher.group(3), 10);
+        if (tid == NO_MATCH) {
+            tid = parseInt(matcher.group(3), 16);
+        }
+        if (pid == NO_MATCH || tid == NO_MATCH) {
+            // out of range, this can't be a real header.
+            return RESULT_NOT_HEADER;
+        }
+
+        info.time = matcher.group(1);
+        mLogTime.parse(info.time, 0, info.time.length(), info);
+        info.pidString = mPids.get(mPids.intern(matcher.group(2)));
+        info.pid = pid;
+        info.tid = tid;
+        // ddmlib only knows 'A' for assert, logcat prints 'F'.
+        info.logLevel = levelForLetter(matcher.group(4).charAt(0));
+        info.tagId = mTags.intern(matcher.group(5).trim());
+        info.tag = mTags.get(info.tagId);
+        return RESULT_HEADER;
+    }
+
+    private static int parseInt(String value, int radix) {
+        if (value.length() == 0) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value, radix);
+        } catch (NumberFormatException e) {
+            return NO_MATCH;
+        }
+    }
+
+    /**
+     * @return true if "MM-DD HH:MM:SS." is at the index.
+     */
+    private static boolean isTimePrefix(String line, int pos) {
+        return isDigit(line, pos) && isDigit(line, pos+1) && line.charAt(pos+2) == '-'
+                && isDigit(line, pos+3) && isDigit(line, pos+4) && line.charAt(pos+5) == ' '
+                && isDigit(line, pos+6) && isDigit(line, pos+7) && line.charAt(pos+8) == ':'
+                && isDigit(line, pos+9) && isDigit(line, pos+10) && line.charAt(pos+11) == ':'
+                && isDigit(line, pos+12) && isDigit(line, pos+13) && line.charAt(pos+14) == '.';
+    }
+
+    private static boolean isDigit(String line, int index) {
+        char c = line.charAt(index);
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static int skipSpaces(String line, int pos, int length) {
+        while (pos < length && line.charAt(pos) == ' ') {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static LogLevel levelForLetter(char letter) {
+        switch (letter) {
+            case 'V':
+                return LogLevel.VERBOSE;
+            case 'D':
+                return LogLevel.DEBUG;
+            case 'I':
+                return LogLevel.INFO;
+            case 'W':
+                return LogLevel.WARN;
+            case 'E':
+                return LogLevel.ERROR;
+            case 'F':
+                return LogLevel.ASSERT;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.core;
+
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper.LogMessageInfo;
+
+import java.util.Calendar;
+
+/**
+ * Converts epoch timestamps from and to the "MM-DD HH:MM:SS.mmm" format printed by logcat.
+ * <p/>Consecutive log entries are mostly within the same second, so the "MM-DD HH:MM:SS."
+ * prefix is kept and only the milliseconds are formatted for them. For the same reason the
+ * parsing of the prefix is cached, and the start of its hour too.
+ * <p/>logcat doesn't print the year. The first parsed time is taken in the current year, or the
+ * previous one if it would be in the future, and the year is incremented when the months
+ * wrap around.
+ * <p/>Not thread safe, each thread should use its own instance.
+ */
+public class LogTime {
+    /** time used when the timestamp of a message is not known */
+    public static final String UNKNOWN_TIME = "??-?? ??:??:??.???"; //$NON-NLS-1$
+
+    private final Calendar mCalendar = Calendar.getInstance();
+    private final char[] mChars = new char[18];
+    private long mCachedSecond = Long.MIN_VALUE;
+
+    /** number of characters of "MM-DD HH:MM:SS" */
+    private static final int PREFIX_LENGTH = 14;
+    /** number of characters of "MM-DD HH" */
+    private static final int HOUR_PREFIX_LENGTH = 8;
+    /** times up to this far in the future are taken in the current year */
+    private static final long MAX_CLOCK_SKEW_MS = 24L * 60 * 60 * 1000;
+
+    /** last parsed "MM-DD HH:MM:SS", and the epoch time of its second and of its hour */
+    private final char[] mParsedPrefix = new char[PREFIX_LENGTH];
+    private boolean mHasParsedPrefix = false;
+    private long mParsedSecond;
+    private long mParsedHour;
+    /** year of the last parsed time, 0 before the first one */
+    private int mYear = 0;
+    private int mMonth = 0;
+
+    /**
+     * @param timestamp milliseconds since the epoch, 0 if unknown.
+     * @return the formatted local time.
+     */
+    public String format(long timestamp) {
+        if (timestamp == 0) {
+            return UNKNOWN_TIME;
+        }
+
+        long second = Math.floorDiv(timestamp, 1000);
+        if (second != mCachedSecond) {
+            mCalendar.setTimeInMillis(second * 1000);
+            put2(0, mCalendar.get(Calendar.MONTH) + 1);
+            mChars[2] = '-';
+            put2(3, mCalendar.get(Calendar.DAY_OF_MONTH));
+            mChars[5] = ' ';
+            put2(6, mCalendar.get(Calendar.HOUR_OF_DAY));
+            mChars[8] = ':';
+            put2(9, mCalendar.get(Calendar.MINUTE));
+            mChars[11] = ':';
+            put2(12, mCalendar.get(Calendar.SECOND));
+            mChars[14] = '.';
+            mCachedSecond = second;
+        }
+
+        int millis = Math.floorMod(timestamp, 1000);
+        mChars[15] = (char) ('0' + millis / 100);
+        mChars[16] = (char) ('0' + millis / 10 % 10);
+        mChars[17] = (char) ('0' + millis % 10);
+        return new String(mChars);
+    }
+
+    /**
+     * Parses "MM-DD HH:MM:SS.fff" into {@link LogMessageInfo#timestamp} and
+     * {@link LogMessageInfo#nanos}. The fraction can have any number of digits.
+     * The time is taken in the current year.
+     * @param s
+     * @param start index of the first month digit.
+     * @param end end of the fraction.
+     * @param info
+     */
+    public void parse(CharSequence s, int start, int end, LogMessageInfo info) {
+        int nanos = 0;
+        int digits = 0;
+        for (int n = start + 15; n < end && digits < 9; n++, digits++) {
+            nanos = nanos * 10 + (s.charAt(n) - '0');
+        }
+        for (; digits < 9; digits++) {
+            nanos *= 10;
+        }
+        info.timestamp = parseSecond(s, start) + nanos / 1000000;
+        info.nanos = nanos;
+    }
+
+    /**
+     * Parses a time typed by the user, "HH:MM:SS[.mmm]" or "MM-DD HH:MM:SS[.mmm]".
+     * @param s
+     * @param reference epoch time of a message, the date of the time if it has none.
+     * @return the epoch time, or -1 if s isn't a time.
+     */
+    public long parseNear(String s, long reference) {
+        s = s.trim();
+        if (s.matches("\\d\\d-\\d\\d \\d\\d:\\d\\d:\\d\\d(\\.\\d{1,3})?") == false) { //$NON-NLS-1$
+            if (s.matches("\\d\\d:\\d\\d:\\d\\d(\\.\\d{1,3})?") == false) { //$NON-NLS-1$
+                return -1;
+            }
+            s = format(reference).substring(0, 6) + s;
+        }
+        mCalendar.setTimeInMillis(reference);
+        int year = mCalendar.get(Calendar.YEAR);
+        int millis = 0;
+        if (s.length() > 15) {
+            millis = Integer.parseInt((s.substring(15) + "00").substring(0, 3)); //$NON-NLS-1$
+        }
+        mCalendar.set(year, get2(s, 0) - 1, get2(s, 3), get2(s, 6), get2(s, 9), get2(s, 12));
+        mCalendar.set(Calendar.MILLISECOND, millis);
+        return mCalendar.getTimeInMillis();
+    }
+
+    /**
+     * @return the epoch time of the second of "MM-DD HH:MM:SS" at s[start].
+     */
+    private long parseSecond(CharSequence s, int start) {
+        if (mHasParsedPrefix) {
+            int n = 0;
+            while (n < PREFIX_LENGTH && s.charAt(start + n) == mParsedPrefix[n]) {
+                n++;
+            }
+            if (n == PREFIX_LENGTH) {
+                return mParsedSecond;
+            }
+            if (n >= HOUR_PREFIX_LENGTH) {
+                // a new second of the same hour, the offset to UTC doesn't change within it.
+                mParsedSecond = mParsedHour + get2(s, start + 9) * 60000L
+                        + get2(s, start + 12) * 1000L;
+                copyPrefix(s, start);
+                return mParsedSecond;
+            }
+        }
+
+        int month = get2(s, start);
+        if (mYear == 0) {
+            mCalendar.setTimeInMillis(System.currentTimeMillis());
+            mYear = mCalendar.get(Calendar.YEAR);
+            mCalendar.set(mYear, month - 1, get2(s, start + 3), get2(s, start + 6), 0, 0);
+            if (mCalendar.getTimeInMillis() > System.currentTimeMillis() + MAX_CLOCK_SKEW_MS) {
+                mYear--;
+            }
+            mMonth = month;
+        } else if (month < mMonth - 6) {
+            // December to January.
+            mYear++;
+        }
+        int year = mYear;
+        if (month > mMonth + 6) {
+            // a late line of the previous year, the year isn't changed for it.
+            year--;
+        } else {
+            mMonth = month;
+        }
+
+        mCalendar.set(year, month - 1, get2(s, start + 3), get2(s, start + 6), 0, 0);
+        mCalendar.set(Calendar.MILLISECOND, 0);
+        mParsedHour = mCalendar.getTimeInMillis();
+        mParsedSecond = mParsedHour + get2(s, start + 9) * 60000L + get2(s, start + 12) * 1000L;
+        copyPrefix(s, start);
+        mHasParsedPrefix = true;
+        return mParsedSecond;
+    }
+
+    private void copyPrefix(CharSequence s, int start) {
+        for (int n = 0; n < PREFIX_LENGTH; n++) {
+            mParsedPrefix[n] = s.charAt(start + n);
+        }
+    }
+
+    private static int get2(CharSequence s, int index) {
+        return (s.charAt(index) - '0') * 10 + (s.charAt(index+1) - '0');
+    }
+
+    private void put2(int index, int value) {
+        mChars[index] = (char) ('0' + value / 10);
+        mChars[index+1] = (char) ('0' + value % 10);
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Merges the messages of several devices into one {@link FilterOutput}, ordered by timestamp.
+ * <p/>Each device gets an input from {@link #newInput(String)}. The messages of a device are
+ * already in order, so they are held until every other active device has sent a message at
+ * least as recent, then released in a k-way merge. A device that sent nothing for
+ * {@link #IDLE_TIMEOUT_MS} does not hold the others back, and an input holding more than
+ * {@link #MAX_HELD_MESSAGES} releases its oldest messages anyway.
+ * <p/>Only the sequence numbers and the timestamps of the held messages are kept. The output
+ * gets the released messages as runs of the same device, each with the session of the device.
+ * <p/>The output keeps at most maxMessages messages, the oldest are reported as removed.
+ */
+public class MergedOutput {
+    public static final long IDLE_TIMEOUT_MS = 500;
+    public static final int MAX_HELD_MESSAGES = 4096;
+
+    private final String mName;
+    private final FilterOutput mOutput;
+    private final int mMaxMessages;
+    private final List<Input> mInputs = new ArrayList<Input>();
+    private int mOutputCount = 0;
+    /** sequence numbers of the run being released */
+    private long[] mRun = new long[256];
+
+    private final class Input implements FilterOutput {
+        /** session of the device, set by its first messages */
+        private LogCatWrapper mLogcat = null;
+        private LogBuffer.Entry mEntry = null;
+        /** sequence numbers of the held messages, and their timestamps in nanoseconds */
+        private final SeqRing mHeldSeqs = new SeqRing();
+        private final SeqRing mHeldTimestamps = new SeqRing();
+        /** timestamp of the newest message received, in nanoseconds */
+        private long mLastTimestamp = Long.MIN_VALUE;
+        private long mLastReceiveTime = 0;
+
+        @Override
+        public void out(String filterName, LogCatWrapper logcat, long[] newSeqs,
+                int numRemoved) {
+            // removals are tracked by the merged output itself.
+            if (newSeqs.length > 0) {
+                received(this, logcat, newSeqs);
+            }
+        }
+
+        @Override
+        public void replace(String filterName, LogCatWrapper logcat, long[] seqs) {
+            // the merged messages are not filtered again, only the new ones are merged.
+        }
+
+        boolean isActive(long now) {
+            return now - mLastReceiveTime < IDLE_TIMEOUT_MS;
+        }
+    }
+
+    /**
+     * @param name name given to the output.
+     * @param output
+     * @param maxMessages number of messages kept by the output.
+     */
+    public MergedOutput(String name, FilterOutput output, int maxMessages) {
+        mName = name;
+        mOutput = output;
+        mMaxMessages = maxMessages;
+    }
+
+    /**
+     * @param serial serial number of the device.
+     * @return the output to give to a filter of the device, all its messages are merged.
+     */
+    public synchronized FilterOutput newInput(String serial) {
+        Input input = new Input();
+        mInputs.add(input);
+        return input;
+    }
+
+    /**
+     * Releases the messages that were only held back by devices which became idle.
+     * To be called periodically, as nothing else is received when every device is idle.
+     */
+    public synchronized void poll() {
+        release(getWatermark(System.currentTimeMillis()));
+    }
+
+    /**
+     * Releases the messages still held, whatever the other devices sent.
+     */
+    public synchronized void flush() {
+        release(Long.MAX_VALUE);
+    }
+
+    private synchronized void received(Input input, LogCatWrapper logcat, long[] seqs) {
+        long now = System.currentTimeMillis();
+        if (input.mLogcat != logcat) {
+            input.mLogcat = logcat;
+            input.mEntry = logcat.getLogBuffer().newEntry();
+        }
+        // the new messages are still in the buffer, their timestamps are read once.
+        for (long seq : seqs) {
+            input.mEntry.moveTo(seq);
+            input.mHeldSeqs.add(seq);
+            input.mHeldTimestamps.add(input.mEntry.getTimestampNanos());
+        }
+        input.mLastTimestamp = input.mHeldTimestamps.last();
+        input.mLastReceiveTime = now;
+
+        release(getWatermark(now));
+
+        for (Input i : mInputs) {
+            int excess = i.mHeldSeqs.size() - MAX_HELD_MESSAGES;
+            if (excess > 0) {
+                // the held messages are in order: releasing up to the newest of the excess
+                // ones brings the input back to the cap.
+                release(i.mHeldTimestamps.get(excess - 1));
+            }
+        }
+    }
+
+    /**
+     * @return the timestamp up to which the messages are final: the oldest of the newest
+     *         timestamps of the active devices.
+     */
+    private long getWatermark(long now) {
+        long watermark = Long.MAX_VALUE;
+        for (Input i : mInputs) {
+            if (i.isActive(now)) {
+                watermark = Math.min(watermark, i.mLastTimestamp);
+            }
+        }
+        return watermark;
+    }
+
+    private void release(long watermark) {
+        Input runInput = null;
+        int runLength = 0;
+        while (true) {
+            Input oldest = null;
+            long oldestTimestamp = Long.MAX_VALUE;
+            for (Input i : mInputs) {
+                if (i.mHeldSeqs.isEmpty() == false
+                        && i.mHeldTimestamps.first() <= oldestTimestamp) {
+                    oldest = i;
+                    oldestTimestamp = i.mHeldTimestamps.first();
+                }
+            }
+            if (oldest == null || oldestTimestamp > watermark) {
+                break;
+            }
+            if (oldest != runInput) {
+                output(runInput, runLength);
+                runInput = oldest;
+                runLength = 0;
+            }
+            if (runLength == mRun.length) {
+                mRun = Arrays.copyOf(mRun, runLength * 2);
+            }
+            mRun[runLength++] = oldest.mHeldSeqs.removeFirst();
+            oldest.mHeldTimestamps.removeFirst();
+        }
+        output(runInput, runLength);
+    }
+
+    /**
+     * Outputs a run of released messages of one device.
+     */
+    private void output(Input input, int length) {
+        if (length == 0) {
+            return;
+        }
+        mOutputCount += length;
+        int numRemoved = Math.max(0, mOutputCount - mMaxMessages);
+        mOutputCount -= numRemoved;
+        mOutput.out(mName, input.mLogcat, Arrays.copyOf(mRun, length), numRemoved);
+    }
+}
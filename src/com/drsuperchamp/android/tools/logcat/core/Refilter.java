@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.core;
+
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper.LogFilter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Filters the messages of the buffer again after the criteria of a filter changed.
+ * <p/>The messages in the buffer when the run starts are split in chunks filtered in parallel,
+ * while new messages keep being added to the filter with the new criteria. The accepted
+ * messages then replace those of the filter at once.
+ * <p/>Each run has a generation of the filter. A run stops as soon as the criteria change
+ * again, and its result is dropped.
+ */
+class Refilter extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    /** number of messages filtered by a task */
+    static final int CHUNK_SIZE = 16384;
+
+    private final LogBuffer mBuffer;
+    private final LogFilter mFilter;
+    private final long mGeneration;
+
+    /**
+     * @param buffer
+     * @param filter
+     * @param generation generation of the criteria of the filter to apply.
+     */
+    Refilter(LogBuffer buffer, LogFilter filter, long generation) {
+        mBuffer = buffer;
+        mFilter = filter;
+        mGeneration = generation;
+    }
+
+    @Override
+    protected void compute() {
+        long firstSeq = mBuffer.getFirstSeq();
+        long endSeq = mBuffer.getNextSeq();
+
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        for (long seq = firstSeq; seq < endSeq; seq += CHUNK_SIZE) {
+            chunks.add(new Chunk(seq, Math.min(seq + CHUNK_SIZE, endSeq)));
+        }
+        invokeAll(chunks);
+        if (mFilter.isCurrent(mGeneration) == false) {
+            return;
+        }
+
+        int numAccepted = 0;
+        for (Chunk chunk : chunks) {
+            numAccepted += chunk.getRawResult().size();
+        }
+        long[] accepted = new long[numAccepted];
+        int index = 0;
+        for (Chunk chunk : chunks) {
+            SeqRing seqs = chunk.getRawResult();
+            for (int n = 0; n < seqs.size(); n++) {
+                accepted[index++] = seqs.get(n);
+            }
+        }
+        mFilter.replaceMessages(mGeneration, endSeq, accepted);
+    }
+
+    /**
+     * Filters the messages start to end - 1.
+     */
+    private final class Chunk extends RecursiveTask<SeqRing> {
+        private static final long serialVersionUID = 1L;
+        /** number of messages between two checks of the generation */
+        private static final int CHECK_INTERVAL = 1024;
+
+        private final long mStart;
+        private final long mEnd;
+
+        Chunk(long start, long end) {
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        protected SeqRing compute() {
+            SeqRing accepted = new SeqRing();
+            LogBuffer.Entry entry = mBuffer.newEntry();
+            for (long seq = mStart; seq < mEnd; seq++) {
+                if ((seq - mStart) % CHECK_INTERVAL == 0
+                        && mFilter.isCurrent(mGeneration) == false) {
+                    break;
+                }
+                // evicted messages are skipped.
+                if (entry.moveTo(seq) && mFilter.accept(entry)) {
+                    accepted.add(seq);
+                }
+            }
+            return accepted;
+        }
+    }
+}
@@ -0,0 +1,468 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.core;
+
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper.LogMessageInfo;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Inverted index of the messages in the {@link LogBuffer}, by word, tag and pid.
+ * <p/>Words are the runs of letters and digits of the messages, compared without case. Each
+ * word, tag and pid has a list of the sequence numbers of its messages, stored as variable
+ * length deltas. The messages evicted from the buffer are removed from the lists lazily: when a
+ * list is added to or searched, and by a sweep of a few lists at each message. When the words
+ * or the pids reach twice the number that still had messages at the last count, the empty
+ * lists are dropped and the ids renumbered, so the dictionary is bounded by the buffer even
+ * with unique words like addresses or counters.
+ * <p/>Queries are words, "tag:name" and "pid:number" terms. The terms are all required, unless
+ * they are separated by "OR" (or '|'), which has a lower precedence:
+ * <pre>binder died OR tag:ActivityManager pid:123</pre>
+ */
+public class SearchIndex {
+    /** longer words are not indexed */
+    public static final int MAX_WORD_LENGTH = 64;
+    private static final String TAG_PREFIX = "tag:"; //$NON-NLS-1$
+    private static final String PID_PREFIX = "pid:"; //$NON-NLS-1$
+    /** number of lists swept for evicted messages at each message */
+    private static final int SWEEP_PER_MESSAGE = 2;
+    /** the words or pids are never compacted below this number */
+    private static final int MIN_COMPACT_SIZE = 4096;
+    private static final long[] NO_HITS = new long[0];
+
+    /**
+     * Increasing sequence numbers, as variable length deltas.
+     */
+    private static final class Postings {
+        private static final int INITIAL_SIZE = 8;
+
+        byte[] data = new byte[INITIAL_SIZE];
+        /** offset of the first entry */
+        int start = 0;
+        int end = 0;
+        /** the first entry is a delta from this */
+        long baseSeq = 0;
+        long lastSeq = -1;
+        int count = 0;
+
+        void add(long seq) {
+            if (seq <= lastSeq) {
+                // the word is in the message more than once.
+                return;
+            }
+            if (count == 0) {
+                start = 0;
+                end = 0;
+                baseSeq = seq;
+            }
+            long delta = count == 0 ? 0 : seq - lastSeq;
+            if (end + 10 > data.length) {
+                compact(Math.max(data.length * 2, end - start + 10));
+            }
+            while ((delta & ~0x7fL) != 0) {
+                data[end++] = (byte) ((delta & 0x7f) | 0x80);
+                delta >>>= 7;
+            }
+            data[end++] = (byte) delta;
+            lastSeq = seq;
+            count++;
+        }
+
+        /**
+         * Removes the entries before firstSeq.
+         */
+        void prune(long firstSeq) {
+            if (count == 0 || firstSeq <= baseSeq) {
+                return;
+            }
+            if (lastSeq < firstSeq) {
+                clear();
+                return;
+            }
+            int pos = start;
+            long seq = baseSeq;
+            while (count > 0) {
+                long delta = 0;
+                int shift = 0;
+                int next = pos;
+                byte b;
+                do {
+                    b = data[next++];
+                    delta |= (long) (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                if (seq + delta >= firstSeq) {
+                    break;
+                }
+                seq += delta;
+                pos = next;
+                count--;
+            }
+            // the new first entry is a delta from the last removed one.
+            start = pos;
+            baseSeq = seq;
+            if (start > data.length / 2) {
+                compact(data.length);
+            }
+        }
+
+        /**
+         * @return the sequence numbers of the entries.
+         */
+        long[] decode() {
+            long[] seqs = new long[count];
+            int pos = start;
+            long seq = baseSeq;
+            for (int n = 0; n < count; n++) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[pos++];
+                    delta |= (long) (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                seq += delta;
+                seqs[n] = seq;
+            }
+            return seqs;
+        }
+
+        void clear() {
+            if (data.length > INITIAL_SIZE) {
+                data = new byte[INITIAL_SIZE];
+            }
+            start = 0;
+            end = 0;
+            count = 0;
+        }
+
+        private void compact(int size) {
+            byte[] newData = size == data.length ? data : new byte[size];
+            System.arraycopy(data, start, newData, 0, end - start);
+            end -= start;
+            start = 0;
+            data = newData;
+        }
+    }
+
+    private final SymbolTable mTags;
+    private SymbolTable mWords = new SymbolTable();
+    private SymbolTable mPids = new SymbolTable();
+    private Postings[] mWordPostings = new Postings[256];
+    private Postings[] mTagPostings = new Postings[64];
+    private Postings[] mPidPostings = new Postings[64];
+    private long mFirstSeq = 0;
+    private int mSweepCursor = 0;
+    /** number of words or pids at which they are compacted */
+    private int mWordsCompactSize = MIN_COMPACT_SIZE;
+    private int mPidsCompactSize = MIN_COMPACT_SIZE;
+
+    /** scratch buffer for the lower case words */
+    private final char[] mWord = new char[MAX_WORD_LENGTH];
+    private final CharBuffer mWordBuffer = CharBuffer.wrap(mWord);
+
+    /**
+     * @param tags the tags of the session, shared with its {@link LogBuffer}.
+     */
+    public SearchIndex(SymbolTable tags) {
+        mTags = tags;
+    }
+
+    /**
+     * Indexes a message.
+     * @param seq sequence number of the message.
+     * @param info
+     * @param message
+     * @param firstSeq sequence number of the oldest message still in the buffer.
+     */
+    public synchronized void add(long seq, LogMessageInfo info, String message, long firstSeq) {
+        mFirstSeq = firstSeq;
+
+        int length = message.length();
+        int n = 0;
+        while (n < length) {
+            while (n < length && Character.isLetterOrDigit(message.charAt(n)) == false) {
+                n++;
+            }
+            int wordStart = n;
+            while (n < length && Character.isLetterOrDigit(message.charAt(n))) {
+                n++;
+            }
+            int wordLength = n - wordStart;
+            if (wordLength == 0 || wordLength > MAX_WORD_LENGTH) {
+                continue;
+            }
+            for (int i = 0; i < wordLength; i++) {
+                mWord[i] = Character.toLowerCase(message.charAt(wordStart + i));
+            }
+            int id = mWords.intern(mWordBuffer, 0, wordLength);
+            mWordPostings = add(mWordPostings, id, seq);
+        }
+
+        int tagId = info.tagId != SymbolTable.NO_ID ? info.tagId : mTags.intern(info.tag);
+        mTagPostings = add(mTagPostings, tagId, seq);
+        mPidPostings = add(mPidPostings, mPids.intern(info.pid), seq);
+
+        sweep();
+        if (mWords.size() >= mWordsCompactSize) {
+            SymbolTable words = new SymbolTable();
+            mWordPostings = compact(mWords, mWordPostings, words);
+            mWords = words;
+            mWordsCompactSize = Math.max(MIN_COMPACT_SIZE, 2 * words.size());
+        }
+        if (mPids.size() >= mPidsCompactSize) {
+            SymbolTable pids = new SymbolTable();
+            mPidPostings = compact(mPids, mPidPostings, pids);
+            mPids = pids;
+            mPidsCompactSize = Math.max(MIN_COMPACT_SIZE, 2 * pids.size());
+        }
+    }
+
+    /**
+     * @param query
+     * @return the sorted sequence numbers of the messages in the buffer matching the query.
+     */
+    public synchronized long[] search(String query) {
+        List<List<String>> groups = new ArrayList<List<String>>();
+        List<String> group = new ArrayList<String>();
+        for (String term : query.trim().split("\\s+")) { //$NON-NLS-1$
+            if (term.equals("OR") || term.equals("|")) { //$NON-NLS-1$ //$NON-NLS-2$
+                groups.add(group);
+                group = new ArrayList<String>();
+            } else if (term.length() > 0) {
+                group.add(term);
+            }
+        }
+        groups.add(group);
+
+        long[] hits = NO_HITS;
+        for (List<String> terms : groups) {
+            if (terms.isEmpty() == false) {
+                hits = union(hits, searchAll(terms));
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * @param hits sorted sequence numbers.
+     * @param seq
+     * @return the first hit after seq, or -1.
+     */
+    public static long nextHit(long[] hits, long seq) {
+        int index = Arrays.binarySearch(hits, seq + 1);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return index < hits.length ? hits[index] : -1;
+    }
+
+    /**
+     * @param hits sorted sequence numbers.
+     * @param seq
+     * @return the last hit before seq, or -1.
+     */
+    public static long previousHit(long[] hits, long seq) {
+        int index = Arrays.binarySearch(hits, seq - 1);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        return index >= 0 ? hits[index] : -1;
+    }
+
+    /**
+     * @return the messages matching every term.
+     */
+    private long[] searchAll(List<String> terms) {
+        List<Postings> lists = new ArrayList<Postings>();
+        for (String term : terms) {
+            if (term.startsWith(TAG_PREFIX)) {
+                int id = mTags.find(term.substring(TAG_PREFIX.length()));
+                if (addList(lists, mTagPostings, id) == false) {
+                    return NO_HITS;
+                }
+            } else if (term.startsWith(PID_PREFIX)) {
+                int id = mPids.find(term.substring(PID_PREFIX.length()));
+                if (addList(lists, mPidPostings, id) == false) {
+                    return NO_HITS;
+                }
+            } else {
+                // a term like "foo.bar" requires both of its words.
+                int n = 0;
+                int length = term.length();
+                while (n < length) {
+                    while (n < length && Character.isLetterOrDigit(term.charAt(n)) == false) {
+                        n++;
+                    }
+                    int wordStart = n;
+                    while (n < length && Character.isLetterOrDigit(term.charAt(n))) {
+                        n++;
+                    }
+                    if (n > wordStart) {
+                        String word = term.substring(wordStart, n).toLowerCase();
+                        if (addList(lists, mWordPostings, mWords.find(word)) == false) {
+                            return NO_HITS;
+                        }
+                    }
+                }
+            }
+        }
+        if (lists.isEmpty()) {
+            return NO_HITS;
+        }
+
+        // intersect from the shortest list.
+        Postings shortest = lists.get(0);
+        for (Postings p : lists) {
+            if (p.count < shortest.count) {
+                shortest = p;
+            }
+        }
+        long[] hits = shortest.decode();
+        for (Postings p : lists) {
+            if (p != shortest) {
+                hits = intersect(hits, p.decode());
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Adds the pruned list of the id.
+     * @return false if there is no such list, or it is empty.
+     */
+    private boolean addList(List<Postings> lists, Postings[] postings, int id) {
+        if (id == SymbolTable.NO_ID || id >= postings.length || postings[id] == null) {
+            return false;
+        }
+        Postings p = postings[id];
+        p.prune(mFirstSeq);
+        if (p.count == 0) {
+            return false;
+        }
+        lists.add(p);
+        return true;
+    }
+
+    private Postings[] add(Postings[] postings, int id, long seq) {
+        if (id >= postings.length) {
+            postings = Arrays.copyOf(postings, Math.max(id + 1, postings.length * 2));
+        }
+        Postings p = postings[id];
+        if (p == null) {
+            p = postings[id] = new Postings();
+        }
+        p.prune(mFirstSeq);
+        p.add(seq);
+        return postings;
+    }
+
+    /**
+     * Prunes a few lists, so the lists that are not added to anymore are emptied too.
+     */
+    private void sweep() {
+        int total = mWordPostings.length + mTagPostings.length + mPidPostings.length;
+        for (int n = 0; n < SWEEP_PER_MESSAGE; n++) {
+            int index = mSweepCursor++ % total;
+            Postings p;
+            if (index < mWordPostings.length) {
+                p = mWordPostings[index];
+            } else if (index < mWordPostings.length + mTagPostings.length) {
+                p = mTagPostings[index - mWordPostings.length];
+            } else {
+                p = mPidPostings[index - mWordPostings.length - mTagPostings.length];
+            }
+            if (p != null) {
+                p.prune(mFirstSeq);
+            }
+        }
+        if (mSweepCursor >= total) {
+            mSweepCursor = 0;
+        }
+    }
+
+    /**
+     * Moves the symbols whose list still has messages to a new table.
+     * @param symbols
+     * @param postings the lists of the symbols.
+     * @param newSymbols the new table, empty.
+     * @return the lists of the new table.
+     */
+    private Postings[] compact(SymbolTable symbols, Postings[] postings, SymbolTable newSymbols) {
+        int size = Math.min(symbols.size(), postings.length);
+        Postings[] newPostings = new Postings[size];
+        for (int id = 0; id < size; id++) {
+            Postings p = postings[id];
+            if (p != null) {
+                p.prune(mFirstSeq);
+                if (p.count > 0) {
+                    newPostings[newSymbols.intern(symbols.get(id))] = p;
+                }
+            }
+        }
+        mSweepCursor = 0;
+        // room for as many new symbols before the next compaction.
+        return Arrays.copyOf(newPostings, Math.max(64, 2 * newSymbols.size()));
+    }
+
+    private static long[] intersect(long[] a, long[] b) {
+        long[] result = new long[Math.min(a.length, b.length)];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[size++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    private static long[] union(long[] a, long[] b) {
+        if (a.length == 0) {
+            return b;
+        }
+        long[] result = new long[a.length + b.length];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            long next;
+            if (j >= b.length || (i < a.length && a[i] < b[j])) {
+                next = a[i++];
+            } else if (i >= a.length || b[j] < a[i]) {
+                next = b[j++];
+            } else {
+                next = a[i];
+                i++;
+                j++;
+            }
+            result[size++] = next;
+        }
+        return Arrays.copyOf(result, size);
+    }
+}
@@ -0,0 +1,499 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.core;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper.LogMessage;
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper.LogMessageInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only store of the messages on disk, keeping the history evicted from the
+ * {@link LogBuffer}.
+ * <p/>Messages are written with their {@link LogBuffer} sequence number to segment files of
+ * a fixed maximum size, through a staging buffer and a sequential {@link FileChannel}. Each
+ * segment has a sparse in-memory index of the offset of one record in
+ * {@link #INDEX_INTERVAL}. Full segments are memory-mapped once to read the messages back,
+ * so the history is not loaded on the heap; the records of the segment being written are
+ * read through its channel, one index interval at a time.
+ * <p/>The oldest segments are deleted when the store is over its maximum size, or when they
+ * are older than the maximum age. The segment being written is never deleted.
+ * <p/>Record format: int length of the rest of the record, long seq, long timestamp in
+ * milliseconds, int nanoseconds within the second, int pid, int tid, byte priority,
+ * short length of the tag, the tag and the message in UTF-8.
+ */
+public class SegmentedLogStore {
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    /** one record out of this is indexed */
+    public static final int INDEX_INTERVAL = 64;
+
+    private static final int HEADER_SIZE = 4 + 8 + 8 + 4 + 4 + 4 + 1 + 2;
+    private static final int STAGING_SIZE = 256 * 1024;
+    private static final String SEGMENT_SUFFIX = ".seg"; //$NON-NLS-1$
+
+    private static final LogLevel[] sLevels = new LogLevel[8];
+    static {
+        for (LogLevel level : LogLevel.values()) {
+            sLevels[level.getPriority()] = level;
+        }
+    }
+
+    private static final class Segment {
+        final File file;
+        final long firstSeq;
+        long nextSeq;
+        /** bytes written to the file */
+        long size = 0;
+        /** wall clock time of the last write */
+        long lastWriteTime;
+        long[] indexSeqs = new long[16];
+        int[] indexOffsets = new int[16];
+        int indexSize = 0;
+        /** mapping of the whole file, once it is full */
+        MappedByteBuffer mapped = null;
+
+        Segment(File file, long firstSeq) {
+            this.file = file;
+            this.firstSeq = firstSeq;
+            this.nextSeq = firstSeq;
+        }
+
+        void index(long seq, int offset) {
+            if (indexSize == indexSeqs.length) {
+                long[] seqs = new long[indexSize * 2];
+                int[] offsets = new int[indexSize * 2];
+                System.arraycopy(indexSeqs, 0, seqs, 0, indexSize);
+                System.arraycopy(indexOffsets, 0, offsets, 0, indexSize);
+                indexSeqs = seqs;
+                indexOffsets = offsets;
+            }
+            indexSeqs[indexSize] = seq;
+            indexOffsets[indexSize] = offset;
+            indexSize++;
+        }
+
+        /**
+         * @return the position in the index of the closest indexed record at or before seq.
+         */
+        int floorIndex(long seq) {
+            int low = 0;
+            int high = indexSize - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (indexSeqs[mid] <= seq) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+    }
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private long mMaxBytes = 0;
+    private long mMaxAgeMs = 0;
+
+    private final List<Segment> mSegments = new ArrayList<Segment>();
+    private long mTotalBytes = 0;
+    private long mNextSeq = -1;
+
+    private RandomAccessFile mFile = null;
+    private FileChannel mChannel = null;
+    private final ByteBuffer mStaging = ByteBuffer.allocateDirect(STAGING_SIZE);
+    private ByteBuffer mRecord = ByteBuffer.allocate(HEADER_SIZE + 1024);
+    /** records of the segment being written, read back */
+    private ByteBuffer mRead = ByteBuffer.allocate(STAGING_SIZE);
+
+    private final CharsetEncoder mEncoder;
+    private final CharsetDecoder mDecoder;
+    private CharBuffer mChars = CharBuffer.allocate(1024);
+    private final LogTime mLogTime = new LogTime();
+
+    /**
+     * @param directory directory of the segment files, created if needed. It should be
+     *        empty, existing segments are not read.
+     * @param segmentSize max size of a segment file.
+     * @throws IOException if the directory cannot be created.
+     */
+    public SegmentedLogStore(File directory, int segmentSize) throws IOException {
+        if (directory.isDirectory() == false && directory.mkdirs() == false) {
+            throw new IOException("Cannot create " + directory); //$NON-NLS-1$
+        }
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        Charset utf8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+        mEncoder = utf8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        mDecoder = utf8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Sets the retention, applied when a segment is full.
+     * @param maxBytes max size of all the segments, 0 for no limit.
+     * @param maxAgeMs max time since the last write to a segment, 0 for no limit.
+     */
+    public synchronized void setRetention(long maxBytes, long maxAgeMs) {
+        mMaxBytes = maxBytes;
+        mMaxAgeMs = maxAgeMs;
+    }
+
+    /**
+     * Appends a message. Sequence numbers must be increasing, a gap is allowed.
+     * @param seq
+     * @param info
+     * @param message
+     * @throws IOException
+     */
+    public synchronized void append(long seq, LogMessageInfo info, String message)
+            throws IOException {
+        if (seq < mNextSeq) {
+            return;
+        }
+        encodeRecord(seq, info, message);
+        int length = mRecord.remaining();
+
+        Segment segment = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+        if (segment == null || mChannel == null
+                || (segment.size + length > mSegmentSize && segment.size > 0)) {
+            segment = roll(seq);
+        }
+        if (mStaging.remaining() < length) {
+            flushStaging();
+        }
+
+        if ((seq - segment.firstSeq) % INDEX_INTERVAL == 0 || segment.indexSize == 0) {
+            segment.index(seq, (int) segment.size);
+        }
+        if (length > mStaging.capacity()) {
+            while (mRecord.hasRemaining()) {
+                mChannel.write(mRecord);
+            }
+        } else {
+            mStaging.put(mRecord);
+        }
+        segment.size += length;
+        segment.nextSeq = seq + 1;
+        segment.lastWriteTime = System.currentTimeMillis();
+        mTotalBytes += length;
+        mNextSeq = seq + 1;
+    }
+
+    /**
+     * Writes the staged records to the file.
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        flushStaging();
+    }
+
+    /**
+     * @return the sequence number of the oldest message in the store, or
+     *         {@link #getNextSeq()} if it is empty.
+     */
+    public synchronized long getFirstSeq() {
+        if (mSegments.isEmpty()) {
+            return Math.max(mNextSeq, 0);
+        }
+        return mSegments.get(0).firstSeq;
+    }
+
+    /**
+     * @return the sequence number after the newest message in the store.
+     */
+    public synchronized long getNextSeq() {
+        return Math.max(mNextSeq, 0);
+    }
+
+    /**
+     * @return the size of all the segments.
+     */
+    public synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * @return the number of segment files.
+     */
+    public synchronized int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    /**
+     * Reads a message back.
+     * @param seq
+     * @return the message, or null if it is not in the store.
+     */
+    public synchronized LogMessage get(long seq) {
+        Segment segment = findSegment(seq);
+        if (segment == null) {
+            return null;
+        }
+        try {
+            int index = segment.floorIndex(seq);
+            int offset = segment.indexOffsets[index];
+            ByteBuffer buffer;
+            int end;
+            if (segment == mSegments.get(mSegments.size() - 1) && mChannel != null) {
+                // the records from the indexed one to the next indexed one.
+                flushStaging();
+                end = index + 1 < segment.indexSize
+                        ? segment.indexOffsets[index + 1] : (int) segment.size;
+                buffer = read(offset, end - offset);
+                end -= offset;
+                offset = 0;
+            } else {
+                buffer = map(segment);
+                end = buffer.capacity();
+            }
+            while (offset < end) {
+                int length = buffer.getInt(offset);
+                long recordSeq = buffer.getLong(offset + 4);
+                if (recordSeq == seq) {
+                    return decodeRecord(buffer, offset, length);
+                }
+                if (recordSeq > seq) {
+                    break;
+                }
+                offset += 4 + length;
+            }
+        } catch (IOException e) {
+            Util.log(LogLevel.WARN, "Cannot read " + segment.file + ": " + e); //$NON-NLS-1$
+        }
+        return null;
+    }
+
+    /**
+     * Writes the staged records and closes the file. The segments are kept.
+     */
+    public synchronized void close() {
+        try {
+            flushStaging();
+        } catch (IOException e) {
+            Util.log(LogLevel.WARN, "Cannot write the log store: " + e); //$NON-NLS-1$
+        }
+        closeFile();
+        for (Segment segment : mSegments) {
+            segment.mapped = null;
+        }
+    }
+
+    /**
+     * Closes the store and deletes its segment files.
+     */
+    public synchronized void delete() {
+        close();
+        for (Segment segment : mSegments) {
+            segment.file.delete();
+        }
+        mSegments.clear();
+        mTotalBytes = 0;
+    }
+
+    private Segment roll(long firstSeq) throws IOException {
+        flushStaging();
+        closeFile();
+        enforceRetention();
+
+        File file = new File(mDirectory, String.format("%016x", firstSeq) + SEGMENT_SUFFIX); //$NON-NLS-1$
+        mFile = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+        Segment segment = new Segment(file, firstSeq);
+        segment.lastWriteTime = System.currentTimeMillis();
+        mSegments.add(segment);
+        return segment;
+    }
+
+    private void enforceRetention() {
+        long now = System.currentTimeMillis();
+        while (mSegments.isEmpty() == false) {
+            Segment oldest = mSegments.get(0);
+            boolean tooBig = mMaxBytes > 0 && mTotalBytes > mMaxBytes;
+            boolean tooOld = mMaxAgeMs > 0 && now - oldest.lastWriteTime > mMaxAgeMs;
+            if (tooBig == false && tooOld == false) {
+                break;
+            }
+            mSegments.remove(0);
+            mTotalBytes -= oldest.size;
+            // a file still mapped is only freed by the garbage collector on some systems.
+            oldest.mapped = null;
+            if (oldest.file.delete() == false) {
+                Util.log(LogLevel.WARN, "Cannot delete " + oldest.file); //$NON-NLS-1$
+            }
+        }
+    }
+
+    private void flushStaging() throws IOException {
+        if (mChannel == null || mStaging.position() == 0) {
+            return;
+        }
+        mStaging.flip();
+        while (mStaging.hasRemaining()) {
+            mChannel.write(mStaging);
+        }
+        mStaging.clear();
+    }
+
+    private void closeFile() {
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                Util.log(LogLevel.WARN, "Cannot close the log store: " + e); //$NON-NLS-1$
+            }
+            mFile = null;
+            mChannel = null;
+        }
+    }
+
+    private Segment findSegment(long seq) {
+        int low = 0;
+        int high = mSegments.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Segment segment = mSegments.get(mid);
+            if (seq < segment.firstSeq) {
+                high = mid - 1;
+            } else if (seq >= segment.nextSeq) {
+                low = mid + 1;
+            } else {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the full segment, mapped at the first read.
+     */
+    private ByteBuffer map(Segment segment) throws IOException {
+        if (segment.mapped == null) {
+            RandomAccessFile file = new RandomAccessFile(segment.file, "r"); //$NON-NLS-1$
+            try {
+                segment.mapped = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                        segment.size);
+            } finally {
+                file.close();
+            }
+        }
+        return segment.mapped;
+    }
+
+    /**
+     * Reads bytes of the segment being written, the staged records must have been written.
+     * @return a buffer holding the bytes from its start.
+     */
+    private ByteBuffer read(int offset, int length) throws IOException {
+        if (mRead.capacity() < length) {
+            mRead = ByteBuffer.allocate(Math.max(length, mRead.capacity() * 2));
+        }
+        mRead.clear();
+        mRead.limit(length);
+        while (mRead.hasRemaining()) {
+            if (mChannel.read(mRead, offset + mRead.position()) < 0) {
+                throw new IOException("Unexpected end of the log store"); //$NON-NLS-1$
+            }
+        }
+        return mRead;
+    }
+
+    private void encodeRecord(long seq, LogMessageInfo info, String message) {
+        String tag = info.tag != null ? info.tag : ""; //$NON-NLS-1$
+        int maxLength = HEADER_SIZE + (tag.length() + message.length()) * 3;
+        if (mRecord.capacity() < maxLength) {
+            mRecord = ByteBuffer.allocate(Math.max(maxLength, mRecord.capacity() * 2));
+        }
+        mRecord.clear();
+        mRecord.position(4);
+        mRecord.putLong(seq);
+        mRecord.putLong(info.timestamp);
+        mRecord.putInt(info.nanos);
+        mRecord.putInt(info.pid);
+        mRecord.putInt(info.tid);
+        mRecord.put((byte) info.logLevel.getPriority());
+        int tagLengthPosition = mRecord.position();
+        mRecord.position(tagLengthPosition + 2);
+        encode(tag);
+        mRecord.putShort(tagLengthPosition, (short) (mRecord.position() - tagLengthPosition - 2));
+        encode(message);
+        mRecord.putInt(0, mRecord.position() - 4);
+        mRecord.flip();
+    }
+
+    private void encode(String s) {
+        mEncoder.reset();
+        mEncoder.encode(CharBuffer.wrap(s), mRecord, true);
+        mEncoder.flush(mRecord);
+    }
+
+    private LogMessage decodeRecord(ByteBuffer buffer, int offset, int length) {
+        LogMessageInfo info = new LogMessageInfo();
+        int position = offset + 4;
+        long seq = buffer.getLong(position);
+        info.timestamp = buffer.getLong(position + 8);
+        info.nanos = buffer.getInt(position + 16);
+        info.pid = buffer.getInt(position + 20);
+        info.tid = buffer.getInt(position + 24);
+        int priority = buffer.get(position + 28);
+        info.logLevel = priority >= 0 && priority < sLevels.length && sLevels[priority] != null
+                ? sLevels[priority] : LogLevel.VERBOSE;
+        int tagLength = buffer.getShort(position + 29) & 0xffff;
+        int tagStart = position + 31;
+        int end = offset + 4 + length;
+        info.tag = decode(buffer, tagStart, tagLength);
+        info.pidString = Integer.toString(info.pid);
+        info.time = mLogTime.format(info.timestamp);
+
+        LogMessage message = new LogMessage();
+        message.seq = seq;
+        message.data = info;
+        message.msg = decode(buffer, tagStart + tagLength, end - tagStart - tagLength);
+        return message;
+    }
+
+    private String decode(ByteBuffer buffer, int start, int length) {
+        if (mChars.capacity() < length) {
+            mChars = CharBuffer.allocate(length);
+        }
+        ByteBuffer bytes = buffer.duplicate();
+        bytes.limit(start + length);
+        bytes.position(start);
+        mChars.clear();
+        mDecoder.reset();
+        mDecoder.decode(bytes, mChars, true);
+        mDecoder.flush(mChars);
+        return new String(mChars.array(), 0, mChars.position());
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.core;
+
+/**
+ * Growable circular queue of increasing {@link LogBuffer} sequence numbers, or of other
+ * longs kept along with them.
+ * <p/>Sequence numbers are added at the tail and removed from the head, both in O(1).
+ * Not thread safe.
+ */
+class SeqRing {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] mSeqs;
+    private int mHead = 0;
+    private int mSize = 0;
+
+    SeqRing() {
+        mSeqs = new long[INITIAL_CAPACITY];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    void add(long seq) {
+        if (mSize == mSeqs.length) {
+            grow();
+        }
+        mSeqs[(mHead + mSize) & (mSeqs.length - 1)] = seq;
+        mSize++;
+    }
+
+    /**
+     * @return the oldest sequence number. The ring must not be empty.
+     */
+    long first() {
+        return mSeqs[mHead];
+    }
+
+    /**
+     * @return the newest sequence number. The ring must not be empty.
+     */
+    long last() {
+        return mSeqs[(mHead + mSize - 1) & (mSeqs.length - 1)];
+    }
+
+    /**
+     * Removes the oldest sequence number. The ring must not be empty.
+     * @return the removed sequence number.
+     */
+    long removeFirst() {
+        long seq = mSeqs[mHead];
+        mHead = (mHead + 1) & (mSeqs.length - 1);
+        mSize--;
+        return seq;
+    }
+
+    /**
+     * @param index 0 for the oldest sequence number.
+     */
+    long get(int index) {
+        return mSeqs[(mHead + index) & (mSeqs.length - 1)];
+    }
+
+    void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+    private void grow() {
+        long[] seqs = new long[mSeqs.length * 2];
+        int headLength = Math.min(mSize, mSeqs.length - mHead);
+        System.arraycopy(mSeqs, mHead, seqs, 0, headLength);
+        System.arraycopy(mSeqs, 0, seqs, headLength, mSize - headLength);
+        mSeqs = seqs;
+        mHead = 0;
+    }
+}
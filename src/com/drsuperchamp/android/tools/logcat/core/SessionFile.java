@@ -0,0 +1,608 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.core;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper.LogMessage;
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper.LogMessageInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary file of a saved session.
+ * <p/>The messages are written in blocks of {@link #BLOCK_MESSAGES}, each compressed with
+ * {@link Deflater}. Inside a block the values are stored by column, as variable length
+ * deltas from the previous message: sequence numbers, timestamps, pids, tids (from the pid),
+ * levels, tag ids, text lengths, then the UTF-8 texts. The tags are written once, in a
+ * dictionary in the footer, with the index of the blocks (offset, sequence numbers and time
+ * range) and the next sequence number. The file ends with the offset of the footer.
+ * <p/>A {@link Reader} only reads the footer when it is opened, the blocks are decompressed
+ * when their messages are asked for.
+ */
+public class SessionFile {
+    /** number of messages per block */
+    public static final int BLOCK_MESSAGES = 4096;
+
+    private static final int MAGIC = 0x4c434753; // "LCGS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    /** footer offset and magic */
+    private static final int TRAILER_SIZE = 12;
+    /** number of decompressed blocks kept by a reader */
+    private static final int CACHED_BLOCKS = 8;
+
+    private static final Charset sUtf8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+    private static final LogLevel[] sLevels = new LogLevel[8];
+    static {
+        for (LogLevel level : LogLevel.values()) {
+            sLevels[level.getPriority()] = level;
+        }
+    }
+
+    private SessionFile() {
+    }
+
+    /**
+     * Saves all the messages of a session still readable: its store, then its buffer.
+     * @param logcat
+     * @param file
+     * @throws IOException
+     */
+    public static void save(LogCatWrapper logcat, File file) throws IOException {
+        Writer writer = new Writer(file, logcat.getTags());
+        try {
+            long end = logcat.getNextSeq();
+            for (long seq = logcat.getFirstSeq(); seq < end; seq++) {
+                LogMessage message = logcat.getMessage(seq);
+                if (message != null) {
+                    writer.append(seq, message.data, message.msg);
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Growable byte array with variable length integers.
+     */
+    private static final class Bytes {
+        byte[] data = new byte[1024];
+        int size = 0;
+
+        void writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                data[size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            data[size++] = (byte) value;
+        }
+
+        void writeSigned(long value) {
+            // zigzag, so small negative deltas are small too.
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        void writeByte(int value) {
+            ensure(1);
+            data[size++] = (byte) value;
+        }
+
+        void write(byte[] bytes, int offset, int length) {
+            ensure(length);
+            System.arraycopy(bytes, offset, data, size, length);
+            size += length;
+        }
+
+        void write(Bytes bytes) {
+            write(bytes.data, 0, bytes.size);
+        }
+
+        private void ensure(int length) {
+            if (size + length > data.length) {
+                data = Arrays.copyOf(data, Math.max(size + length, data.length * 2));
+            }
+        }
+    }
+
+    /**
+     * Reads the variable length integers of a byte array.
+     */
+    private static final class BytesReader {
+        final byte[] data;
+        int position;
+
+        BytesReader(byte[] data, int position) {
+            this.data = data;
+            this.position = position;
+        }
+
+        long readVarint() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[position++];
+                value |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+
+        long readSigned() {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+
+    /**
+     * Writes a session file. The file is only complete once closed.
+     */
+    public static class Writer {
+        private final RandomAccessFile mFile;
+        private final FileChannel mChannel;
+        private final SymbolTable mTags;
+        private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+        private byte[] mCompressed = new byte[64 * 1024];
+        private long mPosition = HEADER_SIZE;
+
+        /** columns of the current block */
+        private final Bytes mSeqs = new Bytes();
+        private final Bytes mTimestamps = new Bytes();
+        private final Bytes mPids = new Bytes();
+        private final Bytes mTids = new Bytes();
+        private final Bytes mLevels = new Bytes();
+        private final Bytes mTagIds = new Bytes();
+        private final Bytes mLengths = new Bytes();
+        private final Bytes mTexts = new Bytes();
+        private final Bytes mBlock = new Bytes();
+        private int mBlockCount = 0;
+        private long mBlockFirstSeq;
+        private long mBlockMinTimestamp;
+        private long mBlockMaxTimestamp;
+        private long mLastSeq;
+        private long mLastTimestamp;
+        private int mLastPid;
+        private long mNextSeq = 0;
+
+        /** index of the written blocks, in the format of the footer */
+        private final Bytes mIndex = new Bytes();
+        private int mNumBlocks = 0;
+
+        /**
+         * @param file
+         * @param tags the tags of the session, the ids of the messages refer to it.
+         * @throws IOException
+         */
+        public Writer(File file, SymbolTable tags) throws IOException {
+            mTags = tags;
+            mFile = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+            mFile.setLength(0);
+            mChannel = mFile.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            writeFully(header, 0);
+        }
+
+        /**
+         * @param seq sequence number of the message, greater than the previous one.
+         * @param info
+         * @param message
+         * @throws IOException
+         */
+        public void append(long seq, LogMessageInfo info, String message) throws IOException {
+            long timestamp = info.timestamp * 1000000L + info.nanos % 1000000;
+            if (mBlockCount == 0) {
+                mBlockFirstSeq = seq;
+                mBlockMinTimestamp = timestamp;
+                mBlockMaxTimestamp = timestamp;
+                mLastSeq = seq - 1;
+                mLastTimestamp = 0;
+                mLastPid = 0;
+            }
+            int tagId = info.tagId != SymbolTable.NO_ID ? info.tagId : mTags.intern(info.tag);
+            byte[] text = message.getBytes(sUtf8);
+
+            mSeqs.writeVarint(seq - mLastSeq - 1);
+            mTimestamps.writeSigned(timestamp - mLastTimestamp);
+            mPids.writeSigned(info.pid - mLastPid);
+            mTids.writeSigned(info.tid - info.pid);
+            mLevels.writeByte(info.logLevel.getPriority());
+            mTagIds.writeVarint(tagId);
+            mLengths.writeVarint(text.length);
+            mTexts.write(text, 0, text.length);
+
+            mLastSeq = seq;
+            mLastTimestamp = timestamp;
+            mLastPid = info.pid;
+            mNextSeq = seq + 1;
+            mBlockMinTimestamp = Math.min(mBlockMinTimestamp, timestamp);
+            mBlockMaxTimestamp = Math.max(mBlockMaxTimestamp, timestamp);
+            if (++mBlockCount == BLOCK_MESSAGES) {
+                writeBlock();
+            }
+        }
+
+        /**
+         * Writes the last block and the footer.
+         * @throws IOException
+         */
+        public void close() throws IOException {
+            try {
+                if (mBlockCount > 0) {
+                    writeBlock();
+                }
+
+                Bytes footer = new Bytes();
+                int numTags = mTags.size();
+                footer.writeVarint(numTags);
+                for (int id = 0; id < numTags; id++) {
+                    byte[] tag = mTags.get(id).getBytes(sUtf8);
+                    footer.writeVarint(tag.length);
+                    footer.write(tag, 0, tag.length);
+                }
+                footer.writeVarint(mNumBlocks);
+                footer.write(mIndex);
+                footer.writeVarint(mNextSeq);
+
+                long footerOffset = mPosition;
+                writeFully(ByteBuffer.wrap(footer.data, 0, footer.size), mPosition);
+                mPosition += footer.size;
+                ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+                trailer.putLong(footerOffset).putInt(MAGIC).flip();
+                writeFully(trailer, mPosition);
+            } finally {
+                mDeflater.end();
+                mFile.close();
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            mBlock.size = 0;
+            mBlock.writeVarint(mBlockCount);
+            mBlock.write(mSeqs);
+            mBlock.write(mTimestamps);
+            mBlock.write(mPids);
+            mBlock.write(mTids);
+            mBlock.write(mLevels);
+            mBlock.write(mTagIds);
+            mBlock.write(mLengths);
+            mBlock.write(mTexts);
+
+            mDeflater.reset();
+            mDeflater.setInput(mBlock.data, 0, mBlock.size);
+            mDeflater.finish();
+            int compressedSize = 0;
+            while (mDeflater.finished() == false) {
+                if (compressedSize == mCompressed.length) {
+                    mCompressed = Arrays.copyOf(mCompressed, mCompressed.length * 2);
+                }
+                compressedSize += mDeflater.deflate(mCompressed, compressedSize,
+                        mCompressed.length - compressedSize);
+            }
+            writeFully(ByteBuffer.wrap(mCompressed, 0, compressedSize), mPosition);
+
+            mIndex.writeVarint(mPosition);
+            mIndex.writeVarint(compressedSize);
+            mIndex.writeVarint(mBlock.size);
+            mIndex.writeVarint(mBlockFirstSeq);
+            mIndex.writeVarint(mBlockCount);
+            mIndex.writeSigned(mBlockMinTimestamp);
+            mIndex.writeSigned(mBlockMaxTimestamp);
+            mNumBlocks++;
+
+            mPosition += compressedSize;
+            mSeqs.size = 0;
+            mTimestamps.size = 0;
+            mPids.size = 0;
+            mTids.size = 0;
+            mLevels.size = 0;
+            mTagIds.size = 0;
+            mLengths.size = 0;
+            mTexts.size = 0;
+            mBlockCount = 0;
+        }
+
+        private void writeFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += mChannel.write(buffer, position);
+            }
+        }
+    }
+
+    /**
+     * Reads a session file. Only the footer is read when it is opened.
+     * <p/>Thread safe.
+     */
+    public static class Reader {
+        private final RandomAccessFile mFile;
+        private final FileChannel mChannel;
+        private final Inflater mInflater = new Inflater();
+        private final LogTime mLogTime = new LogTime();
+        private final SymbolTable mPidStrings = new SymbolTable();
+
+        /** tag ids of the file to ids of the session the messages are read into */
+        private final int[] mTagIds;
+        private final SymbolTable mTags;
+
+        private final long[] mBlockOffsets;
+        private final int[] mBlockSizes;
+        private final int[] mBlockRawSizes;
+        private final long[] mBlockFirstSeqs;
+        private final int[] mBlockCounts;
+        /** latest timestamp up to the end of each block, in nanoseconds */
+        private final long[] mBlockMaxTimestamps;
+        private final long mNextSeq;
+
+        /** decompressed blocks, least recently used first */
+        private final Map<Integer, LogMessage[]> mCache =
+                new LinkedHashMap<Integer, LogMessage[]>(CACHED_BLOCKS * 2, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, LogMessage[]> eldest) {
+                return size() > CACHED_BLOCKS;
+            }
+        };
+
+        /**
+         * @param file
+         * @param tags the tags of the session the messages are read into.
+         * @throws IOException if the file is not a complete session file.
+         */
+        public Reader(File file, SymbolTable tags) throws IOException {
+            mTags = tags;
+            mFile = new RandomAccessFile(file, "r"); //$NON-NLS-1$
+            boolean isOpened = false;
+            try {
+                mChannel = mFile.getChannel();
+                long size = mChannel.size();
+                if (size < HEADER_SIZE + TRAILER_SIZE) {
+                    throw new IOException("Not a session file: " + file); //$NON-NLS-1$
+                }
+                ByteBuffer header = readFully(0, HEADER_SIZE);
+                ByteBuffer trailer = readFully(size - TRAILER_SIZE, TRAILER_SIZE);
+                long footerOffset = trailer.getLong();
+                if (header.getInt() != MAGIC || trailer.getInt() != MAGIC
+                        || footerOffset < HEADER_SIZE || footerOffset > size - TRAILER_SIZE) {
+                    throw new IOException("Not a session file: " + file); //$NON-NLS-1$
+                }
+                if (header.getInt() != VERSION) {
+                    throw new IOException("Unknown session file version: " + file); //$NON-NLS-1$
+                }
+
+                byte[] footer = new byte[(int) (size - TRAILER_SIZE - footerOffset)];
+                readFully(footerOffset, footer.length).get(footer);
+                BytesReader in = new BytesReader(footer, 0);
+                mTagIds = new int[(int) in.readVarint()];
+                for (int id = 0; id < mTagIds.length; id++) {
+                    int length = (int) in.readVarint();
+                    mTagIds[id] = tags.intern(new String(footer, in.position, length, sUtf8));
+                    in.position += length;
+                }
+
+                int numBlocks = (int) in.readVarint();
+                mBlockOffsets = new long[numBlocks];
+                mBlockSizes = new int[numBlocks];
+                mBlockRawSizes = new int[numBlocks];
+                mBlockFirstSeqs = new long[numBlocks];
+                mBlockCounts = new int[numBlocks];
+                mBlockMaxTimestamps = new long[numBlocks];
+                long maxTimestamp = 0;
+                for (int n = 0; n < numBlocks; n++) {
+                    mBlockOffsets[n] = in.readVarint();
+                    mBlockSizes[n] = (int) in.readVarint();
+                    mBlockRawSizes[n] = (int) in.readVarint();
+                    mBlockFirstSeqs[n] = in.readVarint();
+                    mBlockCounts[n] = (int) in.readVarint();
+                    in.readSigned();
+                    maxTimestamp = Math.max(maxTimestamp, in.readSigned());
+                    mBlockMaxTimestamps[n] = maxTimestamp;
+                }
+                mNextSeq = in.readVarint();
+                isOpened = true;
+            } finally {
+                if (isOpened == false) {
+                    mFile.close();
+                }
+            }
+        }
+
+        /**
+         * @return the sequence number of the first message, the next one if there is none.
+         */
+        public long getFirstSeq() {
+            return mBlockFirstSeqs.length > 0 ? mBlockFirstSeqs[0] : mNextSeq;
+        }
+
+        /**
+         * @return the sequence number after the last message.
+         */
+        public long getNextSeq() {
+            return mNextSeq;
+        }
+
+        /**
+         * @param seq
+         * @return the message, or null if it isn't in the file.
+         */
+        public synchronized LogMessage get(long seq) {
+            int index = Arrays.binarySearch(mBlockFirstSeqs, seq);
+            if (index < 0) {
+                index = -index - 2;
+            }
+            if (index < 0) {
+                return null;
+            }
+            LogMessage[] block = getBlock(index);
+            if (block == null) {
+                return null;
+            }
+            // sequence numbers are mostly contiguous in a block.
+            int position = (int) Math.min(seq - mBlockFirstSeqs[index], block.length - 1);
+            while (position > 0 && block[position].seq > seq) {
+                position--;
+            }
+            return block[position].seq == seq ? block[position] : null;
+        }
+
+        /**
+         * Finds the first message at or after a time. The messages are expected in the order
+         * of their times.
+         * @param timestamp milliseconds since the epoch.
+         * @return the sequence number of the message, {@link #getNextSeq()} if all the
+         *         messages are older.
+         */
+        public synchronized long findSeq(long timestamp) {
+            long nanos = timestamp * 1000000L;
+            int low = 0;
+            int high = mBlockMaxTimestamps.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (mBlockMaxTimestamps[mid] < nanos) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (low == mBlockMaxTimestamps.length) {
+                return mNextSeq;
+            }
+            LogMessage[] block = getBlock(low);
+            if (block != null) {
+                for (LogMessage message : block) {
+                    if (message.data.timestamp * 1000000L + message.data.nanos % 1000000 >= nanos) {
+                        return message.seq;
+                    }
+                }
+            }
+            return mBlockFirstSeqs[low];
+        }
+
+        public void close() throws IOException {
+            synchronized (this) {
+                mInflater.end();
+                mCache.clear();
+            }
+            mFile.close();
+        }
+
+        /**
+         * @return the messages of the block, or null if it can't be read.
+         */
+        private LogMessage[] getBlock(int index) {
+            Integer key = Integer.valueOf(index);
+            LogMessage[] block = mCache.get(key);
+            if (block == null) {
+                try {
+                    block = readBlock(index);
+                    mCache.put(key, block);
+                } catch (IOException e) {
+                    Util.log(LogLevel.WARN, "Cannot read block " + index + ": " + e); //$NON-NLS-1$
+                }
+            }
+            return block;
+        }
+
+        private LogMessage[] readBlock(int index) throws IOException {
+            byte[] compressed = new byte[mBlockSizes[index]];
+            readFully(mBlockOffsets[index], compressed.length).get(compressed);
+            byte[] raw = new byte[mBlockRawSizes[index]];
+            mInflater.reset();
+            mInflater.setInput(compressed);
+            try {
+                int size = 0;
+                while (size < raw.length && mInflater.finished() == false) {
+                    int n = mInflater.inflate(raw, size, raw.length - size);
+                    if (n == 0 && mInflater.needsInput()) {
+                        throw new IOException("Truncated block"); //$NON-NLS-1$
+                    }
+                    size += n;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupted block: " + e.getMessage()); //$NON-NLS-1$
+            }
+
+            BytesReader in = new BytesReader(raw, 0);
+            int count = (int) in.readVarint();
+            LogMessage[] messages = new LogMessage[count];
+            LogMessageInfo[] infos = new LogMessageInfo[count];
+            long seq = mBlockFirstSeqs[index] - 1;
+            for (int n = 0; n < count; n++) {
+                messages[n] = new LogMessage();
+                messages[n].data = infos[n] = new LogMessageInfo();
+                seq += in.readVarint() + 1;
+                messages[n].seq = seq;
+            }
+            long timestamp = 0;
+            for (int n = 0; n < count; n++) {
+                timestamp += in.readSigned();
+                infos[n].timestamp = Math.floorDiv(timestamp, 1000000L);
+                infos[n].nanos = (int) Math.floorMod(timestamp, 1000000000L);
+                infos[n].time = mLogTime.format(infos[n].timestamp);
+            }
+            int pid = 0;
+            for (int n = 0; n < count; n++) {
+                pid += (int) in.readSigned();
+                infos[n].pid = pid;
+                infos[n].pidString = mPidStrings.get(mPidStrings.intern(pid));
+            }
+            for (int n = 0; n < count; n++) {
+                infos[n].tid = infos[n].pid + (int) in.readSigned();
+            }
+            for (int n = 0; n < count; n++) {
+                infos[n].logLevel = sLevels[raw[in.position++] & 0x7];
+            }
+            for (int n = 0; n < count; n++) {
+                infos[n].tagId = mTagIds[(int) in.readVarint()];
+                infos[n].tag = mTags.get(infos[n].tagId);
+            }
+            int[] lengths = new int[count];
+            for (int n = 0; n < count; n++) {
+                lengths[n] = (int) in.readVarint();
+            }
+            for (int n = 0; n < count; n++) {
+                messages[n].msg = new String(raw, in.position, lengths[n], sUtf8);
+                in.position += lengths[n];
+            }
+            return messages;
+        }
+
+        private ByteBuffer readFully(long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (mChannel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of file"); //$NON-NLS-1$
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+}
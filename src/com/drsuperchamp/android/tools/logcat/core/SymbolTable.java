@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.core;
+
+import java.nio.CharBuffer;
+
+/**
+ * Session scoped table of canonical strings (tags, pids).
+ * <p/>Each distinct string gets a small int id, starting at 0, and a single {@link String}
+ * instance shared by every message. Strings can be looked up from a range of characters, so
+ * a known symbol doesn't need a new {@link String} to be found.
+ */
+public class SymbolTable {
+    /** id returned for symbols that are not known */
+    public static final int NO_ID = -1;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** id -> symbol */
+    private volatile String[] mSymbols = new String[INITIAL_CAPACITY];
+    private int[] mHashes = new int[INITIAL_CAPACITY];
+    private int mSize = 0;
+
+    /** open addressing hash table, slot -> id + 1, 0 for empty slots */
+    private int[] mSlots = new int[INITIAL_CAPACITY * 2];
+
+    /** scratch buffer for {@link #intern(int)} */
+    private final char[] mDigits = new char[11];
+    private final CharBuffer mDigitsBuffer = CharBuffer.wrap(mDigits);
+
+    /**
+     * @param s
+     * @return the id of the symbol, added if needed.
+     */
+    public int intern(String s) {
+        return intern(s, 0, s.length());
+    }
+
+    /**
+     * @param value
+     * @return the id of the decimal representation of value, added if needed.
+     */
+    public synchronized int intern(int value) {
+        // digits are written backward from the end of the buffer.
+        int pos = mDigits.length;
+        long abs = Math.abs((long) value);
+        do {
+            mDigits[--pos] = (char) ('0' + abs % 10);
+            abs /= 10;
+        } while (abs != 0);
+        if (value < 0) {
+            mDigits[--pos] = '-';
+        }
+        return intern(mDigitsBuffer, pos, mDigits.length);
+    }
+
+    /**
+     * Returns the id of the symbol made of the characters s[start, end), the symbol is added
+     * if needed.
+     * @param s
+     * @param start
+     * @param end
+     * @return the id of the symbol.
+     */
+    public synchronized int intern(CharSequence s, int start, int end) {
+        int hash = hash(s, start, end);
+        int mask = mSlots.length - 1;
+        int slot = hash & mask;
+        while (true) {
+            int entry = mSlots[slot];
+            if (entry == 0) {
+                break;
+            }
+            int id = entry - 1;
+            if (mHashes[id] == hash && equals(mSymbols[id], s, start, end)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int id = mSize;
+        if (id == mHashes.length) {
+            grow();
+            return intern(s, start, end);
+        }
+        mHashes[id] = hash;
+        mSymbols[id] = s.subSequence(start, end).toString();
+        mSlots[slot] = id + 1;
+        mSize++;
+        // publish the new symbol for readers.
+        mSymbols = mSymbols;
+        return id;
+    }
+
+    /**
+     * @param s
+     * @return the id of the symbol, or {@link #NO_ID} if it isn't in the table.
+     */
+    public synchronized int find(String s) {
+        int hash = hash(s, 0, s.length());
+        int mask = mSlots.length - 1;
+        int slot = hash & mask;
+        int entry;
+        while ((entry = mSlots[slot]) != 0) {
+            int id = entry - 1;
+            if (mHashes[id] == hash && mSymbols[id].equals(s)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NO_ID;
+    }
+
+    /**
+     * @param id
+     * @return the canonical string for the id.
+     */
+    public String get(int id) {
+        return mSymbols[id];
+    }
+
+    /**
+     * @return the number of symbols.
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    private void grow() {
+        int capacity = mHashes.length * 2;
+        String[] symbols = new String[capacity];
+        System.arraycopy(mSymbols, 0, symbols, 0, mSize);
+        int[] hashes = new int[capacity];
+        System.arraycopy(mHashes, 0, hashes, 0, mSize);
+
+        int[] slots = new int[capacity * 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < mSize; id++) {
+            int slot = hashes[id] & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id + 1;
+        }
+
+        mHashes = hashes;
+        mSlots = slots;
+        mSymbols = symbols;
+    }
+
+    private static int hash(CharSequence s, int start, int end) {
+        // same as String.hashCode(), spread for the power of two table.
+        int h = 0;
+        for (int n = start; n < end; n++) {
+            h = 31 * h + s.charAt(n);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equals(String symbol, CharSequence s, int start, int end) {
+        int length = end - start;
+        if (symbol.length() != length) {
+            return false;
+        }
+        for (int n = 0; n < length; n++) {
+            if (symbol.charAt(n) != s.charAt(start + n)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
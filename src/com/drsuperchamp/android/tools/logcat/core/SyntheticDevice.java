@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.core;
+
+import com.drsuperchamp.android.tools.logcat.core.AdbWrapper.DeviceConnectionListener;
+import com.drsuperchamp.android.tools.logcat.core.AdbWrapper.ShellOutputReceiver;
+
+import java.util.Random;
+
+/**
+ * Fake devices running logcat, to load test the capture without a device.
+ * <p/>{@link #executeShellCommand(String, String, ShellOutputReceiver)} runs
+ * {@link LogCatWrapper#LOGCAT_COMMAND} or {@link LogCatWrapper#LOGCAT_BINARY_COMMAND}: random
+ * messages are generated at the configured rate, with optional periodic bursts, and handed to
+ * the receiver in packets of random sizes cut anywhere, "\r\n" included, as read from the adb
+ * socket. The messages carry the time they were due, so the latency of the capture is the
+ * time they are shown minus their timestamp, including the time the receiver kept the device
+ * waiting.
+ * <p/>The messages and packets of a device only depend on the seed and the serial number.
+ */
+public class SyntheticDevice implements DeviceSessionManager.ShellExecutor {
+    public static final String SERIAL_PREFIX = "synthetic-"; //$NON-NLS-1$
+    public static final int DEFAULT_RATE = 1000;
+    /** most messages generated at once when the rate is not limited */
+    private static final int MAX_BATCH = 256;
+    /** time between two batches when the rate is limited */
+    private static final long TICK_MS = 1;
+    /** how far after the cut of a packet a "\r\n" is looked for to split it */
+    private static final int CRLF_SEARCH_LENGTH = 256;
+
+    private final String[] mSerials;
+    private final long mSeed;
+    private volatile int mRate = DEFAULT_RATE;
+    private volatile int mBurstRate = 0;
+    private volatile long mBurstDurationMs = 0;
+    private volatile long mBurstPeriodMs = 0;
+    private volatile int mMinPacketSize = 256;
+    private volatile int mMaxPacketSize = 16 * 1024;
+    private volatile double mCrLfSplitRatio = 0.05;
+    private volatile long mMaxMessages = 0;
+    private volatile int mNumTags = 64;
+    private volatile int mNumPids = 24;
+    private volatile double mStackTraceRatio = 0.1;
+
+    /**
+     * @param numDevices number of devices, named {@link #SERIAL_PREFIX} followed by 1 to
+     *        numDevices.
+     * @param seed
+     */
+    public SyntheticDevice(int numDevices, long seed) {
+        mSerials = new String[numDevices];
+        for (int n = 0; n < numDevices; n++) {
+            mSerials[n] = SERIAL_PREFIX + (n + 1);
+        }
+        mSeed = seed;
+    }
+
+    /**
+     * Announces the devices to the listener, as {@link AdbWrapper#connect(String,
+     * DeviceConnectionListener)} does for the connected devices.
+     * @param listener
+     */
+    public void connect(DeviceConnectionListener listener) {
+        for (String serial : mSerials) {
+            listener.deviceConnected(serial);
+        }
+    }
+
+    public String[] getConnectedDevices() {
+        return mSerials.clone();
+    }
+
+    /**
+     * @param messagesPerSecond messages generated per second by each device,
+     *        0 to generate them as fast as they are received.
+     */
+    public void setRate(int messagesPerSecond) {
+        mRate = messagesPerSecond;
+    }
+
+    /**
+     * Sets bursts of messages: the first durationMs of every periodMs, the rate is burstRate.
+     * @param burstRate messages per second during the bursts, 0 for no bursts.
+     * @param durationMs
+     * @param periodMs
+     */
+    public void setBursts(int burstRate, long durationMs, long periodMs) {
+        mBurstRate = burstRate;
+        mBurstDurationMs = durationMs;
+        mBurstPeriodMs = periodMs;
+    }
+
+    /**
+     * @param minSize smallest packet given to the receivers.
+     * @param maxSize largest packet, the read buffer of ddmlib is 16 KB.
+     */
+    public void setPacketSizes(int minSize, int maxSize) {
+        mMinPacketSize = minSize;
+        mMaxPacketSize = maxSize;
+    }
+
+    /**
+     * @param ratio part of the packets cut between a '\r' and its '\n'.
+     */
+    public void setCrLfSplitRatio(double ratio) {
+        mCrLfSplitRatio = ratio;
+    }
+
+    /**
+     * @param maxMessages number of messages after which the command ends, 0 for no end.
+     */
+    public void setMaxMessages(long maxMessages) {
+        mMaxMessages = maxMessages;
+    }
+
+    /**
+     * @param numTags number of tags, the first ones log the most.
+     * @param numPids number of processes logging.
+     * @param stackTraceRatio part of the warnings and errors with a stack trace.
+     */
+    public void setContent(int numTags, int numPids, double stackTraceRatio) {
+        mNumTags = numTags;
+        mNumPids = numPids;
+        mStackTraceRatio = stackTraceRatio;
+    }
+
+    /**
+     * @return the number of messages generated in the first elapsedMs.
+     */
+    private long getMessagesDue(long elapsedMs) {
+        long due = mRate * elapsedMs / 1000;
+        if (mBurstRate > 0 && mBurstPeriodMs > 0) {
+            long burstMs = (elapsedMs / mBurstPeriodMs) * mBurstDurationMs
+                    + Math.min(elapsedMs % mBurstPeriodMs, mBurstDurationMs);
+            due += (mBurstRate - mRate) * burstMs / 1000;
+        }
+        return due;
+    }
+
+    /**
+     * @return the time the message is due, in milliseconds from the start.
+     */
+    private long getDueTime(long index) {
+        int rate = mRate;
+        int burstRate = mBurstRate;
+        long periodMs = mBurstPeriodMs;
+        if (burstRate <= 0 || periodMs <= 0) {
+            return index * 1000 / rate;
+        }
+        long durationMs = mBurstDurationMs;
+        long burstMessages = burstRate * durationMs / 1000;
+        long periodMessages = burstMessages + rate * (periodMs - durationMs) / 1000;
+        long periods = index / Math.max(periodMessages, 1);
+        long rest = index - periods * periodMessages;
+        long time = periods * periodMs;
+        if (rest < burstMessages) {
+            return time + rest * 1000 / burstRate;
+        }
+        return time + durationMs + (rest - burstMessages) * 1000 / rate;
+    }
+
+    /**
+     * Generates messages until the receiver is cancelled, the thread interrupted, or
+     * {@link #setMaxMessages(long)} messages are generated.
+     * @return false if the device or the command is not known.
+     */
+    @Override
+    public boolean executeShellCommand(String devSerialNumber, String shellCmd,
+            ShellOutputReceiver receiver) {
+        boolean binary;
+        if (isCommand(shellCmd, LogCatWrapper.LOGCAT_BINARY_COMMAND)) {
+            binary = true;
+        } else if (isCommand(shellCmd, LogCatWrapper.LOGCAT_COMMAND)) {
+            binary = false;
+        } else {
+            return false;
+        }
+        int device = -1;
+        for (int n = 0; n < mSerials.length; n++) {
+            if (mSerials[n].equals(devSerialNumber)) {
+                device = n;
+            }
+        }
+        if (device == -1) {
+            return false;
+        }
+
+        long seed = mSeed * 31 + device;
+        SyntheticLog log = new SyntheticLog(seed, mNumTags, mNumPids, mStackTraceRatio);
+        Random packetRandom = new Random(seed);
+        long start = System.nanoTime();
+        long startTime = System.currentTimeMillis();
+        long count = 0;
+        while (receiver.isCancelled() == false && Thread.currentThread().isInterrupted() == false) {
+            long maxMessages = mMaxMessages;
+            if (maxMessages > 0 && count >= maxMessages) {
+                break;
+            }
+            long due;
+            if (mRate == 0) {
+                due = count + MAX_BATCH;
+            } else {
+                due = getMessagesDue((System.nanoTime() - start) / 1000000);
+            }
+            if (maxMessages > 0) {
+                due = Math.min(due, maxMessages);
+            }
+            if (due <= count) {
+                try {
+                    Thread.sleep(TICK_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                continue;
+            }
+
+            int batch = (int) Math.min(due - count, MAX_BATCH);
+            long now = System.currentTimeMillis();
+            log.reset();
+            for (int n = 0; n < batch; n++) {
+                long timestamp = mRate == 0 ? now : startTime + getDueTime(count + n);
+                if (binary) {
+                    log.appendBinary(timestamp);
+                } else {
+                    log.appendText(timestamp);
+                }
+            }
+            count += batch;
+            send(log.getBytes(), log.length(), packetRandom, receiver);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if shellCmd is the command, with or without arguments. The arguments,
+     *         filterspecs or "-T time", are ignored: every message is generated.
+     */
+    private static boolean isCommand(String shellCmd, String command) {
+        return shellCmd.equals(command) || shellCmd.startsWith(command + " "); //$NON-NLS-1$
+    }
+
+    /**
+     * Gives the data to the receiver in packets of random sizes.
+     */
+    private void send(byte[] data, int length, Random random, ShellOutputReceiver receiver) {
+        int minSize = mMinPacketSize;
+        int maxSize = Math.max(mMaxPacketSize, minSize);
+        int pos = 0;
+        while (pos < length) {
+            int cut = Math.min(pos + minSize + random.nextInt(maxSize - minSize + 1), length);
+            if (cut < length && random.nextDouble() < mCrLfSplitRatio) {
+                // cut the next "\r\n" in two instead.
+                int end = Math.min(cut + CRLF_SEARCH_LENGTH, length - 1);
+                for (int n = cut; n < end; n++) {
+                    if (data[n] == '\r' && data[n + 1] == '\n') {
+                        cut = n + 1;
+                        break;
+                    }
+                }
+            }
+            receiver.addOutput(data, pos, cut - pos);
+            pos = cut;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.core;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates random logcat messages, as the output of "adb shell logcat -v long" or
+ * "adb shell logcat -B".
+ * <p/>Tags follow a Zipf distribution, each tag belongs to a process and logs from a few of its
+ * threads. Some warnings and errors come with a multi-line stack trace. The same seed gives
+ * the same messages.
+ * <p/>The messages are encoded in a reused byte array, with every '\n' turned into "\r\n" as
+ * by the pty of "adb shell".
+ */
+class SyntheticLog {
+    private static final Charset sUtf8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+    private static final String[] TAG_NAMES = {
+        "ActivityManager", "dalvikvm", "WindowManager", "wpa_supplicant", "AudioFlinger", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+        "SurfaceFlinger", "chromium", "InputDispatcher", "PackageManager", "art", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+        "ConnectivityService", "System.err", "MediaPlayer", "BluetoothAdapter", "Choreographer", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+        "OpenGLRenderer", "PowerManagerService", "LocationManagerService", "GCoreUlr", "Finsky", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+        "AndroidRuntime", "Zygote", "libc", "SyncManager", "BatteryService", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+    };
+    private static final String[] WORDS = (
+            "the a of to and in is for on with service started stopped connection timeout " //$NON-NLS-1$
+            + "request response buffer frame window activity intent broadcast package install " //$NON-NLS-1$
+            + "update sync account network wifi state changed received sending error failed " //$NON-NLS-1$
+            + "retry ms bytes count id user process uid thread handler looper message queue " //$NON-NLS-1$
+            + "event input key touch display surface layer texture memory heap alloc free gc") //$NON-NLS-1$
+            .split(" "); //$NON-NLS-1$
+    private static final String[] NON_ASCII_WORDS = {
+        "\u00e9t\u00e9", "na\u00efve", "\u65e5\u672c\u8a9e", "\u00fcber", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+    };
+    /** android_LogPriority of V, D, I, W, E */
+    private static final int[] PRIORITIES = {2, 3, 4, 5, 6};
+    /** share of each priority, in tenths of percents */
+    private static final int[] PRIORITY_WEIGHTS = {100, 350, 350, 120, 80};
+    private static final char[] PRIORITY_LETTERS = {'?', '?', 'V', 'D', 'I', 'W', 'E', 'F'};
+    private static final int NUM_MESSAGES = 4096;
+    private static final int NUM_STACK_TRACES = 64;
+    private static final int THREADS_PER_PROCESS = 8;
+    /** size of the header of a logger_entry */
+    private static final int ENTRY_HEADER_SIZE = 20;
+
+    private final Random mRandom;
+    private final LogTime mLogTime = new LogTime();
+    private final double mStackTraceRatio;
+
+    private final byte[][] mTags;
+    private final int[] mTagPids;
+    /** cumulative weights of the tags */
+    private final double[] mTagWeights;
+    private final byte[][] mMessages;
+    /** stack traces, lines separated by '\n' */
+    private final byte[][] mStackTraces;
+
+    private byte[] mBytes = new byte[64 * 1024];
+    private int mLength = 0;
+    private byte[] mEntry = new byte[ENTRY_HEADER_SIZE + 4096];
+
+    /**
+     * @param seed
+     * @param numTags number of tags.
+     * @param numPids number of processes logging.
+     * @param stackTraceRatio part of the warnings and errors with a stack trace.
+     */
+    SyntheticLog(long seed, int numTags, int numPids, double stackTraceRatio) {
+        mRandom = new Random(seed);
+        mStackTraceRatio = stackTraceRatio;
+
+        int[] pids = new int[numPids];
+        for (int n = 0; n < numPids; n++) {
+            pids[n] = 100 + mRandom.nextInt(32000);
+        }
+        mTags = new byte[numTags][];
+        mTagPids = new int[numTags];
+        mTagWeights = new double[numTags];
+        double total = 0;
+        for (int n = 0; n < numTags; n++) {
+            String tag = n < TAG_NAMES.length ? TAG_NAMES[n] : "Tag" + n; //$NON-NLS-1$
+            mTags[n] = tag.getBytes(sUtf8);
+            mTagPids[n] = pids[n % numPids];
+            total += 1.0 / (n + 1);
+            mTagWeights[n] = total;
+        }
+        for (int n = 0; n < numTags; n++) {
+            mTagWeights[n] /= total;
+        }
+
+        mMessages = new byte[NUM_MESSAGES][];
+        for (int n = 0; n < NUM_MESSAGES; n++) {
+            mMessages[n] = randomMessage().getBytes(sUtf8);
+        }
+        mStackTraces = new byte[NUM_STACK_TRACES][];
+        for (int n = 0; n < NUM_STACK_TRACES; n++) {
+            mStackTraces[n] = randomStackTrace().getBytes(sUtf8);
+        }
+    }
+
+    private String randomMessage() {
+        StringBuilder sb = new StringBuilder();
+        // mostly short messages, a few long ones.
+        int numWords = 2 + (int) (-Math.log(1 - mRandom.nextDouble()) * 10);
+        for (int n = 0; n < numWords; n++) {
+            if (n > 0) {
+                sb.append(' ');
+            }
+            int kind = mRandom.nextInt(100);
+            if (kind < 8) {
+                sb.append(mRandom.nextInt(100000));
+            } else if (kind < 10) {
+                sb.append("0x").append(Integer.toHexString(mRandom.nextInt())); //$NON-NLS-1$
+            } else if (kind < 11 && n == numWords - 1) {
+                sb.append(NON_ASCII_WORDS[mRandom.nextInt(NON_ASCII_WORDS.length)]);
+            } else {
+                sb.append(WORDS[mRandom.nextInt(WORDS.length)]);
+            }
+        }
+        return sb.toString();
+    }
+
+    private String randomStackTrace() {
+        StringBuilder sb = new StringBuilder("java.lang.IllegalStateException: "); //$NON-NLS-1$
+        sb.append(randomMessage());
+        int numFrames = 3 + mRandom.nextInt(20);
+        for (int n = 0; n < numFrames; n++) {
+            String word = WORDS[mRandom.nextInt(WORDS.length)];
+            String className = Character.toUpperCase(word.charAt(0)) + word.substring(1);
+            sb.append("\n\tat com.android.").append(WORDS[mRandom.nextInt(WORDS.length)]) //$NON-NLS-1$
+                    .append('.').append(className)
+                    .append('.').append(WORDS[mRandom.nextInt(WORDS.length)])
+                    .append('(').append(className).append(".java:") //$NON-NLS-1$
+                    .append(10 + mRandom.nextInt(3000)).append(')');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Empties the output.
+     */
+    void reset() {
+        mLength = 0;
+    }
+
+    /**
+     * @return the output, valid up to {@link #length()}.
+     */
+    byte[] getBytes() {
+        return mBytes;
+    }
+
+    int length() {
+        return mLength;
+    }
+
+    /**
+     * Adds a message in the "logcat -v long" format.
+     * @param timestamp time of the message, milliseconds since the epoch.
+     */
+    void appendText(long timestamp) {
+        int tag = nextTag();
+        int priority = nextPriority();
+        byte[] message = nextMessage(priority);
+
+        ensureCapacity(64 + mTags[tag].length + message.length * 2);
+        // [ 10-17 14:02:10.123  1234: 1250 I/ActivityManager ]
+        putByte('[');
+        putByte(' ');
+        String time = mLogTime.format(timestamp);
+        for (int n = 0; n < time.length(); n++) {
+            putByte(time.charAt(n));
+        }
+        putByte(' ');
+        putInt(mTagPids[tag], 5);
+        putByte(':');
+        putInt(nextTid(tag), 5);
+        putByte(' ');
+        putByte(PRIORITY_LETTERS[priority]);
+        putByte('/');
+        putBytes(mTags[tag], 0, mTags[tag].length);
+        putByte(' ');
+        putByte(']');
+        putNewLine();
+        putTranslated(message, 0, message.length);
+        putNewLine();
+        putNewLine();
+    }
+
+    /**
+     * Adds a message as a logger_entry of "logcat -B".
+     * @param timestamp time of the message, milliseconds since the epoch.
+     */
+    void appendBinary(long timestamp) {
+        int tag = nextTag();
+        int priority = nextPriority();
+        byte[] message = nextMessage(priority);
+
+        int payloadLength = 1 + mTags[tag].length + 1 + message.length + 1;
+        int length = ENTRY_HEADER_SIZE + payloadLength;
+        if (mEntry.length < length) {
+            mEntry = new byte[length];
+        }
+        putUInt16(mEntry, 0, payloadLength);
+        // 0: the original 20 bytes header.
+        putUInt16(mEntry, 2, 0);
+        putInt32(mEntry, 4, mTagPids[tag]);
+        putInt32(mEntry, 8, nextTid(tag));
+        putInt32(mEntry, 12, (int) (timestamp / 1000));
+        putInt32(mEntry, 16, (int) (timestamp % 1000) * 1000000);
+        int pos = ENTRY_HEADER_SIZE;
+        mEntry[pos++] = (byte) priority;
+        System.arraycopy(mTags[tag], 0, mEntry, pos, mTags[tag].length);
+        pos += mTags[tag].length;
+        mEntry[pos++] = 0;
+        System.arraycopy(message, 0, mEntry, pos, message.length);
+        pos += message.length;
+        mEntry[pos++] = 0;
+
+        ensureCapacity(length * 2);
+        putTranslated(mEntry, 0, length);
+    }
+
+    private int nextTag() {
+        int index = Arrays.binarySearch(mTagWeights, mRandom.nextDouble());
+        // not found: -(insertion point) - 1, the first weight above the value.
+        return Math.min(index < 0 ? -index - 1 : index, mTagWeights.length - 1);
+    }
+
+    private int nextTid(int tag) {
+        int pid = mTagPids[tag];
+        // the main thread logs the most.
+        return mRandom.nextBoolean() ? pid : pid + 1 + mRandom.nextInt(THREADS_PER_PROCESS);
+    }
+
+    private int nextPriority() {
+        int value = mRandom.nextInt(1000);
+        for (int n = 0; n < PRIORITY_WEIGHTS.length; n++) {
+            value -= PRIORITY_WEIGHTS[n];
+            if (value < 0) {
+                return PRIORITIES[n];
+            }
+        }
+        return PRIORITIES[PRIORITIES.length - 1];
+    }
+
+    private byte[] nextMessage(int priority) {
+        if (priority >= 5 && mRandom.nextDouble() < mStackTraceRatio) {
+            return mStackTraces[mRandom.nextInt(mStackTraces.length)];
+        }
+        return mMessages[mRandom.nextInt(mMessages.length)];
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mLength + extra > mBytes.length) {
+            mBytes = Arrays.copyOf(mBytes, Math.max(mBytes.length * 2, mLength + extra));
+        }
+    }
+
+    private void putByte(int b) {
+        mBytes[mLength++] = (byte) b;
+    }
+
+    private void putBytes(byte[] data, int offset, int length) {
+        System.arraycopy(data, offset, mBytes, mLength, length);
+        mLength += length;
+    }
+
+    private void putNewLine() {
+        mBytes[mLength++] = '\r';
+        mBytes[mLength++] = '\n';
+    }
+
+    /**
+     * Copies the data with its '\n' turned into "\r\n".
+     */
+    private void putTranslated(byte[] data, int offset, int length) {
+        int end = offset + length;
+        for (int n = offset; n < end; n++) {
+            byte b = data[n];
+            if (b == '\n') {
+                mBytes[mLength++] = '\r';
+            }
+            mBytes[mLength++] = b;
+        }
+    }
+
+    /**
+     * Writes a decimal number right aligned in width characters.
+     */
+    private void putInt(int value, int width) {
+        int digits = 1;
+        for (int n = value / 10; n != 0; n /= 10) {
+            digits++;
+        }
+        for (int n = digits; n < width; n++) {
+            mBytes[mLength++] = ' ';
+        }
+        int end = mLength + digits;
+        for (int n = end - 1; n >= mLength; n--) {
+            mBytes[n] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        mLength = end;
+    }
+
+    private static void putUInt16(byte[] data, int offset, int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >> 8);
+    }
+
+    private static void putInt32(byte[] data, int offset, int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >> 8);
+        data[offset + 2] = (byte) (value >> 16);
+        data[offset + 3] = (byte) (value >> 24);
+    }
+}
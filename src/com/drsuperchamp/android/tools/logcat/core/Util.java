@@ -16,33 +16,136 @@
 
 package com.drsuperchamp.android.tools.logcat.core;
 
+import com.android.ddmlib.Log.LogLevel;
+
+import java.lang.StackWalker.StackFrame;
+import java.util.Iterator;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Debug messages of the tool, prefixed with their level and the method logging them:
+ * "W/connect: Already connected..".
+ * <p/>Messages below the level set by {@link #setLogLevel(LogLevel)}, or by the system
+ * property {@link #LOG_LEVEL_PROPERTY}, cost one comparison. The method is only looked up
+ * for the messages written. They are written by an {@link AsyncDebugOutput} to the console,
+ * unless another output is set.
+ */
 public class Util {
-    private static DebugOutput mOutputInterface = null;
+    /** "verbose", "debug", "info", "warn", "error", "assert" or "off" */
+    public static final String LOG_LEVEL_PROPERTY = "logcat.debug.level"; //$NON-NLS-1$
+    private static final LogLevel DEFAULT_LOG_LEVEL = LogLevel.INFO;
+    /** above every level */
+    private static final int PRIORITY_OFF = Integer.MAX_VALUE;
+
+    private static volatile int sMinPriority = getPriority(System.getProperty(LOG_LEVEL_PROPERTY));
+    private static volatile DebugOutput mOutputInterface = null;
+    /** created at the first message written to the console */
+    private static AsyncDebugOutput sConsoleOutput = null;
+
+    private static final StackWalker sStackWalker =
+            StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+    /** name of the first method out of this class */
+    private static final Function<Stream<StackFrame>, String> sCallerFinder =
+            new Function<Stream<StackFrame>, String>() {
+        @Override
+        public String apply(Stream<StackFrame> frames) {
+            Iterator<StackFrame> it = frames.iterator();
+            while (it.hasNext()) {
+                StackFrame frame = it.next();
+                if (frame.getDeclaringClass() != Util.class) {
+                    return frame.getMethodName();
+                }
+            }
+            return "?"; //$NON-NLS-1$
+        }
+    };
 
+    /**
+     * Logs the message, or the name of the calling method alone, at the DEBUG level.
+     */
     public static void DbgLog(String ... msg) {
-        String s = null;
-        if (msg.length == 0) {
-            s = getMethod();
-        } else {
-            s = getMethod() + ": " + msg[0];
+        if (isLoggable(LogLevel.DEBUG) == false) {
+            return;
         }
+        write(LogLevel.DEBUG, msg.length == 0 ? null : msg[0]);
+    }
 
-        if (mOutputInterface != null) {
-            mOutputInterface.out(s);
-        } else {
-            // default is 'console'
-            System.out.println(s);
+    /**
+     * @param level
+     * @param msg
+     */
+    public static void log(LogLevel level, String msg) {
+        if (isLoggable(level) == false) {
+            return;
         }
+        write(level, msg);
+    }
+
+    /**
+     * @return true if the messages of the level are written. Messages costly to build should
+     *         only be built if they are.
+     */
+    public static boolean isLoggable(LogLevel level) {
+        return level.getPriority() >= sMinPriority;
+    }
+
+    /**
+     * @param minLevel the lowest level written, null to write none.
+     */
+    public static void setLogLevel(LogLevel minLevel) {
+        sMinPriority = minLevel == null ? PRIORITY_OFF : minLevel.getPriority();
     }
 
     public static void setDebugOutput(DebugOutput outInterface) {
         mOutputInterface = outInterface;
     }
 
-    private static String getMethod()
-    {
-        StackTraceElement[] stacks = new Throwable().getStackTrace();
-        StackTraceElement currentStack = stacks[2];
-        return currentStack.getMethodName();
+    private static void write(LogLevel level, String msg) {
+        String method = sStackWalker.walk(sCallerFinder);
+        String s = level.getPriorityLetter() + "/" + method; //$NON-NLS-1$
+        if (msg != null) {
+            s += ": " + msg; //$NON-NLS-1$
+        }
+
+        DebugOutput output = mOutputInterface;
+        if (output == null) {
+            // default is 'console'
+            output = getConsoleOutput();
+        }
+        output.out(s);
+    }
+
+    private static synchronized DebugOutput getConsoleOutput() {
+        if (sConsoleOutput == null) {
+            sConsoleOutput = new AsyncDebugOutput(new DebugOutput() {
+                @Override
+                public void out(String message) {
+                    System.out.println(message);
+                }
+            }, AsyncDebugOutput.DEFAULT_CAPACITY);
+            final AsyncDebugOutput output = sConsoleOutput;
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    output.close();
+                }
+            }));
+        }
+        return sConsoleOutput;
+    }
+
+    /**
+     * @param level the value of {@link #LOG_LEVEL_PROPERTY}, or null.
+     */
+    private static int getPriority(String level) {
+        if (level == null) {
+            return DEFAULT_LOG_LEVEL.getPriority();
+        }
+        if ("off".equalsIgnoreCase(level)) { //$NON-NLS-1$
+            return PRIORITY_OFF;
+        }
+        LogLevel logLevel = LogLevel.getByString(level.toLowerCase());
+        return (logLevel != null ? logLevel : DEFAULT_LOG_LEVEL).getPriority();
     }
 }
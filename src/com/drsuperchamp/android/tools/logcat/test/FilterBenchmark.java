@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.test;
+
+import com.drsuperchamp.android.tools.logcat.core.FilterOutput;
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper;
+import com.drsuperchamp.android.tools.logcat.core.AdbWrapper.ShellOutputReceiver;
+
+/**
+ * Measures the ingest cost per message once the buffer is full:
+ * <ul>
+ * <li>for growing buffer sizes, eviction from the filters is O(1) so the cost should stay flat.
+ * <li>for growing numbers of tag filters, messages are only dispatched to the filters of
+ * their tag so the cost should grow slowly.
+ * </ul>
+ */
+public class FilterBenchmark {
+    private static final int[] BUFFER_SIZES = {10000, 100000, 1000000};
+    private static final int[] FILTER_COUNTS = {1, 10, 100};
+    private static final int DEFAULT_BUFFER_SIZE = 10000;
+    private static final int DEFAULT_FILTER_COUNT = 8;
+    private static final int LINES_PER_PACKET = 64;
+    private static final int NUM_TAGS = 32;
+
+    private static final class NullOutput implements FilterOutput {
+        @Override
+        public void out(String filterName, LogCatWrapper logcat, long[] newSeqs,
+                int numRemoved) {
+        }
+
+        @Override
+        public void replace(String filterName, LogCatWrapper logcat, long[] seqs) {
+        }
+    }
+
+    /**
+     * @return one packet of "logcat -v long" output.
+     */
+    private static byte[] makePacket(int packetIndex) {
+        StringBuilder sb = new StringBuilder();
+        for (int n = 0; n < LINES_PER_PACKET; n++) {
+            int line = packetIndex * LINES_PER_PACKET + n;
+            sb.append("[ 10-17 14:02:10.123  ").append(100 + line % 13).append(": ")
+                    .append(200 + line % 7).append(" I/Tag").append(line % NUM_TAGS)
+                    .append(" ]\r\n");
+            sb.append("message number ").append(line).append(" with some payload text\r\n");
+        }
+        return sb.toString().getBytes();
+    }
+
+    private static double run(int bufferSize, int numFilters) {
+        LogCatWrapper logcat = new LogCatWrapper("benchmark", bufferSize);
+        logcat.setDefaultFilterOutput(new NullOutput());
+        for (int n = 0; n < numFilters; n++) {
+            logcat.addFilter("filter" + n, "Tag" + n, null, "I", null, new NullOutput());
+        }
+        ShellOutputReceiver receiver = logcat.getShellOutputReceiver();
+
+        byte[][] packets = new byte[16][];
+        for (int n = 0; n < packets.length; n++) {
+            packets[n] = makePacket(n);
+        }
+
+        // fill the buffer, then measure the turnover.
+        int fillPackets = bufferSize / LINES_PER_PACKET + 1;
+        for (int n = 0; n < fillPackets; n++) {
+            byte[] packet = packets[n % packets.length];
+            receiver.addOutput(packet, 0, packet.length);
+        }
+
+        int measuredPackets = Math.max(fillPackets, 20000);
+        long start = System.nanoTime();
+        for (int n = 0; n < measuredPackets; n++) {
+            byte[] packet = packets[n % packets.length];
+            receiver.addOutput(packet, 0, packet.length);
+        }
+        long elapsed = System.nanoTime() - start;
+        return (double) elapsed / ((long) measuredPackets * LINES_PER_PACKET);
+    }
+
+    /**
+     * @param args
+     */
+    public static void main(String[] args) {
+        // warm up
+        run(DEFAULT_BUFFER_SIZE, DEFAULT_FILTER_COUNT);
+
+        for (int bufferSize : BUFFER_SIZES) {
+            System.out.println(String.format("buffer %8d: %6.1f ns/message", bufferSize,
+                    run(bufferSize, DEFAULT_FILTER_COUNT)));
+        }
+        for (int numFilters : FILTER_COUNTS) {
+            System.out.println(String.format("filters %7d: %6.1f ns/message", numFilters,
+                    run(DEFAULT_BUFFER_SIZE, numFilters)));
+        }
+    }
+}
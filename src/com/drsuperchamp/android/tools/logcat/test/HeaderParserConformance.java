@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.test;
+
+import com.drsuperchamp.android.tools.logcat.core.LogHeaderParser;
+import com.drsuperchamp.android.tools.logcat.core.SymbolTable;
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper.LogMessageInfo;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Checks that the strict "logcat -v long" header parser gives the same values as the regular
+ * expression it replaces:
+ * <ul>
+ * <li>a line parsed by the strict parser is a header for the regular expression, with the
+ * same values.
+ * <li>{@link LogHeaderParser#parse(String, LogMessageInfo)}, the strict parser with the
+ * regular expression as fallback, gives the same result as the regular expression alone.
+ * </ul>
+ * The lines are those of a capture, odd lines, and the headers of the capture with a
+ * character deleted, replaced or inserted at every position.
+ * <pre>
+ * HeaderParserConformance [capture]
+ * </pre>
+ * Exits with 1 if a line differs.
+ */
+public class HeaderParserConformance {
+    private static final String DEFAULT_CAPTURE = "bench/corpus/logcat-long.txt"; //$NON-NLS-1$
+    /** headers of the capture that are altered */
+    private static final int MAX_ALTERED_HEADERS = 500;
+    private static final char[] ALTERATIONS = {' ', '\t', '0', '9', 'a', 'F', ':', '/', '[', ']'};
+    private static final int MAX_REPORTED = 10;
+
+    private static final String[] ODD_LINES = {
+        "", //$NON-NLS-1$
+        "[", //$NON-NLS-1$
+        "[ ]", //$NON-NLS-1$
+        "[ 10-17 14:02:00.001 28506:28523 I/ActivityManager ]", //$NON-NLS-1$
+        "[ 10-17 14:02:00.001  8769: 8769 W/dalvikvm ]", //$NON-NLS-1$
+        "[ 10-17 14:02:00.001   123:  456 F/libc ]", //$NON-NLS-1$
+        "[ 10-17 14:02:00.001   123:  456 A/libc ]", //$NON-NLS-1$
+        "[ 10-17 14:02:00.001   123:  456 X/libc ]", //$NON-NLS-1$
+        "[ 10-17 14:02:00.001   123:0x1f I/Tag ]", //$NON-NLS-1$
+        "[ 10-17 14:02:00.001   123:  1f I/Tag ]", //$NON-NLS-1$
+        "[ 10-17 14:02:00.001   123:  1F I/Tag ]", //$NON-NLS-1$
+        "[ 10-17 14:02:00.001   :  456 I/Tag ]", //$NON-NLS-1$
+        "[ 10-17 14:02:00.001 99999999999:  456 I/Tag ]", //$NON-NLS-1$
+        "[ 10-17 14:02:00.001   123: 99999999999 I/Tag ]", //$NON-NLS-1$
+        "[ 10-17 14:02:00.001   123: fffffffff I/Tag ]", //$NON-NLS-1$
+        "[ 10-17 14:02:00.001   123:  456 I/ ]", //$NON-NLS-1$
+        "[ 10-17 14:02:00.001   123:  456 I/]", //$NON-NLS-1$
+        "[ 10-17 14:02:00.001   123:  456 I/Tag]", //$NON-NLS-1$
+        "[ 10-17 14:02:00.001   123:  456 I/Tag with spaces ]", //$NON-NLS-1$
+        "[ 10-17 14:02:00.001   123:  456 I/Tag ] ]", //$NON-NLS-1$
+        "[ 10-17 14:02:00.001   123:  456 I/Tag", //$NON-NLS-1$
+        "[ 10-17 14:02:00.001   123:  456 I/\tTag\t]", //$NON-NLS-1$
+        "[ 10-17 14:02:00.001   123:  456 I/Tag\u2028 ]", //$NON-NLS-1$
+        "[ 10-17 14:02:00.001   123:  456 I/T\u00e4g ]", //$NON-NLS-1$
+        "[ 10-17 14:02:00.001   123:  456 I/Ta\u2028g ]", //$NON-NLS-1$
+        "[ 10-17 14:02:00.001\t123:  456 I/Tag ]", //$NON-NLS-1$
+        "[ 10-17 14:02:00.001   123:  456\tI/Tag ]", //$NON-NLS-1$
+        "[ 10-17 14:02:00.   123:  456 I/Tag ]", //$NON-NLS-1$
+        "[ 10-17 14:02:00.123456   123:  456 I/Tag ]", //$NON-NLS-1$
+        "[ 10-17 14:02:00.001123:  456 I/Tag ]", //$NON-NLS-1$
+        "[ 1-17 14:02:00.001   123:  456 I/Tag ]", //$NON-NLS-1$
+        "[ 13-45 25:61:61.001   123:  456 I/Tag ]", //$NON-NLS-1$
+        "[10-17 14:02:00.001   123:  456 I/Tag ]", //$NON-NLS-1$
+        "[  10-17 14:02:00.001   123:  456 I/Tag ]", //$NON-NLS-1$
+        "10-17 14:02:00.001   123   456 I Tag: message", //$NON-NLS-1$
+        "message text [ 10-17 14:02:00.001   123:  456 I/Tag ]", //$NON-NLS-1$
+    };
+
+    private static int sMismatches = 0;
+
+    /**
+     * @param args
+     */
+    public static void main(String[] args) throws IOException {
+        String capture = args.length > 0 ? args[0] : DEFAULT_CAPTURE;
+
+        Set<String> lines = new LinkedHashSet<String>();
+        List<String> headers = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(capture), "UTF-8")); //$NON-NLS-1$
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // the receiver gives trimmed lines to the parser.
+                line = line.trim();
+                if (lines.add(line) && line.startsWith("[") //$NON-NLS-1$
+                        && headers.size() < MAX_ALTERED_HEADERS) {
+                    headers.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        for (String line : ODD_LINES) {
+            lines.add(line);
+            headers.add(line);
+        }
+        for (String header : headers) {
+            for (int n = 0; n <= header.length(); n++) {
+                if (n < header.length()) {
+                    lines.add(header.substring(0, n) + header.substring(n + 1));
+                }
+                for (char c : ALTERATIONS) {
+                    if (n < header.length()) {
+                        lines.add(header.substring(0, n) + c + header.substring(n + 1));
+                    }
+                    lines.add(header.substring(0, n) + c + header.substring(n));
+                }
+            }
+        }
+
+        LogHeaderParser parser = new LogHeaderParser(new SymbolTable(), new SymbolTable());
+        int numHeaders = 0;
+        int numStrict = 0;
+        for (String line : lines) {
+            LogMessageInfo reference = new LogMessageInfo();
+            boolean isHeader = parser.parseWithPattern(line, reference)
+                    == LogHeaderParser.RESULT_HEADER;
+
+            LogMessageInfo strict = new LogMessageInfo();
+            if (parser.parseStrict(line, strict)) {
+                numStrict++;
+                if (isHeader == false) {
+                    report(line, "strict parser accepts a line the pattern rejects"); //$NON-NLS-1$
+                } else {
+                    compare(line, "strict parser", reference, strict); //$NON-NLS-1$
+                }
+            }
+
+            LogMessageInfo parsed = new LogMessageInfo();
+            boolean isParsedHeader = parser.parse(line, parsed) == LogHeaderParser.RESULT_HEADER;
+            if (isParsedHeader != isHeader) {
+                report(line, "parse() " + (isHeader ? "rejects" : "accepts") //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+                        + " a line the pattern " + (isHeader ? "accepts" : "rejects")); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            } else if (isHeader) {
+                compare(line, "parse()", reference, parsed); //$NON-NLS-1$
+            }
+            if (isHeader) {
+                numHeaders++;
+            }
+        }
+
+        System.out.println(String.format(
+                "%d lines, %d headers, %d parsed by the strict parser, %d mismatches", //$NON-NLS-1$
+                lines.size(), numHeaders, numStrict, sMismatches));
+        System.out.println(sMismatches > 0 ? "FAILED" : "OK"); //$NON-NLS-1$ //$NON-NLS-2$
+        if (sMismatches > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static void compare(String line, String parserName, LogMessageInfo expected,
+            LogMessageInfo actual) {
+        compare(line, parserName, "logLevel", expected.logLevel, actual.logLevel); //$NON-NLS-1$
+        compare(line, parserName, "pid", expected.pid, actual.pid); //$NON-NLS-1$
+        compare(line, parserName, "pidString", expected.pidString, actual.pidString); //$NON-NLS-1$
+        compare(line, parserName, "tid", expected.tid, actual.tid); //$NON-NLS-1$
+        compare(line, parserName, "tag", expected.tag, actual.tag); //$NON-NLS-1$
+        compare(line, parserName, "tagId", expected.tagId, actual.tagId); //$NON-NLS-1$
+        compare(line, parserName, "time", expected.time, actual.time); //$NON-NLS-1$
+        compare(line, parserName, "timestamp", expected.timestamp, actual.timestamp); //$NON-NLS-1$
+        compare(line, parserName, "nanos", expected.nanos, actual.nanos); //$NON-NLS-1$
+    }
+
+    private static void compare(String line, String parserName, String field, Object expected,
+            Object actual) {
+        boolean equal = expected == null ? actual == null : expected.equals(actual);
+        if (equal == false) {
+            report(line, parserName + " " + field + " is '" + actual //$NON-NLS-1$ //$NON-NLS-2$
+                    + "', the pattern gives '" + expected + "'"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+
+    private static void report(String line, String problem) {
+        if (sMismatches++ < MAX_REPORTED) {
+            System.out.println("\"" + line + "\": " + problem); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+}
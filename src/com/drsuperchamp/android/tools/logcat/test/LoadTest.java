@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.test;
+
+import com.drsuperchamp.android.tools.logcat.core.DeviceSessionManager;
+import com.drsuperchamp.android.tools.logcat.core.FilterOutput;
+import com.drsuperchamp.android.tools.logcat.core.LogBuffer;
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper;
+import com.drsuperchamp.android.tools.logcat.core.SyntheticDevice;
+import com.drsuperchamp.android.tools.logcat.core.DeviceSessionManager.DeviceSession;
+import com.drsuperchamp.android.tools.logcat.core.IngestPipeline.Backpressure;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Captures {@link SyntheticDevice}s through the {@link DeviceSessionManager}, and prints
+ * every second the messages received, the packets dropped so far and the latency of the
+ * messages: the time from their timestamp to their output by the default filter.
+ * <pre>
+ * LoadTest [rate [seconds [devices [burstRate [binary]]]]]
+ * </pre>
+ * The bursts last 1 second every 10 seconds.
+ */
+public class LoadTest {
+    private static final long SEED = 2011;
+    private static final long BURST_DURATION_MS = 1000;
+    private static final long BURST_PERIOD_MS = 10000;
+    /** latencies are counted per millisecond up to this */
+    private static final int MAX_LATENCY_MS = 10000;
+
+    /**
+     * Counts the messages per latency.
+     */
+    private static final class LatencyOutput implements FilterOutput {
+        private long[] mCounts = new long[MAX_LATENCY_MS + 1];
+        private long mTotal = 0;
+        /** flyweights reading the buffers of the devices */
+        private final Map<LogCatWrapper, LogBuffer.Entry> mEntries =
+                new HashMap<LogCatWrapper, LogBuffer.Entry>();
+
+        @Override
+        public synchronized void out(String filterName, LogCatWrapper logcat, long[] newSeqs,
+                int numRemoved) {
+            LogBuffer.Entry entry = mEntries.get(logcat);
+            if (entry == null) {
+                entry = logcat.getLogBuffer().newEntry();
+                mEntries.put(logcat, entry);
+            }
+            long now = System.currentTimeMillis();
+            for (long seq : newSeqs) {
+                entry.moveTo(seq);
+                long latency = Math.max(now - entry.getTimestamp(), 0);
+                mCounts[(int) Math.min(latency, MAX_LATENCY_MS)]++;
+            }
+            mTotal += newSeqs.length;
+        }
+
+        @Override
+        public void replace(String filterName, LogCatWrapper logcat, long[] seqs) {
+        }
+
+        /**
+         * Prints the counts since the last call, and resets them.
+         */
+        synchronized void print(int second, long droppedPackets) {
+            System.out.println(String.format(
+                    "%4d s: %8d msg/s, %6d packets dropped, latency p50 %5d ms p99 %5d ms max %5d ms",
+                    second, mTotal, droppedPackets, percentile(0.5), percentile(0.99),
+                    percentile(1)));
+            mCounts = new long[MAX_LATENCY_MS + 1];
+            mTotal = 0;
+        }
+
+        private int percentile(double p) {
+            long rank = (long) Math.ceil(mTotal * p);
+            long count = 0;
+            for (int n = 0; n < mCounts.length; n++) {
+                count += mCounts[n];
+                if (count >= rank && count > 0) {
+                    return n;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * @param args
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int rate = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        int numDevices = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        int burstRate = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+        boolean binary = args.length > 4 && "binary".equals(args[4]);
+
+        SyntheticDevice devices = new SyntheticDevice(numDevices, SEED);
+        devices.setRate(rate);
+        devices.setBursts(burstRate, BURST_DURATION_MS, BURST_PERIOD_MS);
+        // the default limits, so the dropped packets are those of a real capture.
+        DeviceSessionManager manager = new DeviceSessionManager(devices, numDevices);
+
+        LatencyOutput output = new LatencyOutput();
+        for (String serial : devices.getConnectedDevices()) {
+            DeviceSession session = manager.open(serial);
+            session.getLogCat().setDefaultFilterOutput(output);
+            session.start(binary, Backpressure.BLOCK);
+        }
+
+        for (int second = 1; second <= seconds; second++) {
+            Thread.sleep(1000);
+            long dropped = 0;
+            for (DeviceSession session : manager.getSessions()) {
+                dropped += session.getLogCat().getMetrics().getDroppedPackets();
+            }
+            output.print(second, dropped);
+        }
+        manager.shutdown();
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.test;
+
+import com.drsuperchamp.android.tools.logcat.core.IngestPipeline;
+import com.drsuperchamp.android.tools.logcat.core.AdbWrapper.ShellOutputReceiver;
+import com.drsuperchamp.android.tools.logcat.core.IngestPipeline.Backpressure;
+import com.drsuperchamp.android.tools.logcat.core.IngestPipeline.DiscontinuityListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Feeds numbered lines cut in packets across line ends to an {@link IngestPipeline} with
+ * {@link Backpressure#SAMPLE} and a slow receiver, so packets are dropped, and checks that
+ * the receiver is told about each gap at the right packet:
+ * <ul>
+ * <li>no line is joined across a gap: every line received is a line that was sent.
+ * <li>no line is lost before a gap: every line whose packets were all received, in a row,
+ * is received. A line starting right after a gap can't be told from the end of a cut line,
+ * it may be skipped.
+ * </ul>
+ * <pre>
+ * PipelineGapTest [lines [runs]]
+ * </pre>
+ * Exits with 1 if a check fails.
+ */
+public class PipelineGapTest {
+    private static final int PACKET_SIZE = 29;
+    private static final int CAPACITY = 8;
+    /** time the reader and the receiver spend on a packet, the receiver is slower */
+    private static final long READER_NANOS = 2000;
+    private static final long RECEIVER_NANOS = 3000;
+
+    /**
+     * Splits the packets in lines like the logcat receiver, and keeps the packets received.
+     */
+    private static final class LineReceiver implements ShellOutputReceiver,
+            DiscontinuityListener {
+        private final StringBuilder mPartialLine = new StringBuilder();
+        private boolean mSkipToLineEnd = false;
+        final List<String> mLines = new ArrayList<String>();
+        final List<String> mPackets = new ArrayList<String>();
+
+        @Override
+        public void addOutput(byte[] data, int offset, int length) {
+            String packet = new String(data, offset, length);
+            mPackets.add(packet);
+            for (int n = 0; n < packet.length(); n++) {
+                char c = packet.charAt(n);
+                if (c == '\n') {
+                    if (mSkipToLineEnd == false) {
+                        mLines.add(mPartialLine.toString());
+                    }
+                    mSkipToLineEnd = false;
+                    mPartialLine.setLength(0);
+                } else {
+                    mPartialLine.append(c);
+                }
+            }
+            spin(RECEIVER_NANOS);
+        }
+
+        @Override
+        public void flush() {
+            if (mPartialLine.length() > 0 && mSkipToLineEnd == false) {
+                mLines.add(mPartialLine.toString());
+                mPartialLine.setLength(0);
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public void discontinuity() {
+            mPartialLine.setLength(0);
+            mSkipToLineEnd = true;
+        }
+    }
+
+    /**
+     * @param args
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int numLines = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        // lines of different lengths, so the packets cut them at every position.
+        StringBuilder sb = new StringBuilder();
+        List<String> lines = new ArrayList<String>();
+        List<Integer> lineStarts = new ArrayList<Integer>();
+        for (int n = 0; n < numLines; n++) {
+            String line = String.format("line %06d %s", n, "abcdefghijklm".substring(n % 13));
+            lines.add(line);
+            lineStarts.add(sb.length());
+            sb.append(line).append('\n');
+        }
+        byte[] output = sb.toString().getBytes();
+
+        // each packet holds at least one line number, so its text is unique.
+        List<String> packets = new ArrayList<String>();
+        Map<String, Integer> packetIndexes = new HashMap<String, Integer>();
+        for (int offset = 0; offset < output.length; offset += PACKET_SIZE) {
+            String packet = new String(output, offset,
+                    Math.min(PACKET_SIZE, output.length - offset));
+            packetIndexes.put(packet, packets.size());
+            packets.add(packet);
+        }
+
+        boolean failed = false;
+        for (int run = 1; run <= runs; run++) {
+            LineReceiver receiver = new LineReceiver();
+            IngestPipeline pipeline = new IngestPipeline("gap-test", receiver, CAPACITY, //$NON-NLS-1$
+                    Backpressure.SAMPLE);
+            for (int offset = 0; offset < output.length; offset += PACKET_SIZE) {
+                pipeline.addOutput(output, offset, Math.min(PACKET_SIZE, output.length - offset));
+                spin(READER_NANOS);
+            }
+            pipeline.flush();
+            pipeline.awaitTermination();
+
+            // packets received, in order.
+            boolean[] received = new boolean[packets.size()];
+            for (String packet : receiver.mPackets) {
+                received[packetIndexes.get(packet)] = true;
+            }
+
+            Set<String> sent = new HashSet<String>(lines);
+            int joined = 0;
+            for (String line : receiver.mLines) {
+                if (sent.contains(line) == false) {
+                    if (joined++ == 0) {
+                        System.out.println("  joined line: " + line); //$NON-NLS-1$
+                    }
+                }
+            }
+
+            Set<String> got = new HashSet<String>(receiver.mLines);
+            int lost = 0;
+            for (int n = 0; n < lines.size(); n++) {
+                int start = lineStarts.get(n);
+                // the line end is part of the line.
+                int end = start + lines.get(n).length();
+                int first = start / PACKET_SIZE;
+                boolean complete = first == 0 || received[first - 1];
+                for (int p = first; p <= end / PACKET_SIZE; p++) {
+                    complete &= received[p];
+                }
+                if (complete && got.contains(lines.get(n)) == false) {
+                    if (lost++ == 0) {
+                        System.out.println("  lost line: " + lines.get(n)); //$NON-NLS-1$
+                    }
+                }
+            }
+
+            System.out.println(String.format(
+                    "run %d: %d/%d packets dropped, %d lines received, %d joined, %d lost", //$NON-NLS-1$
+                    run, pipeline.getDroppedPackets(), packets.size(), receiver.mLines.size(),
+                    joined, lost));
+            if (pipeline.getDroppedPackets() == 0) {
+                System.out.println("  nothing dropped, the receiver is too fast"); //$NON-NLS-1$
+            }
+            failed |= joined > 0 || lost > 0;
+        }
+
+        System.out.println(failed ? "FAILED" : "OK"); //$NON-NLS-1$ //$NON-NLS-2$
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Busy waits, a sleep is too coarse.
+     */
+    private static void spin(long nanos) {
+        long end = System.nanoTime() + nanos;
+        while (System.nanoTime() < end) {
+            // busy.
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.test;
+
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper;
+import com.drsuperchamp.android.tools.logcat.core.AdbWrapper.ShellOutputReceiver;
+import com.drsuperchamp.android.tools.logcat.ui.LogTable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fills a session holding a number of messages, with a table per filter as in the UI, and
+ * prints the heap retained once the buffer is full: in total, by the columns and the arena of
+ * the buffer, and by the rest (filters, tables) per message.
+ * <pre>
+ * RetainedHeapTest [messages [filters]]
+ * </pre>
+ * To be run with a heap large enough for the messages, -Xmx4g for 1M messages.
+ */
+public class RetainedHeapTest {
+    private static final int LINES_PER_PACKET = 64;
+    private static final int NUM_TAGS = 32;
+
+    /**
+     * @param args
+     */
+    public static void main(String[] args) {
+        int numMessages = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int numFilters = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+        long baseline = getUsedHeap();
+
+        List<LogTable> tables = new ArrayList<LogTable>();
+        LogCatWrapper logcat = new LogCatWrapper("heap-test", numMessages); //$NON-NLS-1$
+        LogTable defaultTable = new LogTable("Log"); //$NON-NLS-1$
+        logcat.setDefaultFilterOutput(defaultTable);
+        tables.add(defaultTable);
+        for (int n = 0; n < numFilters; n++) {
+            LogTable table = new LogTable("filter" + n); //$NON-NLS-1$
+            logcat.addFilter("filter" + n, "Tag" + n, null, "I", null, table); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            tables.add(table);
+        }
+
+        // twice the capacity, so the buffer has turned over.
+        ShellOutputReceiver receiver = logcat.getShellOutputReceiver();
+        int numPackets = 2 * numMessages / LINES_PER_PACKET;
+        for (int n = 0; n < numPackets; n++) {
+            byte[] packet = makePacket(n);
+            receiver.addOutput(packet, 0, packet.length);
+            if (n % 64 == 0) {
+                for (LogTable table : tables) {
+                    table.applyPendingUpdates();
+                }
+            }
+        }
+        long rows = 0;
+        for (LogTable table : tables) {
+            table.applyPendingUpdates();
+            rows += table.getModel().getRowCount();
+        }
+
+        long retained = getUsedHeap() - baseline;
+        long bufferBytes = logcat.getLogBuffer().getHeapBytes();
+        System.out.println(String.format("%d messages, %d filters, %d table rows", //$NON-NLS-1$
+                logcat.getLogBuffer().size(), numFilters, rows));
+        System.out.println(String.format("retained: %8.1f MB", retained / 1048576.0)); //$NON-NLS-1$
+        System.out.println(String.format("buffer:   %8.1f MB", bufferBytes / 1048576.0)); //$NON-NLS-1$
+        System.out.println(String.format("rest:     %8.1f MB, %.1f bytes/message", //$NON-NLS-1$
+                (retained - bufferBytes) / 1048576.0,
+                (double) (retained - bufferBytes) / logcat.getLogBuffer().size()));
+
+        // keeps the session reachable up to the measure.
+        System.out.println(tables.size() + " tables of " + logcat.getTags().size() + " tags"); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * @return one packet of "logcat -v long" output, with a different text per message.
+     */
+    private static byte[] makePacket(int packetIndex) {
+        StringBuilder sb = new StringBuilder();
+        for (int n = 0; n < LINES_PER_PACKET; n++) {
+            int line = packetIndex * LINES_PER_PACKET + n;
+            sb.append("[ 10-17 14:02:10.123  ").append(100 + line % 13).append(": ")
+                    .append(200 + line % 7).append(" I/Tag").append(line % NUM_TAGS)
+                    .append(" ]\r\n");
+            sb.append("message number ").append(line).append(" with some payload text\r\n");
+            sb.append("\r\n");
+        }
+        return sb.toString().getBytes();
+    }
+
+    private static long getUsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int n = 0; n < 4; n++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2011 Dr.SuperChamp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.drsuperchamp.android.tools.logcat.test;
+
+import com.drsuperchamp.android.tools.logcat.core.DeviceSessionManager;
+import com.drsuperchamp.android.tools.logcat.core.IngestPipeline;
+import com.drsuperchamp.android.tools.logcat.core.LogBuffer;
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper;
+import com.drsuperchamp.android.tools.logcat.core.SegmentedLogStore;
+import com.drsuperchamp.android.tools.logcat.core.AdbWrapper.ShellOutputReceiver;
+import com.drsuperchamp.android.tools.logcat.core.DeviceSessionManager.DeviceSession;
+import com.drsuperchamp.android.tools.logcat.core.IngestPipeline.Backpressure;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Captures a fake device logging without pause into a small buffer with a history store,
+ * restarts the command many times by changing the filters pushed down to logcat, then stops
+ * it, and checks that the store survived:
+ * <ul>
+ * <li>the session still has its store, and it holds every message evicted from the buffer.
+ * <li>every message from the oldest one stored to the newest one can be read.
+ * </ul>
+ * <pre>
+ * StoreRestartTest [restarts]
+ * </pre>
+ * Exits with 1 if a check fails.
+ */
+public class StoreRestartTest {
+    private static final String SERIAL = "store-test"; //$NON-NLS-1$
+    private static final int MAX_LOGS = 2000;
+    private static final int LINES_PER_PACKET = 64;
+    /** small segments, so the staging buffer is written often */
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * @param args
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int restarts = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+
+        // the device goes on numbering its messages across the restarts.
+        final AtomicInteger nextLine = new AtomicInteger();
+        final AtomicInteger commands = new AtomicInteger();
+        DeviceSessionManager.ShellExecutor device = new DeviceSessionManager.ShellExecutor() {
+            @Override
+            public boolean executeShellCommand(String devSerialNumber, String shellCmd,
+                    ShellOutputReceiver receiver) {
+                commands.incrementAndGet();
+                while (receiver.isCancelled() == false && Thread.interrupted() == false) {
+                    byte[] packet = makePacket(nextLine.getAndAdd(LINES_PER_PACKET));
+                    receiver.addOutput(packet, 0, packet.length);
+                }
+                return true;
+            }
+        };
+
+        File directory = File.createTempFile("store-test", ""); //$NON-NLS-1$ //$NON-NLS-2$
+        directory.delete();
+        DeviceSessionManager manager = new DeviceSessionManager(device, 2);
+        manager.setLimits(MAX_LOGS, LogBuffer.DEFAULT_BYTES_PER_MESSAGE, 0);
+        DeviceSession session = manager.open(SERIAL);
+        LogCatWrapper logcat = session.getLogCat();
+        SegmentedLogStore store = new SegmentedLogStore(directory, SEGMENT_SIZE);
+        logcat.setLogStore(store);
+        session.setPushDown(true);
+        session.start(false, Backpressure.BLOCK);
+
+        for (int n = 0; n < restarts; n++) {
+            Thread.sleep(20);
+            // a new filterspec restarts the command.
+            logcat.addFilter("filter" + n, "Tag" + n, null, "I", null, null); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+        Thread.sleep(100);
+        session.stop();
+        IngestPipeline pipeline = session.getPipeline();
+        pipeline.awaitTermination();
+
+        boolean failed = false;
+        long firstSeq = logcat.getFirstSeq();
+        long nextSeq = logcat.getNextSeq();
+        int missing = 0;
+        for (long seq = firstSeq; seq < nextSeq; seq++) {
+            if (logcat.getMessage(seq) == null && missing++ == 0) {
+                System.out.println("  cannot read message " + seq); //$NON-NLS-1$
+            }
+        }
+        System.out.println(String.format(
+                "%d commands, %d messages, %d stored, %d in the buffer, %d missing", //$NON-NLS-1$
+                commands.get(), nextSeq, store.getNextSeq() - store.getFirstSeq(),
+                logcat.getLogBuffer().size(), missing));
+        if (logcat.getLogStore() != store) {
+            System.out.println("  the store was disabled"); //$NON-NLS-1$
+            failed = true;
+        }
+        if (store.getNextSeq() != nextSeq) {
+            System.out.println("  the store ends at " + store.getNextSeq()); //$NON-NLS-1$
+            failed = true;
+        }
+        if (commands.get() < 2) {
+            System.out.println("  the command was not restarted"); //$NON-NLS-1$
+            failed = true;
+        }
+        failed |= missing > 0;
+        manager.shutdown();
+
+        System.out.println(failed ? "FAILED" : "OK"); //$NON-NLS-1$ //$NON-NLS-2$
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return one packet of "logcat -v long" output, one message per millisecond.
+     */
+    private static byte[] makePacket(int firstLine) {
+        StringBuilder sb = new StringBuilder();
+        for (int line = firstLine; line < firstLine + LINES_PER_PACKET; line++) {
+            int seconds = line / 1000;
+            sb.append(String.format("[ 10-17 %02d:%02d:%02d.%03d   123:  456 I/Tag%d ]\r\n", //$NON-NLS-1$
+                    seconds / 3600 % 24, seconds / 60 % 60, seconds % 60, line % 1000,
+                    line % 8));
+            sb.append("message number ").append(line).append("\r\n\r\n"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        return sb.toString().getBytes();
+    }
+}
@@ -24,6 +24,7 @@ import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper.LogMessage;
 
 public class TestMain implements DeviceConnectionListener {
     private static final String ADB_PATH = "/home/wpark/android/sdk/android-sdk-linux_x86/platform-tools/adb";
+    private static final boolean BINARY_CAPTURE = false;
     AdbWrapper mAdb;
 
     public TestMain() {
@@ -54,21 +55,34 @@ public class TestMain implements DeviceConnectionListener {
         }
         @Override
         public void run() {
-            mAdb.executeShellCommand(mDevSerialNumber, "logcat -v long", mLogcat.getShellOutputReceiver());
+            if (BINARY_CAPTURE) {
+                mAdb.executeShellCommand(mDevSerialNumber, LogCatWrapper.LOGCAT_BINARY_COMMAND,
+                        mLogcat.getBinaryShellOutputReceiver());
+            } else {
+                mAdb.executeShellCommand(mDevSerialNumber, LogCatWrapper.LOGCAT_COMMAND,
+                        mLogcat.getShellOutputReceiver());
+            }
             super.run();
         }
     }
 
     private final class DefaultFilterOutput implements FilterOutput {
         @Override
-        public void out(String filterName, LogMessage[] newMessages, int numRemoved) {
+        public void out(String filterName, LogCatWrapper logcat, long[] newSeqs,
+                int numRemoved) {
             String msg;
-            int loop_end = newMessages.length;
+            int loop_end = newSeqs.length;
             for(int n=0; n < loop_end; n++) {
-                msg = String.format("%s: [%s] %s", filterName, newMessages[n].data.tag ,newMessages[n].msg);
+                LogMessage message = logcat.getMessage(newSeqs[n]);
+                msg = String.format("%s: [%s] %s", filterName, message.data.tag, message.msg);
                 System.out.println(msg);
             }
         }
+
+        @Override
+        public void replace(String filterName, LogCatWrapper logcat, long[] seqs) {
+            System.out.println(String.format("%s: %d messages", filterName, seqs.length));
+        }
     }
 
     /**
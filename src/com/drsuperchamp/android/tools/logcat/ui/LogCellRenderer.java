@@ -0,0 +1,95 @@
+package com.drsuperchamp.android.tools.logcat.ui;
+
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper;
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper.LogColors;
+
+import java.awt.Color;
+import java.awt.Component;
+
+import javax.swing.BorderFactory;
+import javax.swing.JTable;
+import javax.swing.border.Border;
+import javax.swing.table.DefaultTableCellRenderer;
+import javax.swing.table.TableCellRenderer;
+
+/**
+ * Renders the cells of a {@link LogTable} in the color of their log level.
+ * <p/>There is one label per column, reused for every row, and the colors are converted once
+ * when they are set. Only the text and colors are updated for each cell.
+ */
+class LogCellRenderer implements TableCellRenderer {
+    /** log levels by priority, up to ASSERT */
+    private static final int NUM_PRIORITIES = 8;
+    private static final Border NO_FOCUS_BORDER = BorderFactory.createEmptyBorder(1, 1, 1, 1);
+
+    private final Label[] mLabels;
+    private final Color[] mLevelColors = new Color[NUM_PRIORITIES];
+
+    /**
+     * Label that does not repaint or revalidate itself when its text changes, it is only
+     * painted by the table.
+     */
+    private static final class Label extends DefaultTableCellRenderer {
+        private static final long serialVersionUID = 1L;
+
+        Label() {
+            setBorder(NO_FOCUS_BORDER);
+            setOpaque(true);
+        }
+    }
+
+    LogCellRenderer(int numColumns) {
+        mLabels = new Label[numColumns];
+        for (int n = 0; n < numColumns; n++) {
+            mLabels[n] = new Label();
+        }
+        setLogColors(null);
+    }
+
+    /**
+     * @param colors colors of the filter, or null for the default foreground.
+     */
+    void setLogColors(LogColors colors) {
+        for (int n = 0; n < NUM_PRIORITIES; n++) {
+            mLevelColors[n] = null;
+        }
+        if (colors == null) {
+            return;
+        }
+        // priorities of LogLevel: VERBOSE=2, DEBUG, INFO, WARN, ERROR, ASSERT=7.
+        mLevelColors[2] = toColor(colors.verboseColor);
+        mLevelColors[3] = toColor(colors.debugColor);
+        mLevelColors[4] = toColor(colors.infoColor);
+        mLevelColors[5] = toColor(colors.warningColor);
+        mLevelColors[6] = toColor(colors.errorColor);
+        mLevelColors[7] = mLevelColors[6];
+    }
+
+    @Override
+    public Component getTableCellRendererComponent(JTable table, Object value,
+            boolean isSelected, boolean hasFocus, int row, int column) {
+        Label label = mLabels[table.convertColumnIndexToModel(column)];
+        label.setText(value == null ? "" : value.toString());
+        label.setFont(table.getFont());
+        if (isSelected) {
+            label.setForeground(table.getSelectionForeground());
+            label.setBackground(table.getSelectionBackground());
+        } else {
+            Color color = null;
+            int priority = ((LogTable) table).getPriorityAt(row);
+            if (priority >= 0 && priority < NUM_PRIORITIES) {
+                color = mLevelColors[priority];
+            }
+            label.setForeground(color != null ? color : table.getForeground());
+            label.setBackground(table.getBackground());
+        }
+        return label;
+    }
+
+    private static Color toColor(LogCatWrapper.Color color) {
+        if (color == null) {
+            return null;
+        }
+        return new Color(color.getRed(), color.getGreen(), color.getBlue());
+    }
+}
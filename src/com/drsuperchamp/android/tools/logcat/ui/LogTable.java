@@ -1,30 +1,200 @@
 package com.drsuperchamp.android.tools.logcat.ui;
 
+import com.android.ddmlib.Log.LogLevel;
+import com.drsuperchamp.android.tools.logcat.core.CaptureMetrics;
 import com.drsuperchamp.android.tools.logcat.core.FilterOutput;
+import com.drsuperchamp.android.tools.logcat.core.LogBuffer;
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper;
+import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper.LogColors;
 import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper.LogMessage;
 import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper.LogMessageInfo;
 
-import java.lang.reflect.InvocationTargetException;
-import java.util.LinkedList;
-import java.util.List;
+import java.awt.FontMetrics;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import javax.swing.JTable;
-import javax.swing.SwingUtilities;
 import javax.swing.table.AbstractTableModel;
+import javax.swing.table.TableColumn;
 
 public class LogTable extends JTable implements FilterOutput {
+    /** number of rows measured to size the columns */
+    private static final int SIZING_SAMPLE_ROWS = 64;
+    private static final int COLUMN_MARGIN = 8;
+
     private Model mModel;
-    private ModelUpdateRunnable mUpdateRunnable;
+    private LogCellRenderer mRenderer;
+    private boolean mAreColumnsSized = false;
+
+    /**
+     * Rows received from a filter and not added to the model yet: the messages mSeqs[mStart]
+     * to the last one of the session mLogcat.
+     */
+    private static final class Batch {
+        final LogCatWrapper mLogcat;
+        final long[] mSeqs;
+        int mStart = 0;
+
+        Batch(LogCatWrapper logcat, long[] seqs) {
+            mLogcat = logcat;
+            mSeqs = seqs;
+        }
+
+        int size() {
+            return mSeqs.length - mStart;
+        }
+    }
+
+    /** updates received from the filter and not applied to the model yet */
+    private final Object mPendingLock = new Object();
+    private ArrayDeque<Batch> mPendingBatches = new ArrayDeque<Batch>();
+    private int mPendingRowCount = 0;
+    private int mPendingRemoved = 0;
+    /** true if the model must be emptied before the pending messages are added */
+    private boolean mPendingReplace = false;
+    /** System.nanoTime() of the oldest pending update */
+    private long mPendingSince = 0;
+    /** receives the time the updates wait for the event thread, or null */
+    private CaptureMetrics mMetrics = null;
+    /** number of rows in the model, for the filter threads */
+    private int mModelRowCount = 0;
+    private long mAppliedBatches = 0;
     private String mFilterTag;
     private String mFilterPid;
     private String mFilterLogLevel;
 
     public LogTable(String name) {
         mModel = new Model();
-        mUpdateRunnable = new ModelUpdateRunnable(mModel);
+        mRenderer = new LogCellRenderer(mModel.getColumnCount());
 
         setName(name);
         setModel(mModel);
+        setDefaultRenderer(Object.class, mRenderer);
+        setDefaultRenderer(String.class, mRenderer);
+    }
+
+    /**
+     * Keeps the rows evicted from the buffer at the top of the table, read back from the store
+     * of the session when they are shown. Only for the table of the default filter, which
+     * gets every message.
+     * @param logcat the session, or null to drop the evicted rows.
+     */
+    public void setHistory(LogCatWrapper logcat) {
+        mModel.setHistory(logcat);
+    }
+
+    /**
+     * Shows messages of the session that are not in the buffer, a saved session for instance,
+     * as history rows. They are only read when they are shown.
+     * Must be called from the event thread.
+     * @param logcat the session.
+     * @param firstSeq
+     * @param endSeq
+     */
+    public void showHistory(LogCatWrapper logcat, long firstSeq, long endSeq) {
+        clear();
+        mModel.setHistory(logcat);
+        mModel.addHistoryRows(firstSeq, endSeq);
+        if (mModel.getRowCount() > 0) {
+            sizeColumns();
+        }
+    }
+
+    /**
+     * @param colors colors of the log levels, or null for the default foreground.
+     */
+    public void setLogColors(LogColors colors) {
+        mRenderer.setLogColors(colors);
+        repaint();
+    }
+
+    /**
+     * @param row index of the row in the view.
+     * @return the priority of the log level of the row, or -1 if there is no such row.
+     */
+    int getPriorityAt(int row) {
+        LogMessage msg = mModel.getLogMessage(convertRowIndexToModel(row));
+        if (msg == null) {
+            return -1;
+        }
+        return msg.data.logLevel.getPriority();
+    }
+
+    /**
+     * @return the sequence number of the selected message, or -1 if no row is selected.
+     */
+    public long getSelectedSeq() {
+        return mModel.getSeq(convertRowIndexToModel(getSelectedRow()));
+    }
+
+    /**
+     * @return the time of the selected message, or of the last one, 0 if there is none.
+     */
+    public long getReferenceTime() {
+        LogMessage msg = mModel.getLogMessage(convertRowIndexToModel(getSelectedRow()));
+        if (msg == null) {
+            msg = mModel.getLogMessage(mModel.getRowCount() - 1);
+        }
+        return msg != null ? msg.data.timestamp : 0;
+    }
+
+    /**
+     * Selects the row of a message and scrolls to it.
+     * Must be called from the event thread.
+     * @param seq sequence number of the message in the session.
+     * @return false if the message is not in the table.
+     */
+    public boolean selectSeq(long seq) {
+        applyPendingUpdates();
+        int row = mModel.findRow(seq);
+        if (row < 0) {
+            return false;
+        }
+        selectRows(row, row);
+        return true;
+    }
+
+    /**
+     * Selects the rows of the messages firstSeq to endSeq - 1 and scrolls to the first one.
+     * Must be called from the event thread.
+     * @param firstSeq
+     * @param endSeq
+     * @return the number of selected rows.
+     */
+    public int selectSeqRange(long firstSeq, long endSeq) {
+        applyPendingUpdates();
+        int firstRow = mModel.ceilingRow(firstSeq);
+        int endRow = mModel.ceilingRow(endSeq);
+        if (endRow <= firstRow) {
+            clearSelection();
+            return 0;
+        }
+        selectRows(firstRow, endRow - 1);
+        return endRow - firstRow;
+    }
+
+    /**
+     * Selects the row of the first message at or after seq, or the last row.
+     * Must be called from the event thread.
+     * @param seq
+     * @return false if the table is empty.
+     */
+    public boolean selectCeilingSeq(long seq) {
+        applyPendingUpdates();
+        int row = Math.min(mModel.ceilingRow(seq), mModel.getRowCount() - 1);
+        if (row < 0) {
+            return false;
+        }
+        selectRows(row, row);
+        return true;
+    }
+
+    private void selectRows(int firstRow, int lastRow) {
+        // the model order is kept in the view, the table isn't sorted.
+        setRowSelectionInterval(convertRowIndexToView(firstRow), convertRowIndexToView(lastRow));
+        scrollRectToVisible(getCellRect(convertRowIndexToView(firstRow), 0, true));
     }
 
     public void setFilterValue(String tag, String pid, String logLevel) {
@@ -45,25 +215,225 @@ public class LogTable extends JTable implements FilterOutput {
         return mFilterLogLevel;
     }
 
+    /**
+     * Queues the update, it is applied to the table by {@link #applyPendingUpdates()}.
+     * Never waits for the event thread.
+     */
+    @Override
+    public void out(String filterName, LogCatWrapper logcat, long[] newSeqs, int numRemoved) {
+        synchronized (mPendingLock) {
+            if (mPendingRemoved == 0 && mPendingRowCount == 0 && mPendingReplace == false) {
+                mPendingSince = System.nanoTime();
+            }
+
+            // rows are only removed from the head and added at the tail,
+            // so the removals of all the pending updates can be applied first.
+            mPendingRemoved += numRemoved;
+
+            // removed rows that were never added to the model are dropped right away,
+            // so a table that is not shown only holds as many rows as its filter.
+            int excess = Math.min(mPendingRemoved - mModelRowCount, mPendingRowCount);
+            if (excess > 0) {
+                mPendingRemoved -= excess;
+                mPendingRowCount -= excess;
+                while (excess > 0) {
+                    Batch batch = mPendingBatches.peekFirst();
+                    int numDropped = Math.min(excess, batch.size());
+                    batch.mStart += numDropped;
+                    excess -= numDropped;
+                    if (batch.size() == 0) {
+                        mPendingBatches.removeFirst();
+                    }
+                }
+            }
+
+            if (newSeqs.length > 0) {
+                mPendingBatches.addLast(new Batch(logcat, newSeqs));
+                mPendingRowCount += newSeqs.length;
+            }
+        }
+    }
+
+    /**
+     * Queues the new content of the table, it replaces the rows at the next
+     * {@link #applyPendingUpdates()}.
+     */
     @Override
-    public void out(String filterName, LogMessage[] newMessages, int numRemoved) {
-        mUpdateRunnable.newMessages = newMessages;
-        mUpdateRunnable.numRemoved = numRemoved;
+    public void replace(String filterName, LogCatWrapper logcat, long[] seqs) {
+        synchronized (mPendingLock) {
+            if (mPendingRemoved == 0 && mPendingRowCount == 0 && mPendingReplace == false) {
+                mPendingSince = System.nanoTime();
+            }
+            mPendingBatches = new ArrayDeque<Batch>();
+            if (seqs.length > 0) {
+                mPendingBatches.addLast(new Batch(logcat, seqs));
+            }
+            mPendingRowCount = seqs.length;
+            mPendingRemoved = 0;
+            // the removals received from now on apply to the new rows.
+            mModelRowCount = 0;
+            mPendingReplace = true;
+        }
+    }
+
+    /**
+     * Applies the updates received since the last call as one batch.
+     * Must be called from the event thread.
+     */
+    public void applyPendingUpdates() {
+        ArrayDeque<Batch> batches;
+        int numRows;
+        int numRemoved;
+        boolean replace;
+        long pendingSince;
+        synchronized (mPendingLock) {
+            if (mPendingRemoved == 0 && mPendingRowCount == 0 && mPendingReplace == false) {
+                return;
+            }
+            batches = mPendingBatches;
+            numRows = mPendingRowCount;
+            numRemoved = mPendingRemoved;
+            replace = mPendingReplace;
+            pendingSince = mPendingSince;
+            mPendingBatches = new ArrayDeque<Batch>();
+            mPendingRowCount = 0;
+            mPendingRemoved = 0;
+            mPendingReplace = false;
+            mModelRowCount = Math.max(0, mModelRowCount - numRemoved) + numRows;
+            mAppliedBatches++;
+        }
+
+        if (replace)
+            mModel.clear();
+        else if (numRemoved > 0)
+            mModel.removeRows(numRemoved);
+        if (numRows > 0)
+            mModel.addRows(batches, numRows);
+
+        mModel.trimHistory();
+
+        if (mAreColumnsSized == false && mModel.getRowCount() > 0) {
+            sizeColumns();
+        }
+
+        CaptureMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.recordUpdateLatency(System.nanoTime() - pendingSince);
+        }
+    }
+
+    /**
+     * @param metrics receives the time from the output of the messages to their display,
+     *        or null.
+     */
+    public void setMetrics(CaptureMetrics metrics) {
+        mMetrics = metrics;
+    }
 
-        try {
-            SwingUtilities.invokeAndWait(mUpdateRunnable);
-        } catch (InterruptedException e) {
-        } catch (InvocationTargetException e) {
+    /**
+     * Sizes all the columns but the message to the widest of the first rows,
+     * the message gets the rest of the width.
+     */
+    private void sizeColumns() {
+        mAreColumnsSized = true;
+        FontMetrics metrics = getFontMetrics(getFont());
+        int numRows = Math.min(mModel.getRowCount(), SIZING_SAMPLE_ROWS);
+        int lastColumn = mModel.getColumnCount() - 1;
+        for (int column = 0; column < lastColumn; column++) {
+            int width = metrics.stringWidth(mModel.getColumnName(column));
+            for (int row = 0; row < numRows; row++) {
+                Object value = mModel.getValueAt(row, column);
+                if (value != null) {
+                    width = Math.max(width, metrics.stringWidth(value.toString()));
+                }
+            }
+            TableColumn tableColumn = getColumnModel().getColumn(convertColumnIndexToView(column));
+            tableColumn.setPreferredWidth(width + COLUMN_MARGIN);
+            tableColumn.setMaxWidth(width * 2 + COLUMN_MARGIN);
+        }
+    }
+
+    /**
+     * @return the number of rows waiting to be added to the table.
+     */
+    public int getPendingRowCount() {
+        synchronized (mPendingLock) {
+            return mPendingRowCount;
+        }
+    }
+
+    /**
+     * @return the number of batches of updates applied to the table.
+     */
+    public long getAppliedBatchCount() {
+        synchronized (mPendingLock) {
+            return mAppliedBatches;
         }
     }
 
     public void clear() {
+        synchronized (mPendingLock) {
+            mPendingBatches.clear();
+            mPendingRowCount = 0;
+            mPendingRemoved = 0;
+            mPendingReplace = false;
+            mModelRowCount = 0;
+        }
         mModel.clear();
+        mAreColumnsSized = false;
     }
 
+    /**
+     * Rows of the table in a circular array of sequence numbers: rows are read by index in
+     * O(1), added at the tail and removed from the head in bulk. The cells are read from the
+     * buffer of the session of the row through a {@link LogBuffer.Entry}, or from its history
+     * once the message is evicted from the buffer.
+     */
     private static final class Model extends AbstractTableModel {
         private static final String[] COLUMN_NAMES = {"Time", " ", "pid", "tag", "Message"};
-        private List<LogMessage> mLogs = new LinkedList<LogMessage>();
+        private static final int INITIAL_CAPACITY = 256;
+        /** level letters by priority, so the level column is not boxed for every cell */
+        private static final Character[] LEVEL_LETTERS = new Character[8];
+        static {
+            for (LogLevel level : LogLevel.values()) {
+                if (level.getPriority() < LEVEL_LETTERS.length)
+                    LEVEL_LETTERS[level.getPriority()] = Character.valueOf(level.getPriorityLetter());
+            }
+        }
+
+        /** number of recently read history rows kept */
+        private static final int HISTORY_CACHE_SIZE = 256;
+
+        private long[] mSeqs = new long[INITIAL_CAPACITY];
+        private int mHead = 0;
+        private int mSize = 0;
+        /** session of the rows, while they are all from the same one */
+        private LogCatWrapper mLogcat = null;
+        /** session of each row, null until rows of several sessions are added (merged view) */
+        private LogCatWrapper[] mLogcats = null;
+
+        /** flyweights reading the buffers of the sessions, they don't keep the sessions */
+        private final Map<LogCatWrapper, LogBuffer.Entry> mEntries =
+                new WeakHashMap<LogCatWrapper, LogBuffer.Entry>();
+        /** the row last read, the cells of a row are asked for one after the other */
+        private LogCatWrapper mReadLogcat = null;
+        private long mReadSeq = -1;
+        private LogMessage mReadMessage = null;
+        /** reused for the rows read from a buffer */
+        private final LogMessage mBufferRow = new LogMessage();
+
+        /**
+         * evicted rows, before the rows of mSeqs: messages mHistoryFirstSeq to
+         * mHistoryFirstSeq + mHistoryRows - 1 of the session.
+         */
+        private LogCatWrapper mHistory = null;
+        private long mHistoryFirstSeq = 0;
+        private int mHistoryRows = 0;
+        private final LogMessage[] mHistoryCache = new LogMessage[HISTORY_CACHE_SIZE];
+
+        Model() {
+            mBufferRow.data = new LogMessageInfo();
+        }
 
         @Override
         public int getColumnCount() {
@@ -82,37 +452,236 @@ public class LogTable extends JTable implements FilterOutput {
 
         @Override
         public int getRowCount() {
-            return mLogs.size();
+            return mHistoryRows + mSize;
+        }
+
+        public void setHistory(LogCatWrapper history) {
+            mHistory = history;
+            if (mHistoryRows > 0) {
+                int numRows = mHistoryRows;
+                mHistoryRows = 0;
+                fireTableRowsDeleted(0, numRows - 1);
+            }
+            Arrays.fill(mHistoryCache, null);
+        }
+
+        /**
+         * Removes the history rows deleted from the store.
+         */
+        public void addHistoryRows(long firstSeq, long endSeq) {
+            mHistoryFirstSeq = firstSeq;
+            mHistoryRows = (int) Math.min(endSeq - firstSeq, Integer.MAX_VALUE / 2);
+            if (mHistoryRows > 0) {
+                fireTableRowsInserted(0, mHistoryRows - 1);
+            }
+        }
+
+        public void trimHistory() {
+            if (mHistory == null || mHistory.getLogStore() == null || mHistoryRows == 0) {
+                return;
+            }
+            long firstSeq = mHistory.getLogStore().getFirstSeq();
+            if (firstSeq <= mHistoryFirstSeq) {
+                return;
+            }
+            int numRemovedRows = (int) Math.min(firstSeq - mHistoryFirstSeq, mHistoryRows);
+            mHistoryFirstSeq += numRemovedRows;
+            mHistoryRows -= numRemovedRows;
+            fireTableRowsDeleted(0, numRemovedRows-1);
+        }
+
+        /**
+         * Adds the rows of the batches, as one event.
+         * @param batches
+         * @param numRows number of rows in the batches.
+         */
+        public void addRows(Iterable<Batch> batches, int numRows) {
+            int firstRow = mHistoryRows + mSize;
+            if (mSize + numRows > mSeqs.length) {
+                grow(mSize + numRows);
+            }
+            int mask = mSeqs.length - 1;
+            for (Batch batch : batches) {
+                LogCatWrapper logcat = batch.mLogcat;
+                if (mLogcats == null && logcat != mLogcat) {
+                    if (mSize == 0) {
+                        mLogcat = logcat;
+                    } else {
+                        mLogcats = new LogCatWrapper[mSeqs.length];
+                        Arrays.fill(mLogcats, mLogcat);
+                    }
+                }
+                for (int n = batch.mStart; n < batch.mSeqs.length; n++) {
+                    int index = (mHead + mSize) & mask;
+                    mSeqs[index] = batch.mSeqs[n];
+                    if (mLogcats != null) {
+                        mLogcats[index] = logcat;
+                    }
+                    mSize++;
+                }
+            }
+
+            if (numRows > 0) {
+                fireTableRowsInserted(firstRow, firstRow+numRows-1);
+            }
+        }
+
+        public void removeRows(int numRemovedRows) {
+            numRemovedRows = Math.min(numRemovedRows, mSize);
+            if (numRemovedRows <= 0) {
+                return;
+            }
+            long firstRemovedSeq = mSeqs[mHead];
+            long lastRemovedSeq = mSeqs[(mHead + numRemovedRows - 1) & (mSeqs.length - 1)];
+            if (mLogcats != null) {
+                // release the sessions, in at most two runs of the array.
+                int headLength = Math.min(numRemovedRows, mLogcats.length - mHead);
+                Arrays.fill(mLogcats, mHead, mHead + headLength, null);
+                Arrays.fill(mLogcats, 0, numRemovedRows - headLength, null);
+            }
+            mHead = (mHead + numRemovedRows) & (mSeqs.length - 1);
+            mSize -= numRemovedRows;
+
+            if (mHistory != null && mHistory.getLogStore() != null) {
+                // the rows stay, read from the store: they now cover the messages up to the
+                // first remaining row, including the ones never flushed to the table.
+                if (mHistoryRows == 0) {
+                    mHistoryFirstSeq = firstRemovedSeq;
+                }
+                long nextSeq = mSize > 0 ? mSeqs[mHead] : lastRemovedSeq + 1;
+                int historyRows = (int) Math.min(nextSeq - mHistoryFirstSeq, Integer.MAX_VALUE / 2);
+                if (historyRows > mHistoryRows + numRemovedRows) {
+                    fireTableRowsInserted(mHistoryRows + numRemovedRows, historyRows - 1);
+                }
+                mHistoryRows = historyRows;
+                return;
+            }
+            fireTableRowsDeleted(mHistoryRows, mHistoryRows + numRemovedRows-1);
         }
 
-        public void addLogMessages(LogMessage[] messages) {
-            int firstRow = mLogs.size();
-            int loop_end = messages.length;
-            for(int n=0; n < loop_end; n++) {
-                mLogs.add(messages[n]);
+        /**
+         * @return the sequence number of the message shown at the row, or -1 if there is no
+         *         such row.
+         */
+        public long getSeq(int rowIndex) {
+            if (rowIndex < 0) {
+                return -1;
+            }
+            if (rowIndex < mHistoryRows) {
+                return mHistoryFirstSeq + rowIndex;
             }
+            rowIndex -= mHistoryRows;
+            if (rowIndex >= mSize) {
+                return -1;
+            }
+            return mSeqs[(mHead + rowIndex) & (mSeqs.length - 1)];
+        }
 
-            if (loop_end > 0) {
-                fireTableRowsInserted(firstRow, firstRow+loop_end-1);
+        /**
+         * @return the message shown at the row, or null if there is no such row or if its
+         *         message can't be read anymore. The message is only valid until the next
+         *         call.
+         */
+        public LogMessage getLogMessage(int rowIndex) {
+            if (rowIndex < 0) {
+                return null;
+            }
+            if (rowIndex < mHistoryRows) {
+                return getHistoryMessage(mHistoryFirstSeq + rowIndex);
             }
+            rowIndex -= mHistoryRows;
+            if (rowIndex >= mSize) {
+                return null;
+            }
+            int index = (mHead + rowIndex) & (mSeqs.length - 1);
+            return readRow(mLogcats != null ? mLogcats[index] : mLogcat, mSeqs[index]);
+        }
+
+        /**
+         * @param seq
+         * @return the row of the message, or -1 if it isn't in the table.
+         */
+        public int findRow(long seq) {
+            int row = ceilingRow(seq);
+            return getSeq(row) == seq ? row : -1;
         }
 
-        public void removeLogMessages(int numRemovedRows) {
-            for(int n=0; n < numRemovedRows; n++) {
-                if (mLogs.isEmpty() == false)
-                    mLogs.remove(0);
+        /**
+         * @param seq
+         * @return the row of the first message at or after seq, the row count if there is none.
+         */
+        public int ceilingRow(long seq) {
+            if (seq - mHistoryFirstSeq < mHistoryRows) {
+                return (int) Math.max(0, seq - mHistoryFirstSeq);
             }
-            if (numRemovedRows > 0) {
-                fireTableRowsDeleted(0, numRemovedRows-1);
+            // the rows are in the order of the session.
+            int mask = mSeqs.length - 1;
+            int low = 0;
+            int high = mSize - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (mSeqs[(mHead + mid) & mask] < seq) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
             }
+            return mHistoryRows + low;
+        }
+
+        /**
+         * @return the message read from the buffer of the session, or from its history if it
+         *         was evicted, kept as each of its cells asks for it.
+         */
+        private LogMessage readRow(LogCatWrapper logcat, long seq) {
+            if (logcat == mReadLogcat && seq == mReadSeq) {
+                return mReadMessage;
+            }
+            LogBuffer.Entry entry = mEntries.get(logcat);
+            if (entry == null) {
+                entry = logcat.getLogBuffer().newEntry();
+                mEntries.put(logcat, entry);
+            }
+            LogMessage msg;
+            if (entry.moveTo(seq)) {
+                msg = mBufferRow;
+                LogMessageInfo info = msg.data;
+                info.timestamp = entry.getTimestamp();
+                info.time = entry.getTime();
+                info.logLevel = entry.getLogLevel();
+                info.pid = entry.getPid();
+                info.pidString = entry.getPidString();
+                info.tagId = entry.getTagId();
+                info.tag = entry.getTag();
+                msg.msg = entry.getMessage();
+                msg.seq = seq;
+            } else {
+                // evicted before the removal of its row reached the table.
+                msg = logcat.getMessage(seq);
+            }
+            mReadLogcat = logcat;
+            mReadSeq = seq;
+            mReadMessage = msg;
+            return msg;
+        }
+
+        /**
+         * @return the message read from the store, cached as each of its cells asks for it.
+         */
+        private LogMessage getHistoryMessage(long seq) {
+            int index = (int) (seq % HISTORY_CACHE_SIZE);
+            LogMessage msg = mHistoryCache[index];
+            if (msg == null || msg.seq != seq) {
+                msg = mHistory.getMessage(seq);
+                mHistoryCache[index] = msg;
+            }
+            return msg;
         }
 
         @Override
         public Object getValueAt(int rowIndex, int columnIndex) {
-            LogMessage msg = null;
-            try {
-                msg = mLogs.get(rowIndex);
-            } catch (IndexOutOfBoundsException e) {
+            LogMessage msg = getLogMessage(rowIndex);
+            if (msg == null) {
                 return null;
             }
             LogMessageInfo msgInfo = msg.data;
@@ -120,9 +689,10 @@ public class LogTable extends JTable implements FilterOutput {
                 case 0:
                     return msgInfo.time;
                 case 1:
-                    return msgInfo.logLevel.getPriorityLetter();
+                    return LEVEL_LETTERS[msgInfo.logLevel.getPriority()];
                 case 2:
-                    return msgInfo.pid;
+                    // interned by the parser, shared by all the messages of the pid.
+                    return msgInfo.pidString;
                 case 3:
                     return msgInfo.tag;
                 case 4:
@@ -137,25 +707,36 @@ public class LogTable extends JTable implements FilterOutput {
         }
 
         public void clear() {
-            mLogs.clear();
-        }
-    }
-
-    private static final class ModelUpdateRunnable implements Runnable {
-        public LogMessage[] newMessages = null;
-        public int numRemoved = 0;
-        public Model model = null;
-
-        public ModelUpdateRunnable(Model model) {
-            this.model = model;
+            Arrays.fill(mHistoryCache, null);
+            mHead = 0;
+            mSize = 0;
+            mLogcat = null;
+            mLogcats = null;
+            mEntries.clear();
+            mReadLogcat = null;
+            mReadSeq = -1;
+            mReadMessage = null;
+            mHistoryRows = 0;
+            fireTableDataChanged();
         }
 
-        @Override
-        public void run() {
-            if (numRemoved > 0)
-                model.removeLogMessages(numRemoved);
-            if (newMessages != null && newMessages.length > 0)
-                model.addLogMessages(newMessages);
+        private void grow(int minCapacity) {
+            int capacity = mSeqs.length;
+            while (capacity < minCapacity) {
+                capacity *= 2;
+            }
+            int headLength = Math.min(mSize, mSeqs.length - mHead);
+            long[] seqs = new long[capacity];
+            System.arraycopy(mSeqs, mHead, seqs, 0, headLength);
+            System.arraycopy(mSeqs, 0, seqs, headLength, mSize - headLength);
+            if (mLogcats != null) {
+                LogCatWrapper[] logcats = new LogCatWrapper[capacity];
+                System.arraycopy(mLogcats, mHead, logcats, 0, headLength);
+                System.arraycopy(mLogcats, 0, logcats, headLength, mSize - headLength);
+                mLogcats = logcats;
+            }
+            mSeqs = seqs;
+            mHead = 0;
         }
     }
 }
@@ -2,40 +2,104 @@ package com.drsuperchamp.android.tools.logcat.ui;
 
 import java.awt.BorderLayout;
 import java.awt.Component;
+import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 
+import javax.swing.ButtonGroup;
 import javax.swing.JButton;
+import javax.swing.JCheckBoxMenuItem;
+import javax.swing.JFileChooser;
+import javax.swing.JComboBox;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
+import javax.swing.JOptionPane;
+import javax.swing.JProgressBar;
+import javax.swing.JRadioButtonMenuItem;
 import javax.swing.JScrollPane;
 import javax.swing.JTabbedPane;
+import javax.swing.JTextField;
 import javax.swing.JToolBar;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 import com.drsuperchamp.android.tools.logcat.core.AdbWrapper;
+import com.drsuperchamp.android.tools.logcat.core.CaptureMetrics;
+import com.drsuperchamp.android.tools.logcat.core.DeviceSessionManager;
+import com.drsuperchamp.android.tools.logcat.core.DeviceSessionManager.DeviceSession;
+import com.drsuperchamp.android.tools.logcat.core.DeviceSessionManager.ShellExecutor;
+import com.drsuperchamp.android.tools.logcat.core.IngestPipeline.Backpressure;
 import com.drsuperchamp.android.tools.logcat.core.AdbWrapper.DeviceConnectionListener;
 import com.drsuperchamp.android.tools.logcat.core.LogCatWrapper;
+import com.drsuperchamp.android.tools.logcat.core.LogFileLoader;
+import com.drsuperchamp.android.tools.logcat.core.LogTime;
+import com.drsuperchamp.android.tools.logcat.core.MergedOutput;
+import com.drsuperchamp.android.tools.logcat.core.SearchIndex;
+import com.drsuperchamp.android.tools.logcat.core.SegmentedLogStore;
+import com.drsuperchamp.android.tools.logcat.core.SessionFile;
+import com.drsuperchamp.android.tools.logcat.core.SyntheticDevice;
 
 public class MainFrame extends JFrame implements DeviceConnectionListener {
-	private static final String DEFAULT_TABLE_NAME = "Log";
-	private final String ADB_BIN_PATH;
-	private AdbWrapper mAdb = null;
-	private String mConnectedDevSerialNum = null;
-	private LogCatWrapper mLogcat;
+	/** name of the default filter of LogCatWrapper */
+	private static final String DEFAULT_FILTER_NAME = "Log";
+	private static final String MERGED_TABLE_NAME = "All devices";
+	/** retention of the history kept on disk, per device */
+	private static final long HISTORY_MAX_BYTES = 1024L * 1024 * 1024;
+	private static final long HISTORY_MAX_AGE_MS = 24L * 60 * 60 * 1000;
+	/** period of the update of the status bar */
+	private static final int STATUS_PERIOD_MS = 1000;
+	private DeviceSessionManager mSessions = null;
 	private JTabbedPane mTabbedPane = null;
+	private JComboBox<String> mDeviceList = null;
 	private JButton mBtnConnect = null;
+	private JButton mBtnConnectAll = null;
+	private JCheckBoxMenuItem mMntmBinaryCapture = null;
+	private JCheckBoxMenuItem mMntmMergedView = null;
+	private JCheckBoxMenuItem mMntmHistory = null;
+	private Backpressure mBackpressure = Backpressure.DROP_OLDEST;
+	private MergedOutput mMergedOutput = null;
+	private Timer mMergedPollTimer = null;
+	private LogFileLoader mLoader = null;
+	private JProgressBar mLoadProgress = null;
+	private JButton mBtnCancelLoad = null;
+	private JTextField mSearchField = null;
+	private JTextField mTimeField = null;
+	private JLabel mStatusLabel = null;
+	private LogTime mLogTime = new LogTime();
+	/** stores of the loaded files, deleted on exit */
+	private List<SegmentedLogStore> mLoadedStores = new ArrayList<SegmentedLogStore>();
 	private List<LogTable> mTables = new ArrayList<LogTable>();
+	/** sessions of the device and file tabs, by table name */
+	private Map<String, LogCatWrapper> mLogCats = new HashMap<String, LogCatWrapper>();
+	private TableUpdateTimer mUpdateTimer = new TableUpdateTimer(TableUpdateTimer.DEFAULT_RATE);
 
 	public MainFrame(String adb_bin_path) {
+		this(AdbWrapper.getInstance());
+		AdbWrapper.getInstance().connect(adb_bin_path, this);
+	}
+
+	/**
+	 * Captures fake devices instead of the devices of adb, for load tests.
+	 * @param devices
+	 */
+	public MainFrame(SyntheticDevice devices) {
+		this((ShellExecutor) devices);
+		devices.connect(this);
+	}
+
+	private MainFrame(ShellExecutor executor) {
 		setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		setBounds(100, 100, 640, 480);
 
@@ -46,61 +110,529 @@ public class MainFrame extends JFrame implements DeviceConnectionListener {
 		menuBar.add(mnFile);
 
 		JMenuItem mntmLoad = new JMenuItem("Load");
+		mntmLoad.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				JFileChooser chooser = new JFileChooser();
+				if (chooser.showOpenDialog(MainFrame.this) == JFileChooser.APPROVE_OPTION) {
+					load(chooser.getSelectedFile());
+				}
+			}
+		});
 		mnFile.add(mntmLoad);
 
+		JMenuItem mntmOpenSession = new JMenuItem("Open session...");
+		mntmOpenSession.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				JFileChooser chooser = new JFileChooser();
+				if (chooser.showOpenDialog(MainFrame.this) == JFileChooser.APPROVE_OPTION) {
+					openSession(chooser.getSelectedFile());
+				}
+			}
+		});
+		mnFile.add(mntmOpenSession);
+
+		JMenuItem mntmSaveSession = new JMenuItem("Save session...");
+		mntmSaveSession.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				LogCatWrapper logcat = getSelectedLogCat();
+				if (logcat == null) {
+					Toolkit.getDefaultToolkit().beep();
+					return;
+				}
+				JFileChooser chooser = new JFileChooser();
+				if (chooser.showSaveDialog(MainFrame.this) == JFileChooser.APPROVE_OPTION) {
+					saveSession(logcat, chooser.getSelectedFile());
+				}
+			}
+		});
+		mnFile.add(mntmSaveSession);
+
+		JMenu mnCapture = new JMenu("Capture");
+		menuBar.add(mnCapture);
+
+		mMntmBinaryCapture = new JCheckBoxMenuItem("Binary (logcat -B)");
+		mnCapture.add(mMntmBinaryCapture);
+
+		mnCapture.addSeparator();
+		ButtonGroup backpressureGroup = new ButtonGroup();
+		addBackpressureItem(mnCapture, backpressureGroup, "When busy: wait", Backpressure.BLOCK);
+		addBackpressureItem(mnCapture, backpressureGroup, "When busy: drop oldest", Backpressure.DROP_OLDEST);
+		addBackpressureItem(mnCapture, backpressureGroup, "When busy: sample", Backpressure.SAMPLE);
+
+		mMntmMergedView = new JCheckBoxMenuItem("Merged view of the devices connected next");
+		mMntmMergedView.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				setMergedView(mMntmMergedView.isSelected());
+			}
+		});
+		mnCapture.addSeparator();
+		mnCapture.add(mMntmMergedView);
+
+		mMntmHistory = new JCheckBoxMenuItem("Keep the history on disk");
+		mnCapture.add(mMntmHistory);
+
 		JToolBar toolBar = new JToolBar();
 		getContentPane().add(toolBar, BorderLayout.NORTH);
 
-		mBtnConnect = new JButton("No device");
+		mDeviceList = new JComboBox<String>();
+		toolBar.add(mDeviceList);
+
+		mBtnConnect = new JButton("Connect");
 		mBtnConnect.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent arg0) {
-				mBtnConnect.setEnabled(false);
+				String serial = (String) mDeviceList.getSelectedItem();
+				if (serial != null) {
+					connect(serial);
+				}
+			}
+		});
+		mBtnConnect.setEnabled(false);
+		toolBar.add(mBtnConnect);
+
+		mBtnConnectAll = new JButton("Connect all");
+		mBtnConnectAll.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				for (int n = 0; n < mDeviceList.getItemCount(); n++) {
+					connect(mDeviceList.getItemAt(n));
+				}
+			}
+		});
+		mBtnConnectAll.setEnabled(false);
+		toolBar.add(mBtnConnectAll);
+
+		mLoadProgress = new JProgressBar(0, 1000);
+		mLoadProgress.setStringPainted(true);
+		mLoadProgress.setVisible(false);
+		toolBar.add(mLoadProgress);
+
+		mBtnCancelLoad = new JButton("Cancel");
+		mBtnCancelLoad.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				if (mLoader != null) {
+					mLoader.cancel();
+				}
+			}
+		});
+		mBtnCancelLoad.setVisible(false);
+		toolBar.add(mBtnCancelLoad);
+
+		toolBar.addSeparator();
+		mSearchField = new JTextField(20);
+		mSearchField.setToolTipText("Words, tag:name and pid:number, OR between alternatives");
+		mSearchField.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				find(true);
+			}
+		});
+		toolBar.add(mSearchField);
 
-				removeAllTables(mTabbedPane);
+		JButton btnFindPrevious = new JButton("Previous");
+		btnFindPrevious.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				find(false);
+			}
+		});
+		toolBar.add(btnFindPrevious);
 
-				LogTable defaultTable = findTable(DEFAULT_TABLE_NAME);
-				defaultTable.clear();
-				addTable(mTabbedPane, defaultTable);
+		JButton btnFindNext = new JButton("Next");
+		btnFindNext.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				find(true);
+			}
+		});
+		toolBar.add(btnFindNext);
 
-				mLogcat = new LogCatWrapper(mConnectedDevSerialNum, 10000);
-				mLogcat.setDefaultFilterOutput(defaultTable);
+		toolBar.addSeparator();
+		mTimeField = new JTextField(12);
+		mTimeField.setToolTipText("Go to HH:MM:SS, or select HH:MM:SS - HH:MM:SS");
+		mTimeField.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				goToTime(mTimeField.getText());
+			}
+		});
+		toolBar.add(mTimeField);
 
-				Iterator<LogTable> it = mTables.iterator();
-				while (it.hasNext()) {
-					LogTable table = it.next();
-					if (table.getName().equals(DEFAULT_TABLE_NAME)) {
-						continue;
+		mTabbedPane = new JTabbedPane(JTabbedPane.TOP);
+		getContentPane().add(mTabbedPane, BorderLayout.CENTER);
+
+		mStatusLabel = new JLabel(" ");
+		getContentPane().add(mStatusLabel, BorderLayout.SOUTH);
+		Timer statusTimer = new Timer(STATUS_PERIOD_MS, new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				updateStatus();
+			}
+		});
+		statusTimer.start();
+
+		mUpdateTimer.start();
+
+		mSessions = new DeviceSessionManager(executor, DeviceSessionManager.DEFAULT_MAX_SESSIONS);
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				// deletes the history files.
+				mSessions.shutdown();
+				synchronized (mLoadedStores) {
+					for (SegmentedLogStore store : mLoadedStores) {
+						store.delete();
 					}
-					table.clear();
-					addTable(mTabbedPane, table);
-					mLogcat.addFilter(table.getName(), table.filterTag(),
-							table.filterPid(), table.filterLogLevel(), null,
-							table);
 				}
+			}
+		}));
+	}
 
-				// added filters
-				new Thread(new Runnable() {
-					@Override
-					public void run() {
-						mAdb.executeShellCommand(mConnectedDevSerialNum,
-								"logcat -v long",
-								mLogcat.getShellOutputReceiver());
+	/**
+	 * Starts a new capture of the device in its own tab.
+	 * @param serial
+	 */
+	private void connect(String serial) {
+		LogTable table = findTable(serial);
+		if (table == null) {
+			table = new LogTable(serial);
+			mTables.add(table);
+			mUpdateTimer.add(table);
+			addTable(mTabbedPane, table);
+		}
+		table.clear();
+
+		DeviceSession session = mSessions.open(serial);
+		LogCatWrapper logcat = session.getLogCat();
+		logcat.setDefaultFilterOutput(table);
+		logcat.setSearchIndex(new SearchIndex(logcat.getTags()));
+		mLogCats.put(serial, logcat);
+		table.setMetrics(logcat.getMetrics());
+		table.setLogColors(logcat.getFilterColors(DEFAULT_FILTER_NAME));
+		table.setHistory(null);
+		if (mMntmHistory.isSelected()) {
+			File directory = new File(System.getProperty("java.io.tmpdir"), "logcat-gui"
+					+ File.separator + serial.replace(':', '_') + "-" + System.currentTimeMillis());
+			try {
+				SegmentedLogStore store = new SegmentedLogStore(directory,
+						SegmentedLogStore.DEFAULT_SEGMENT_SIZE);
+				store.setRetention(HISTORY_MAX_BYTES, HISTORY_MAX_AGE_MS);
+				logcat.setLogStore(store);
+				table.setHistory(logcat);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		if (mMergedOutput != null) {
+			// a filter without criteria gets every message of the device.
+			logcat.addFilter(MERGED_TABLE_NAME, null, null, null, null,
+					mMergedOutput.newInput(serial));
+		}
+		session.start(mMntmBinaryCapture.isSelected(), mBackpressure);
+	}
+
+	/**
+	 * Loads a logcat dump in its own tab. The whole file is kept in a store on disk, the first
+	 * messages are shown while the rest is loaded.
+	 * @param file
+	 */
+	private void load(File file) {
+		if (mLoader != null) {
+			mLoader.cancel();
+		}
+
+		String name = file.getName();
+		LogTable table = findTable(name);
+		if (table == null) {
+			table = new LogTable(name);
+			mTables.add(table);
+			mUpdateTimer.add(table);
+			addTable(mTabbedPane, table);
+		}
+		table.clear();
+		mTabbedPane.setSelectedIndex(mTabbedPane.indexOfTab(name));
+
+		LogCatWrapper logcat = new LogCatWrapper(name, DeviceSessionManager.DEFAULT_MAX_LOGS);
+		logcat.setDefaultFilterOutput(table);
+		logcat.setSearchIndex(new SearchIndex(logcat.getTags()));
+		mLogCats.put(name, logcat);
+		table.setMetrics(logcat.getMetrics());
+		table.setLogColors(logcat.getFilterColors(DEFAULT_FILTER_NAME));
+		File directory = new File(System.getProperty("java.io.tmpdir"), "logcat-gui"
+				+ File.separator + name + "-" + System.currentTimeMillis());
+		try {
+			SegmentedLogStore store = new SegmentedLogStore(directory,
+					SegmentedLogStore.DEFAULT_SEGMENT_SIZE);
+			logcat.setLogStore(store);
+			table.setHistory(logcat);
+			synchronized (mLoadedStores) {
+				mLoadedStores.add(store);
+			}
+		} catch (IOException e) {
+			// only the last messages are kept.
+			table.setHistory(null);
+			e.printStackTrace();
+		}
+
+		mLoadProgress.setValue(0);
+		mLoadProgress.setString(name);
+		mLoadProgress.setVisible(true);
+		mBtnCancelLoad.setVisible(true);
+		LoadListener listener = new LoadListener();
+		mLoader = new LogFileLoader(file, logcat, listener);
+		listener.mLoader = mLoader;
+		mLoader.start();
+	}
+
+	/**
+	 * Shows a saved session in its own tab. Only the index of the file is read, the messages
+	 * are read as they are shown.
+	 * @param file
+	 */
+	private void openSession(File file) {
+		String name = file.getName();
+		LogCatWrapper logcat = new LogCatWrapper(name, DeviceSessionManager.DEFAULT_MAX_LOGS);
+		SessionFile.Reader reader;
+		try {
+			reader = new SessionFile.Reader(file, logcat.getTags());
+		} catch (IOException e) {
+			JOptionPane.showMessageDialog(this, e.getMessage(), "Open session",
+					JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		logcat.setSessionFile(reader);
+
+		LogTable table = findTable(name);
+		if (table == null) {
+			table = new LogTable(name);
+			mTables.add(table);
+			mUpdateTimer.add(table);
+			addTable(mTabbedPane, table);
+		}
+		LogCatWrapper previous = mLogCats.put(name, logcat);
+		if (previous != null && previous.getSessionFile() != null) {
+			try {
+				previous.getSessionFile().close();
+			} catch (IOException e) {
+			}
+		}
+		table.setLogColors(logcat.getFilterColors(DEFAULT_FILTER_NAME));
+		table.setMetrics(null);
+		table.showHistory(logcat, reader.getFirstSeq(), reader.getNextSeq());
+		mTabbedPane.setSelectedIndex(mTabbedPane.indexOfTab(name));
+	}
+
+	/**
+	 * Saves the messages of a session in a background thread.
+	 * @param logcat
+	 * @param file
+	 */
+	private void saveSession(final LogCatWrapper logcat, final File file) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					SessionFile.save(logcat, file);
+				} catch (final IOException e) {
+					runInEventThread(new Runnable() {
+						@Override
+						public void run() {
+							JOptionPane.showMessageDialog(MainFrame.this, e.getMessage(),
+									"Save session", JOptionPane.ERROR_MESSAGE);
+						}
+					}, false);
+				}
+			}
+		}, "save-" + file.getName());
+		thread.setDaemon(false);
+		thread.start();
+	}
+
+	/**
+	 * Shows the metrics of the session of the selected tab, and those of its filters in the
+	 * tool tip.
+	 */
+	private void updateStatus() {
+		LogCatWrapper logcat = getSelectedLogCat();
+		if (logcat == null) {
+			mStatusLabel.setText(" ");
+			mStatusLabel.setToolTipText(null);
+			return;
+		}
+		CaptureMetrics metrics = logcat.getMetrics();
+		mStatusLabel.setText(String.format(
+				"%,.0f lines/s  %.2f MB/s  parse p99 %.2f ms  display p99 %d ms  %,d evicted  %,d packets dropped  buffer %d MB",
+				metrics.getLinesPerSecond(), metrics.getBytesPerSecond() / (1024 * 1024),
+				metrics.getParseTimeP99Nanos() / 1000000.0, metrics.getUpdateLatencyP99Millis(),
+				metrics.getEvictedMessages(), metrics.getDroppedPackets(),
+				metrics.getBufferHeapBytes() / (1024 * 1024)));
+		StringBuilder tip = new StringBuilder("<html>");
+		for (String stats : metrics.getFilterStats()) {
+			tip.append(stats.replace("&", "&amp;").replace("<", "&lt;")).append("<br>");
+		}
+		mStatusLabel.setToolTipText(tip.append("</html>").toString());
+	}
+
+	/**
+	 * @return the session of the selected tab, or null if it has none.
+	 */
+	private LogCatWrapper getSelectedLogCat() {
+		JScrollPane scrollPane = (JScrollPane) mTabbedPane.getSelectedComponent();
+		if (scrollPane == null) {
+			return null;
+		}
+		return mLogCats.get(scrollPane.getViewport().getView().getName());
+	}
+
+	/**
+	 * Shows the progress of a loading, until another one is started.
+	 */
+	private final class LoadListener implements LogFileLoader.Listener {
+		LogFileLoader mLoader;
+
+		@Override
+		public void progress(final long loadedBytes, final long totalBytes) {
+			runInEventThread(new Runnable() {
+				@Override
+				public void run() {
+					if (MainFrame.this.mLoader == mLoader) {
+						mLoadProgress.setValue((int) (loadedBytes * 1000 / Math.max(1, totalBytes)));
 					}
-				}).start();
+				}
+			}, false);
+		}
+
+		@Override
+		public void done(boolean cancelled, final IOException error) {
+			if (error != null) {
+				error.printStackTrace();
+			}
+			runInEventThread(new Runnable() {
+				@Override
+				public void run() {
+					if (MainFrame.this.mLoader == mLoader) {
+						MainFrame.this.mLoader = null;
+						mLoadProgress.setVisible(false);
+						mBtnCancelLoad.setVisible(false);
+					}
+				}
+			}, false);
+		}
+	}
+
+	/**
+	 * Shows the devices connected from now on in one table, ordered by timestamp.
+	 * @param enabled
+	 */
+	private void setMergedView(boolean enabled) {
+		if (enabled == false) {
+			if (mMergedPollTimer != null) {
+				mMergedPollTimer.stop();
+				mMergedPollTimer = null;
+			}
+			mMergedOutput = null;
+			return;
+		}
+
+		LogTable table = findTable(MERGED_TABLE_NAME);
+		if (table == null) {
+			table = new LogTable(MERGED_TABLE_NAME);
+			mTables.add(table);
+			mUpdateTimer.add(table);
+			addTable(mTabbedPane, table);
+		}
+		table.clear();
+		mMergedOutput = new MergedOutput(MERGED_TABLE_NAME, table,
+				DeviceSessionManager.DEFAULT_MAX_LOGS);
+		final MergedOutput merged = mMergedOutput;
+		mMergedPollTimer = new Timer((int) MergedOutput.IDLE_TIMEOUT_MS, new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				merged.poll();
 			}
 		});
-		mBtnConnect.setEnabled(false);
-		toolBar.add(mBtnConnect);
+		mMergedPollTimer.start();
+	}
 
-		mTabbedPane = new JTabbedPane(JTabbedPane.TOP);
-		getContentPane().add(mTabbedPane, BorderLayout.CENTER);
+	private void addBackpressureItem(JMenu menu, ButtonGroup group, String text,
+			final Backpressure backpressure) {
+		JRadioButtonMenuItem item = new JRadioButtonMenuItem(text);
+		item.setSelected(backpressure == mBackpressure);
+		item.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				mBackpressure = backpressure;
+			}
+		});
+		group.add(item);
+		menu.add(item);
+	}
 
-		LogTable defaultTable = new LogTable(DEFAULT_TABLE_NAME);
-		mTables.add(defaultTable);
+	/**
+	 * Selects the next or previous message of the selected tab matching the search field,
+	 * from the selected row.
+	 * @param forward
+	 */
+	private void find(boolean forward) {
+		String query = mSearchField.getText();
+		JScrollPane scrollPane = (JScrollPane) mTabbedPane.getSelectedComponent();
+		if (scrollPane == null || query.trim().length() == 0) {
+			return;
+		}
+		LogTable table = (LogTable) scrollPane.getViewport().getView();
+		LogCatWrapper logcat = mLogCats.get(table.getName());
+		if (logcat == null || logcat.getSearchIndex() == null) {
+			// the merged view has no index.
+			Toolkit.getDefaultToolkit().beep();
+			return;
+		}
 
-		ADB_BIN_PATH = adb_bin_path;
-		mAdb = AdbWrapper.getInstance();
-		mAdb.connect(ADB_BIN_PATH, this);
+		long[] hits = logcat.getSearchIndex().search(query);
+		long seq = table.getSelectedSeq();
+		if (seq < 0) {
+			seq = forward ? -1 : Long.MAX_VALUE;
+		}
+		while (true) {
+			seq = forward ? SearchIndex.nextHit(hits, seq) : SearchIndex.previousHit(hits, seq);
+			if (seq < 0) {
+				Toolkit.getDefaultToolkit().beep();
+				return;
+			}
+			if (table.selectSeq(seq)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Selects the first message at a time, or the messages of a time range, in the selected
+	 * tab. The date of the times is the one of the selected message if they have none.
+	 * @param text "[MM-DD ]HH:MM:SS[.mmm]", or two of them separated by " - ".
+	 */
+	private void goToTime(String text) {
+		JScrollPane scrollPane = (JScrollPane) mTabbedPane.getSelectedComponent();
+		if (scrollPane == null) {
+			return;
+		}
+		LogTable table = (LogTable) scrollPane.getViewport().getView();
+		LogCatWrapper logcat = mLogCats.get(table.getName());
+		long reference = table.getReferenceTime();
+		String[] times = text.split(" - ");
+		long start = mLogTime.parseNear(times[0], reference);
+		if (logcat == null || reference == 0 || start < 0 || times.length > 2) {
+			Toolkit.getDefaultToolkit().beep();
+			return;
+		}
+
+		if (times.length == 1) {
+			table.selectCeilingSeq(logcat.findSeq(start));
+			return;
+		}
+		long end = mLogTime.parseNear(times[1], reference);
+		if (end < 0) {
+			Toolkit.getDefaultToolkit().beep();
+			return;
+		}
+		// the end is inclusive, to the end of its second when it has no milliseconds.
+		end += times[1].indexOf('.') >= 0 ? 1 : 1000;
+		if (end <= start) {
+			// over midnight.
+			end += 24L * 60 * 60 * 1000;
+		}
+		if (table.selectSeqRange(logcat.findSeq(start), logcat.findSeq(end)) == 0) {
+			Toolkit.getDefaultToolkit().beep();
+		}
 	}
 
 	private LogTable findTable(String name) {
@@ -139,13 +671,13 @@ public class MainFrame extends JFrame implements DeviceConnectionListener {
 	}
 
 	@Override
-	public void deviceConnected(String devSerialNumber) {
-		mConnectedDevSerialNum = new String(devSerialNumber);
+	public void deviceConnected(final String devSerialNumber) {
 		runInEventThread(new Runnable() {
 			@Override
 			public void run() {
-				mBtnConnect.setText("Connect: " + mConnectedDevSerialNum);
+				mDeviceList.addItem(devSerialNumber);
 				mBtnConnect.setEnabled(true);
+				mBtnConnectAll.setEnabled(true);
 			}
 		}, true);
 	}
@@ -163,18 +695,31 @@ public class MainFrame extends JFrame implements DeviceConnectionListener {
 	}
 
 	@Override
-	public void deviceDisconnected(String devSerialNumber) {
-		mConnectedDevSerialNum = null;
+	public void deviceDisconnected(final String devSerialNumber) {
+		// the capture ends with the shell command, its table is kept.
 		runInEventThread(new Runnable() {
 			@Override
 			public void run() {
-				mBtnConnect.setText("No device");
-				mBtnConnect.setEnabled(false);
+				mDeviceList.removeItem(devSerialNumber);
+				boolean hasDevices = mDeviceList.getItemCount() > 0;
+				mBtnConnect.setEnabled(hasDevices);
+				mBtnConnectAll.setEnabled(hasDevices);
 			}
 		}, true);
 	}
 
 	public static void main(String[] args) {
+		// --synthetic [rate [devices]]: captures fake devices.
+		if (args.length > 0 && args[0].equals("--synthetic")) {
+			int rate = args.length > 1 ? Integer.parseInt(args[1]) : SyntheticDevice.DEFAULT_RATE;
+			int numDevices = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+			SyntheticDevice devices = new SyntheticDevice(numDevices, 0);
+			devices.setRate(rate);
+			MainFrame frame = new MainFrame(devices);
+			frame.setVisible(true);
+			return;
+		}
+
 		String searchCmd;
 		String adbCmd;
 		if (System.getProperty("os.name").contains("Windows")) {
@@ -0,0 +1,68 @@
+package com.drsuperchamp.android.tools.logcat.ui;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.Timer;
+
+/**
+ * Applies the pending updates of the shown {@link LogTable}s on the event thread, at most
+ * a fixed number of times per second.
+ * <p/>Tables that are not shown keep their updates pending until they are shown again.
+ * The tables must be added and removed from the event thread.
+ */
+public class TableUpdateTimer implements ActionListener {
+    /** default number of updates per second */
+    public static final int DEFAULT_RATE = 30;
+
+    private final Timer mTimer;
+    private final List<LogTable> mTables = new ArrayList<LogTable>();
+
+    /**
+     * @param rate number of updates per second.
+     */
+    public TableUpdateTimer(int rate) {
+        mTimer = new Timer(delayOf(rate), this);
+        mTimer.setCoalesce(true);
+    }
+
+    public void start() {
+        mTimer.start();
+    }
+
+    public void stop() {
+        mTimer.stop();
+    }
+
+    /**
+     * @param rate number of updates per second.
+     */
+    public void setRate(int rate) {
+        mTimer.setDelay(delayOf(rate));
+    }
+
+    public void add(LogTable table) {
+        if (mTables.contains(table) == false) {
+            mTables.add(table);
+        }
+    }
+
+    public void remove(LogTable table) {
+        mTables.remove(table);
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        for (LogTable table : mTables) {
+            if (table.isShowing()) {
+                table.applyPendingUpdates();
+            }
+        }
+    }
+
+    private static int delayOf(int rate) {
+        return 1000 / Math.max(1, Math.min(rate, 1000));
+    }
+}